@@ -0,0 +1,290 @@
+package com.tuomasmattila.chatserver;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The server's log. Logging a line only puts it in a ring buffer; a
+ * background thread takes the lines from the buffer and writes them in
+ * batches to standard output or to a file, so request threads never wait for
+ * the output or for each other.
+ *
+ * The buffer is a bounded lock-free queue with a sequence number in each
+ * slot: a thread claims a slot with a compare-and-set on the tail, fills it
+ * and then publishes it by advancing the slot's sequence number, which the
+ * writer waits for. When the buffer is full, new lines are dropped and
+ * counted, or, if so configured, the logging thread waits for room.
+ *
+ * The log is configured with the system properties:
+ * chatserver.log.level (DEBUG, INFO, WARN or ERROR, default INFO),
+ * chatserver.log.file (default: standard output),
+ * chatserver.log.bufferSize (lines, default 65536) and
+ * chatserver.log.overflow ("drop", the default, or "block").
+ *
+ * The buffer and its writer are a {@code LogBuffer}; the static methods log
+ * to the one that writes the server's log.
+ */
+public final class AsyncLog {
+
+    public enum Level {
+        DEBUG, INFO, WARN, ERROR
+    }
+
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(5);
+    private static final int BATCH_BYTES = 64 * 1024;
+    private static final Level[] LEVELS = Level.values();
+
+    private static final LogBuffer log = new LogBuffer(parseLevel(System.getProperty("chatserver.log.level", "INFO")),
+            Integer.getInteger("chatserver.log.bufferSize", 65536),
+            "block".equalsIgnoreCase(System.getProperty("chatserver.log.overflow", "drop")),
+            openOutput(System.getProperty("chatserver.log.file")));
+
+    static {
+        log.start("log-writer");
+        Runtime.getRuntime().addShutdownHook(new Thread(AsyncLog::flush, "log-flush"));
+    }
+
+    private AsyncLog() {
+    }
+
+    /**
+     * Tells whether lines of a level are written. Callers can check this
+     * before building an expensive message.
+     *
+     * @param level the level
+     * @return {@code true} if lines of the level are logged
+     */
+    public static boolean isEnabled(Level level) {
+        return log.isEnabled(level);
+    }
+
+    /**
+     * Logs a line, if its level is enabled.
+     *
+     * @param level the level of the line
+     * @param message the line
+     */
+    public static void log(Level level, String message) {
+        log.log(level, message);
+    }
+
+    /**
+     * Returns the number of lines dropped because the buffer was full.
+     *
+     * @return the number of dropped lines
+     */
+    public static long getDroppedCount() {
+        return log.getDroppedCount();
+    }
+
+    /**
+     * Writes the lines in the buffer and flushes the output. Called when the
+     * server stops, so that the last lines are not lost.
+     */
+    public static void flush() {
+        log.drain();
+    }
+
+    /**
+     * A ring buffer of log lines and the thread that writes them to an output.
+     */
+    static final class LogBuffer {
+
+        private final Level threshold;
+        private final boolean blockWhenFull;
+        private final int capacity;
+        private final int mask;
+        private final AtomicLongArray sequences;
+        private final String[] messages;
+        private final long[] times;
+        private final byte[] levels;
+        private final AtomicLong tail = new AtomicLong();
+        private final LongAdder dropped = new LongAdder();
+        private final OutputStream out;
+        private final ReentrantLock drainLock = new ReentrantLock();
+        private long head;
+        private volatile Thread writer;
+
+        /**
+         * Creates a buffer. Until the writer thread is started, lines are only
+         * written by {@code drain}, and a full buffer drops lines even if it
+         * would otherwise wait for room.
+         *
+         * @param threshold the lowest level that is logged
+         * @param bufferSize the number of lines the buffer holds, rounded up to
+         * a power of two
+         * @param blockWhenFull {@code true} to wait for room when the buffer is
+         * full, {@code false} to drop the line
+         * @param out the output the lines are written to
+         */
+        LogBuffer(Level threshold, int bufferSize, boolean blockWhenFull, OutputStream out) {
+            this.threshold = threshold;
+            this.blockWhenFull = blockWhenFull;
+            this.capacity = roundUpToPowerOfTwo(bufferSize);
+            this.mask = capacity - 1;
+            this.sequences = new AtomicLongArray(capacity);
+            this.messages = new String[capacity];
+            this.times = new long[capacity];
+            this.levels = new byte[capacity];
+            this.out = out;
+            for (int i = 0; i < capacity; i++) {
+                sequences.set(i, i);
+            }
+        }
+
+        /**
+         * Starts the thread that writes the lines.
+         *
+         * @param name the name of the thread
+         */
+        void start(String name) {
+            Thread thread = new Thread(this::writeLoop, name);
+            thread.setDaemon(true);
+            writer = thread;
+            thread.start();
+        }
+
+        boolean isEnabled(Level level) {
+            return level.compareTo(threshold) >= 0;
+        }
+
+        void log(Level level, String message) {
+            if (!isEnabled(level)) {
+                return;
+            }
+            long time = System.currentTimeMillis();
+            while (true) {
+                long position = tail.get();
+                int slot = (int) position & mask;
+                long difference = sequences.get(slot) - position;
+                if (difference == 0) {
+                    if (tail.compareAndSet(position, position + 1)) {
+                        messages[slot] = message;
+                        times[slot] = time;
+                        levels[slot] = (byte) level.ordinal();
+                        sequences.lazySet(slot, position + 1);
+                        return;
+                    }
+                } else if (difference < 0) {
+                    // The buffer is full.
+                    Thread thread = writer;
+                    if (!blockWhenFull || thread == null || Thread.currentThread() == thread) {
+                        dropped.increment();
+                        return;
+                    }
+                    LockSupport.unpark(thread);
+                    Thread.onSpinWait();
+                    Thread.yield();
+                }
+            }
+        }
+
+        long getDroppedCount() {
+            return dropped.sum();
+        }
+
+        private void writeLoop() {
+            while (true) {
+                if (!drain()) {
+                    LockSupport.parkNanos(IDLE_PARK_NANOS);
+                }
+            }
+        }
+
+        /**
+         * Writes the published lines to the output in batches, after a line
+         * telling how many lines were dropped since the last drain, if any.
+         *
+         * @return {@code false} if there was nothing to write
+         */
+        boolean drain() {
+            drainLock.lock();
+            try {
+                StringBuilder batch = new StringBuilder();
+                long reportedDrops = dropped.sumThenReset();
+                if (reportedDrops > 0) {
+                    append(batch, System.currentTimeMillis(), Level.WARN, reportedDrops + " log lines were dropped because the log buffer was full.");
+                }
+                boolean wrote = false;
+                while (true) {
+                    int slot = (int) head & mask;
+                    if (sequences.get(slot) != head + 1) {
+                        break;
+                    }
+                    append(batch, times[slot], LEVELS[levels[slot]], messages[slot]);
+                    messages[slot] = null;
+                    sequences.lazySet(slot, head + capacity);
+                    head++;
+                    wrote = true;
+                    if (batch.length() >= BATCH_BYTES) {
+                        write(batch);
+                    }
+                }
+                write(batch);
+                if (wrote || reportedDrops > 0) {
+                    try {
+                        out.flush();
+                    } catch (IOException e) {
+                        // Nothing can be logged about failing to log.
+                    }
+                }
+                return wrote;
+            } finally {
+                drainLock.unlock();
+            }
+        }
+
+        private void write(StringBuilder batch) {
+            if (batch.length() == 0) {
+                return;
+            }
+            try {
+                out.write(batch.toString().getBytes(StandardCharsets.UTF_8));
+            } catch (IOException e) {
+                // Nothing can be logged about failing to log.
+            }
+            batch.setLength(0);
+        }
+    }
+
+    private static void append(StringBuilder batch, long time, Level level, String message) {
+        batch.append(LocalDateTime.ofInstant(Instant.ofEpochMilli(time), ZoneId.systemDefault()))
+                .append(' ').append(level).append(' ').append(message).append('\n');
+    }
+
+    private static OutputStream openOutput(String file) {
+        if (file != null) {
+            try {
+                return new FileOutputStream(file, true);
+            } catch (IOException e) {
+                System.err.println("Cannot open the log file " + file + ": " + e.getMessage());
+            }
+        }
+        return System.out;
+    }
+
+    private static int roundUpToPowerOfTwo(int size) {
+        return size <= 2 ? 2 : Integer.highestOneBit(Math.min(size - 1, 1 << 29) << 1);
+    }
+
+    private static Level parseLevel(String name) {
+        try {
+            return Level.valueOf(name.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            System.err.println("Unknown log level " + name + ", using INFO.");
+            return Level.INFO;
+        }
+    }
+
+}
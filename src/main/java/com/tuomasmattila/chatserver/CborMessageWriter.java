@@ -0,0 +1,217 @@
+package com.tuomasmattila.chatserver;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Writes chat messages as CBOR (RFC 8949) straight to an {@code OutputStream}
+ * through a fixed-size buffer, and is pooled, like {@code JsonMessageWriter}.
+ * A message is a map with the same keys as in JSON:
+ * <pre>{"id": uint, "channel": text, "message": text, "sent": int, "user": text}</pre>
+ * where "sent" is Unix time in milliseconds. The message text is copied as
+ * it is kept in memory, as UTF-8, with no escaping. The results of a batch
+ * POST are maps with the same keys as in JSON, "status" and "id" or "error".
+ */
+public class CborMessageWriter implements MessageEncoder {
+
+    private static final int BUFFER_SIZE = 8192;
+    private static final int MAX_POOLED = 64;
+    private static final ConcurrentLinkedQueue<CborMessageWriter> pool = new ConcurrentLinkedQueue<>();
+    private static final AtomicInteger pooled = new AtomicInteger();
+    private static final int UNSIGNED = 0;
+    private static final int NEGATIVE = 1;
+    private static final int TEXT = 3;
+    private static final int ARRAY = 4;
+    private static final int MAP = 5;
+    private static final byte[] KEY_ID = key("id");
+    private static final byte[] KEY_CHANNEL = key("channel");
+    private static final byte[] KEY_MESSAGE = key("message");
+    private static final byte[] KEY_SENT = key("sent");
+    private static final byte[] KEY_USER = key("user");
+    private static final byte[] KEY_STATUS = key("status");
+    private static final byte[] KEY_ERROR = key("error");
+
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private int position;
+    private OutputStream out;
+
+    private CborMessageWriter() {
+    }
+
+    /**
+     * Takes a writer from the pool, or creates one if the pool is empty.
+     *
+     * @param out the stream to write to
+     * @return a {@code CborMessageWriter} writing to {@code out}
+     */
+    public static CborMessageWriter open(OutputStream out) {
+        CborMessageWriter writer = pool.poll();
+        if (writer == null) {
+            writer = new CborMessageWriter();
+        } else {
+            pooled.decrementAndGet();
+        }
+        writer.out = out;
+        writer.position = 0;
+        return writer;
+    }
+
+    @Override
+    public void writeArray(List<ChatMessage> messages) throws IOException {
+        writeHeader(ARRAY, messages.size());
+        for (ChatMessage message : messages) {
+            writeMessage(message);
+        }
+    }
+
+    @Override
+    public void writeMessage(ChatMessage message) throws IOException {
+        writeHeader(MAP, 5);
+        writeBytes(KEY_ID, 0, KEY_ID.length);
+        writeHeader(UNSIGNED, message.getId());
+        writeBytes(KEY_CHANNEL, 0, KEY_CHANNEL.length);
+        writeText(message.getChannel());
+        writeBytes(KEY_MESSAGE, 0, KEY_MESSAGE.length);
+        byte[] text = message.getMessageBytes();
+        writeHeader(TEXT, text.length);
+        writeBytes(text, 0, text.length);
+        writeBytes(KEY_SENT, 0, KEY_SENT.length);
+        long sent = message.dateAsInt();
+        if (sent >= 0) {
+            writeHeader(UNSIGNED, sent);
+        } else {
+            writeHeader(NEGATIVE, -1 - sent);
+        }
+        writeBytes(KEY_USER, 0, KEY_USER.length);
+        writeText(message.getNick());
+    }
+
+    @Override
+    public void writeStatuses(List<MessageStatus> statuses) throws IOException {
+        writeHeader(ARRAY, statuses.size());
+        for (MessageStatus status : statuses) {
+            writeHeader(MAP, 2);
+            writeBytes(KEY_STATUS, 0, KEY_STATUS.length);
+            writeHeader(UNSIGNED, status.getCode());
+            if (status.getError() == null) {
+                writeBytes(KEY_ID, 0, KEY_ID.length);
+                writeHeader(UNSIGNED, status.getId());
+            } else {
+                writeBytes(KEY_ERROR, 0, KEY_ERROR.length);
+                writeText(status.getError());
+            }
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        flushBuffer();
+        out.flush();
+    }
+
+    /**
+     * Writes the buffered bytes to the stream and returns the writer to the pool.
+     * The stream is not closed.
+     *
+     * @throws IOException if writing to the stream fails
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            flushBuffer();
+        } finally {
+            out = null;
+            if (pooled.incrementAndGet() <= MAX_POOLED) {
+                pool.offer(this);
+            } else {
+                pooled.decrementAndGet();
+            }
+        }
+    }
+
+    private static byte[] key(String name) {
+        byte[] bytes = new byte[name.length() + 1];
+        bytes[0] = (byte) (TEXT << 5 | name.length());
+        for (int i = 0; i < name.length(); i++) {
+            bytes[i + 1] = (byte) name.charAt(i);
+        }
+        return bytes;
+    }
+
+    private void writeText(String value) throws IOException {
+        int length = value.length();
+        boolean ascii = true;
+        for (int i = 0; i < length && ascii; i++) {
+            ascii = value.charAt(i) < 0x80;
+        }
+        if (ascii) {
+            writeHeader(TEXT, length);
+            for (int i = 0; i < length; i++) {
+                writeByte(value.charAt(i));
+            }
+        } else {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            writeHeader(TEXT, bytes.length);
+            writeBytes(bytes, 0, bytes.length);
+        }
+    }
+
+    /**
+     * Writes the initial byte of an item and its argument in the shortest form.
+     */
+    private void writeHeader(int major, long argument) throws IOException {
+        int type = major << 5;
+        if (argument < 24) {
+            writeByte(type | (int) argument);
+        } else if (argument < 0x100) {
+            writeByte(type | 24);
+            writeByte((int) argument);
+        } else if (argument < 0x10000) {
+            writeByte(type | 25);
+            writeByte((int) (argument >> 8));
+            writeByte((int) argument);
+        } else if (argument < 0x100000000L) {
+            writeByte(type | 26);
+            for (int shift = 24; shift >= 0; shift -= 8) {
+                writeByte((int) (argument >> shift));
+            }
+        } else {
+            writeByte(type | 27);
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                writeByte((int) (argument >> shift));
+            }
+        }
+    }
+
+    private void writeByte(int b) throws IOException {
+        if (position == buffer.length) {
+            flushBuffer();
+        }
+        buffer[position++] = (byte) b;
+    }
+
+    private void writeBytes(byte[] bytes, int offset, int length) throws IOException {
+        while (length > 0) {
+            if (position == buffer.length) {
+                flushBuffer();
+            }
+            int count = Math.min(length, buffer.length - position);
+            System.arraycopy(bytes, offset, buffer, position, count);
+            position += count;
+            offset += count;
+            length -= count;
+        }
+    }
+
+    private void flushBuffer() throws IOException {
+        if (position > 0) {
+            out.write(buffer, 0, position);
+            position = 0;
+        }
+    }
+
+}
@@ -0,0 +1,334 @@
+package com.tuomasmattila.chatserver;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.sun.net.httpserver.HttpExchange;
+
+/**
+ * Reads CBOR (RFC 8949) request bodies. The body has the same structure as a
+ * JSON body: a map of a message's fields, or an array of such maps. Arrays,
+ * maps and strings may have definite or indefinite lengths. Text strings are
+ * kept as the UTF-8 bytes they are sent in; a time may also be sent as an
+ * integer, Unix time in milliseconds, or as a number of seconds tagged with
+ * tag 1. Readers are pooled like {@code JsonRequestReader}s.
+ */
+public class CborRequestReader extends RequestReader {
+
+    private static final int MAX_POOLED = 64;
+    private static final int MAX_DEPTH = 64;
+    private static final int UNSIGNED = 0;
+    private static final int NEGATIVE = 1;
+    private static final int BYTES = 2;
+    private static final int TEXT = 3;
+    private static final int ARRAY = 4;
+    private static final int MAP = 5;
+    private static final int TAG = 6;
+    private static final int SIMPLE = 7;
+    private static final int INDEFINITE = 31;
+    private static final int BREAK = 0xff;
+    private static final ConcurrentLinkedQueue<CborRequestReader> pool = new ConcurrentLinkedQueue<>();
+    private static final AtomicInteger pooled = new AtomicInteger();
+
+    private boolean indefiniteArray;
+    private long remainingElements;
+
+    private CborRequestReader() {
+    }
+
+    /**
+     * Takes a reader from the pool, or creates one if the pool is empty, to read
+     * the body of a request.
+     *
+     * @param exchange the {@code HttpExchange} whose request body is read
+     * @param maxSize the largest body accepted, in bytes
+     * @return a {@code CborRequestReader} reading the request body
+     * @throws BodyTooLargeException if the Content-Length of the request is larger than {@code maxSize}
+     */
+    public static CborRequestReader open(HttpExchange exchange, long maxSize) throws BodyTooLargeException {
+        checkContentLength(exchange, maxSize);
+        CborRequestReader reader = pool.poll();
+        if (reader == null) {
+            reader = new CborRequestReader();
+        } else {
+            pooled.decrementAndGet();
+        }
+        reader.start(exchange.getRequestBody(), maxSize);
+        return reader;
+    }
+
+    @Override
+    public boolean isArrayNext() throws IOException {
+        return ensure(1) && (buffer[position] & 0xff) >> 5 == ARRAY;
+    }
+
+    @Override
+    public void beginArray() throws IOException {
+        int initial = readInitial();
+        if (initial >> 5 != ARRAY) {
+            throw syntaxError("Expected an array");
+        }
+        indefiniteArray = (initial & 0x1f) == INDEFINITE;
+        remainingElements = indefiniteArray ? 0 : readArgument(initial);
+    }
+
+    @Override
+    public boolean hasNext() throws IOException {
+        if (indefiniteArray) {
+            return !readBreak();
+        }
+        if (remainingElements == 0) {
+            return false;
+        }
+        remainingElements--;
+        return true;
+    }
+
+    @Override
+    public boolean readObject(byte[][] fields) throws IOException {
+        startObject(fields);
+        if (!ensure(1)) {
+            throw syntaxError("Unexpected end of the CBOR data");
+        }
+        if ((buffer[position] & 0xff) >> 5 != MAP) {
+            skipItem(0);
+            return false;
+        }
+        int initial = readInitial();
+        long pairs = (initial & 0x1f) == INDEFINITE ? -1 : readArgument(initial);
+        while (pairs < 0 ? !readBreak() : pairs-- > 0) {
+            int field = -1;
+            if (ensure(1) && (buffer[position] & 0xff) >> 5 == TEXT) {
+                int keyStart = valuesEnd;
+                field = findField(keyStart, readText());
+                valuesEnd = keyStart;
+            } else {
+                skipItem(1);
+            }
+            if (field < 0) {
+                skipItem(1);
+            } else {
+                readField(field);
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public void endDocument() throws IOException {
+        if (ensure(1)) {
+            throw syntaxError("Unexpected data after the CBOR item");
+        }
+    }
+
+    @Override
+    protected void recycle() {
+        if (pooled.incrementAndGet() <= MAX_POOLED) {
+            pool.offer(this);
+        } else {
+            pooled.decrementAndGet();
+        }
+    }
+
+    /**
+     * Reads the value of a kept field: a text string, an integer, or a number
+     * of seconds with tag 1. Other values are skipped.
+     */
+    private void readField(int field) throws IOException {
+        long tag = -1;
+        while (ensure(1) && (buffer[position] & 0xff) >> 5 == TAG) {
+            tag = readArgument(readInitial());
+        }
+        if (!ensure(1)) {
+            throw syntaxError("Unexpected end of the CBOR data");
+        }
+        int major = (buffer[position] & 0xff) >> 5;
+        if (major == TEXT) {
+            int start = valuesEnd;
+            setString(field, start, readText());
+        } else if (major == UNSIGNED || major == NEGATIVE) {
+            long value = readArgument(readInitial());
+            if (major == NEGATIVE) {
+                value = -1 - value;
+            }
+            setNumber(field, tag == 1 ? value * 1000 : value);
+        } else {
+            skipItem(1);
+            setNotString(field);
+        }
+    }
+
+    /**
+     * Reads a text string to the end of {@code values}.
+     *
+     * @return the length of the string in bytes
+     */
+    private int readText() throws IOException {
+        int start = valuesEnd;
+        int initial = readInitial();
+        if ((initial & 0x1f) != INDEFINITE) {
+            appendBytes(readLength(initial));
+        } else {
+            while (!readBreak()) {
+                int chunk = readInitial();
+                if (chunk >> 5 != TEXT || (chunk & 0x1f) == INDEFINITE) {
+                    throw syntaxError("Invalid chunk of a text string");
+                }
+                appendBytes(readLength(chunk));
+            }
+        }
+        replaceInvalidUtf8(start);
+        return valuesEnd - start;
+    }
+
+    private void skipItem(int depth) throws IOException {
+        if (depth > MAX_DEPTH) {
+            throw syntaxError("Nesting too deep");
+        }
+        int initial = readInitial();
+        int major = initial >> 5;
+        int info = initial & 0x1f;
+        switch (major) {
+            case UNSIGNED:
+            case NEGATIVE:
+                readArgument(initial);
+                break;
+            case BYTES:
+            case TEXT:
+                if (info != INDEFINITE) {
+                    skipBytes(readLength(initial));
+                } else {
+                    while (!readBreak()) {
+                        int chunk = readInitial();
+                        if (chunk >> 5 != major || (chunk & 0x1f) == INDEFINITE) {
+                            throw syntaxError("Invalid chunk of a string");
+                        }
+                        skipBytes(readLength(chunk));
+                    }
+                }
+                break;
+            case ARRAY:
+            case MAP:
+                int itemsPerEntry = major == MAP ? 2 : 1;
+                if (info != INDEFINITE) {
+                    for (long entries = readArgument(initial); entries > 0; entries--) {
+                        for (int i = 0; i < itemsPerEntry; i++) {
+                            skipItem(depth + 1);
+                        }
+                    }
+                } else {
+                    while (!readBreak()) {
+                        for (int i = 0; i < itemsPerEntry; i++) {
+                            skipItem(depth + 1);
+                        }
+                    }
+                }
+                break;
+            case TAG:
+                readArgument(initial);
+                skipItem(depth + 1);
+                break;
+            default:
+                // Simple values and floating-point numbers.
+                if (info == INDEFINITE) {
+                    throw syntaxError("Unexpected break");
+                }
+                readArgument(initial);
+        }
+    }
+
+    private int readInitial() throws IOException {
+        int initial = read();
+        if (initial < 0) {
+            throw syntaxError("Unexpected end of the CBOR data");
+        }
+        return initial;
+    }
+
+    /**
+     * Reads the break that ends an item of indefinite length, if it is next.
+     *
+     * @return {@code true} if the break was read
+     */
+    private boolean readBreak() throws IOException {
+        if (!ensure(1)) {
+            throw syntaxError("Unexpected end of the CBOR data");
+        }
+        if ((buffer[position] & 0xff) == BREAK) {
+            position++;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Reads the argument of an item: its value, length or number of entries.
+     */
+    private long readArgument(int initial) throws IOException {
+        int info = initial & 0x1f;
+        if (info < 24) {
+            return info;
+        }
+        int size;
+        switch (info) {
+            case 24:
+                size = 1;
+                break;
+            case 25:
+                size = 2;
+                break;
+            case 26:
+                size = 4;
+                break;
+            case 27:
+                size = 8;
+                break;
+            default:
+                throw syntaxError("Invalid additional information " + info);
+        }
+        if (!ensure(size)) {
+            throw syntaxError("Unexpected end of the CBOR data");
+        }
+        long value = 0;
+        for (int i = 0; i < size; i++) {
+            value = value << 8 | (buffer[position++] & 0xff);
+        }
+        if (value < 0 && initial >> 5 != SIMPLE) {
+            throw syntaxError("Integer too large");
+        }
+        return value;
+    }
+
+    private int readLength(int initial) throws IOException {
+        long length = readArgument(initial);
+        if (length > Integer.MAX_VALUE) {
+            throw syntaxError("String too long");
+        }
+        return (int) length;
+    }
+
+    private void appendBytes(int count) throws IOException {
+        while (count > 0) {
+            if (position == limit && !fill()) {
+                throw syntaxError("Unexpected end of the CBOR data");
+            }
+            int chunk = Math.min(count, limit - position);
+            append(buffer, position, chunk);
+            position += chunk;
+            count -= chunk;
+        }
+    }
+
+    private void skipBytes(int count) throws IOException {
+        while (count > 0) {
+            if (position == limit && !fill()) {
+                throw syntaxError("Unexpected end of the CBOR data");
+            }
+            int chunk = Math.min(count, limit - position);
+            position += chunk;
+            count -= chunk;
+        }
+    }
+
+}
@@ -1,24 +1,38 @@
 package com.tuomasmattila.chatserver;
 
-import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.nio.charset.StandardCharsets;
 import java.sql.SQLException;
-import java.util.ArrayList;
-import java.util.stream.Collectors;
+import java.util.List;
 
 import com.sun.net.httpserver.Headers;
 import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpHandler;
 
 import org.json.JSONException;
-import org.json.JSONObject;
 
 public class ChannelHandler implements HttpHandler {
 
+    private static final byte[][] CHANNEL_FIELDS = RequestReader.fields("channel name");
+
+    private final ResponseCompressor compressor;
+    private final long maxBodySize;
+
+    /**
+     * Handles POST and GET requests to the /channels context.
+     * 
+     * @param compressor used to compress the list of channels
+     * @param maxBodySize the largest request body accepted, in bytes
+     */
+    public ChannelHandler(ResponseCompressor compressor, long maxBodySize) {
+        this.compressor = compressor;
+        this.maxBodySize = maxBodySize;
+    }
+
     /**
      * Handles POST and GET requests from clients.
      *
@@ -33,7 +47,9 @@ public class ChannelHandler implements HttpHandler {
         result.setCode(200);
         result.setResponse("");
 
-        ChatServer.log("/channels: Request handled in thread " + Thread.currentThread().getId());
+        if (ChatServer.isDebugEnabled()) {
+            ChatServer.debug("/channels: Request handled in thread " + Thread.currentThread().getId());
+        }
         try {
             if (exchange.getRequestMethod().equalsIgnoreCase("POST")) {
                 result = handleCreateChannelRequest(exchange);
@@ -50,8 +66,8 @@ public class ChannelHandler implements HttpHandler {
             result.setCode(500);
             result.setResponse("Error in handling the request: " + e.getMessage());
         }
-        if (result.getCode() < 200 || result.getCode() > 299) {
-            ChatServer.log("---------- Error in /chat: " + result.getCode() + " " + result.getResponse());
+        if ((result.getCode() < 200 || result.getCode() > 299) && result.getCode() != 304) {
+            ChatServer.warn("---------- Error in /chat: " + result.getCode() + " " + result.getResponse());
             byte[] bytes = result.getResponse().getBytes("UTF-8");
             exchange.sendResponseHeaders(result.getCode(), bytes.length);
             OutputStream os = exchange.getResponseBody();
@@ -66,7 +82,7 @@ public class ChannelHandler implements HttpHandler {
      * @param exchange
      * @return a {@code Result} object that includes the HTTP status code and 
      * a response message
-     * @throws IOException if {@code InputStream} fails to close or if sending response headers fails
+     * @throws IOException if reading the request or sending response headers fails
      * @throws SQLException if a database access error occurs
      */
     private Result handleCreateChannelRequest(HttpExchange exchange) throws IOException, SQLException {
@@ -75,7 +91,6 @@ public class ChannelHandler implements HttpHandler {
         result.setCode(200);
         result.setResponse("");
         String contentType = "";
-        JSONObject obj = null;
         String channel = "";
 
         if (!headers.containsKey("Content-Length")) {
@@ -90,25 +105,26 @@ public class ChannelHandler implements HttpHandler {
             return result;
         }
         if (contentType.equalsIgnoreCase("application/json")) {
-            InputStream stream = exchange.getRequestBody();
-            String text = new BufferedReader(new InputStreamReader(stream, StandardCharsets.UTF_8)).lines().collect(Collectors.joining("\n"));
-            ChatServer.log(text);
-            stream.close();
-            try {
-                obj = new JSONObject(text);
-                channel = obj.getString("channel name");
+            try (JsonRequestReader reader = JsonRequestReader.open(exchange, maxBodySize)) {
+                if (!reader.readObject(CHANNEL_FIELDS)) {
+                    throw new JSONException("A JSONObject text must begin with '{'.");
+                }
+                reader.endDocument();
+                channel = reader.getString(0);
             } catch (JSONException e) {
                 result.setCode(400);
                 result.setResponse("JSONException. Channel was not created. " + e.getMessage());
                 return result;
+            } catch (RequestReader.BodyTooLargeException e) {
+                result.setCode(413);
+                result.setResponse("Error: " + e.getMessage());
+                return result;
             }
-            ArrayList<String> channels = ChatDatabase.getInstance().getChannels();
-            if (channels.contains(channel)) {
+            if (!ChatDatabase.getInstance().createChannel(channel)) {
                 result.setCode(400);
                 result.setResponse("Error: invalid channel name.");
                 return result;
             }
-            ChatDatabase.getInstance().createChannel(channel);
             result.setResponse("New channel called \"" + channel + "\" created.");
             ChatServer.log(result.getResponse());
             byte[] bytes = result.getResponse().getBytes("UTF-8");
@@ -124,31 +140,38 @@ public class ChannelHandler implements HttpHandler {
     }
     /**
      * Handles GET requests from clients. Returns a list of existing channels to
-     * the client.
+     * the client. The response carries an {@code ETag} that changes whenever a
+     * channel is created, and a request whose {@code If-None-Match} matches it
+     * is answered with 304.
      * 
      * @param exchange the {@code HttpExchange} containing the request from the
      * client and used to send the response
      * @return a {@code Result} object that includes the HTTP status code and 
      * a response message
-     * @throws SQLException if a database access error occurs
      * @throws IOException if sending response headers fails or if 
      * writing to the {@code OutputStream} or closing it fails
      */
-    private Result handleGetChannelRequest(HttpExchange exchange) throws SQLException, IOException {
+    private Result handleGetChannelRequest(HttpExchange exchange) throws IOException {
         Result result = new Result();
         result.setCode(200);
         result.setResponse("");
 
-        String response = "List of existing channels: \n";
-        ArrayList<String> channels = ChatDatabase.getInstance().getChannels();
+        // The tag is read before the list, so that it is never newer than the list sent with it.
+        String etag = ChatDatabase.getInstance().getChannelsETag();
+        exchange.getResponseHeaders().set("ETag", etag);
+        if (ETags.ifNoneMatch(exchange.getRequestHeaders(), etag)) {
+            result.setCode(304);
+            exchange.sendResponseHeaders(result.getCode(), -1);
+            return result;
+        }
+        List<String> channels = ChatDatabase.getInstance().getChannels();
+        Writer writer = new BufferedWriter(new OutputStreamWriter(compressor.startResponse(exchange, result.getCode()), StandardCharsets.UTF_8));
+        writer.write("List of existing channels: \n");
         for (String channel : channels) {
-            response = response.concat(channel + "\n");
+            writer.write(channel);
+            writer.write("\n");
         }
-        byte[] bytes = response.toString().getBytes("UTF-8");
-        exchange.sendResponseHeaders(result.getCode(), bytes.length);
-        OutputStream os = exchange.getResponseBody();
-        os.write(bytes);
-        os.close();
+        writer.close();
         return result;       
     }
        
@@ -0,0 +1,104 @@
+package com.tuomasmattila.chatserver;
+
+import java.security.SecureRandom;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An in-memory registry of the existing chat channels. The registry is filled
+ * from the database when it is opened and updated whenever a channel is
+ * created, so checking whether a channel exists or listing the channels does
+ * not need any database access.
+ *
+ * The registry also keeps versions that change whenever the list of channels
+ * or the messages of a channel change. They are used as entity tags, so
+ * that conditional requests can be answered without reading any messages.
+ * Versions are taken from one counter, so two channels never share a version
+ * unless neither has had messages since the server started. The counter is
+ * not persisted; a random epoch chosen at startup is part of every tag so
+ * tags from before a restart never match.
+ */
+public class ChannelRegistry {
+
+    private final Set<String> channels = ConcurrentHashMap.newKeySet();
+    private final List<String> orderedChannels = new CopyOnWriteArrayList<>();
+    private final ConcurrentHashMap<String, Long> channelVersions = new ConcurrentHashMap<>();
+    private final AtomicLong versionCounter = new AtomicLong();
+    private final String epoch = Long.toString(new SecureRandom().nextLong() & Long.MAX_VALUE, 36);
+    private volatile long registryVersion;
+
+    /**
+     * Checks whether a channel exists.
+     *
+     * @param channel the name of the channel
+     * @return {@code true} if the channel exists, otherwise {@code false}
+     */
+    public boolean contains(String channel) {
+        return channels.contains(channel);
+    }
+
+    /**
+     * Adds a channel to the registry.
+     *
+     * @param channel the name of the channel
+     * @return {@code true} if the channel was added, {@code false} if it
+     * already was in the registry
+     */
+    public boolean add(String channel) {
+        if (channels.add(channel)) {
+            orderedChannels.add(channel);
+            registryVersion = versionCounter.incrementAndGet();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Returns the names of the channels in the order they were created.
+     *
+     * @return an unmodifiable {@code List<String>} of the channels' names
+     */
+    public List<String> getChannels() {
+        return Collections.unmodifiableList(orderedChannels);
+    }
+
+    /**
+     * Changes the version of a channel after a message has been stored in it.
+     * Must be called only after the message can be read, so that a version is
+     * never paired with messages older than it.
+     *
+     * @param channel the name of the channel
+     */
+    public void messageAdded(String channel) {
+        channelVersions.put(channel, versionCounter.incrementAndGet());
+    }
+
+    /**
+     * Returns the entity tag of a channel's messages. The tag must be read
+     * before the messages it is sent with.
+     *
+     * @param channel the name of the channel
+     * @return a weak entity tag that changes whenever a message is added to the channel
+     */
+    public String getChannelETag(String channel) {
+        return "W/\"" + epoch + "-c" + channelVersions.getOrDefault(channel, 0L) + "\"";
+    }
+
+    /**
+     * Returns the entity tag of the list of channels.
+     *
+     * @return a weak entity tag that changes whenever a channel is created
+     */
+    public String getRegistryETag() {
+        return "W/\"" + epoch + "-r" + registryVersion + "\"";
+    }
+
+    public int size() {
+        return channels.size();
+    }
+
+}
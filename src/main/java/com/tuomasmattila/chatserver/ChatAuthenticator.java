@@ -6,19 +6,30 @@ import com.sun.net.httpserver.BasicAuthenticator;
  * {@code ChatAuthenticator} extends the {@code BasicAuthenticator} class. It is used
  * for cheking the credentials of the users trying to interact with the
  * server and adding users to the database.
+ * 
+ * Successful verifications are kept in a {@code CredentialCache}, so clients
+ * that poll the server do not pay for the password hashing on every request.
+ * The cache size and time to live can be set with the system properties
+ * {@code chatserver.auth.cache.size} and {@code chatserver.auth.cache.ttl} (seconds).
  */
 public class ChatAuthenticator extends BasicAuthenticator {
 
+    private final CredentialCache credentialCache;
+
     /**
      * Used for authenticating users that try to login or register.
      * Extends {@code BasicAuthenticator}.
      */
     public ChatAuthenticator() {
         super("chat");
+        int cacheSize = Integer.getInteger("chatserver.auth.cache.size", 10000);
+        long cacheTtl = Long.getLong("chatserver.auth.cache.ttl", 300);
+        credentialCache = new CredentialCache(cacheSize, cacheTtl * 1000);
     }
 
     /**
      * Checks whether the user trying to make requests is a valid user in the database.
+     * Recently verified credentials are answered from the credential cache.
      * 
      * @param username the username provided by the client in the request
      * @param password the password provided by the client in the request
@@ -26,7 +37,14 @@ public class ChatAuthenticator extends BasicAuthenticator {
      */
     @Override
     public boolean checkCredentials(String username, String password) {
-        return ChatDatabase.getInstance().validateUser(username, password);
+        if (credentialCache.contains(username, password)) {
+            return true;
+        }
+        boolean valid = ChatDatabase.getInstance().validateUser(username, password);
+        if (valid) {
+            credentialCache.put(username, password);
+        }
+        return valid;
     }
 
     /**
@@ -40,4 +58,8 @@ public class ChatAuthenticator extends BasicAuthenticator {
         return ChatDatabase.getInstance().insertUser(user);
     }
 
+    public CredentialCache getCredentialCache() {
+        return credentialCache;
+    }
+
 }
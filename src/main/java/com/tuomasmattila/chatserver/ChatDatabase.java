@@ -1,13 +1,18 @@
 package com.tuomasmattila.chatserver;
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.security.SecureRandom;
 import java.sql.Connection;
-import java.sql.DriverManager;
+import java.sql.PreparedStatement;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.ArrayList;
 import java.util.Base64;
+import java.util.List;
 
 import org.apache.commons.codec.digest.Crypt;
 
@@ -18,11 +23,93 @@ import java.sql.ResultSet;
  * users' usernames, passwords and emails and information about messages sent
  * to the database. Message information contains the name of the sender, the
  * message itself and the time it was sent.
+ * 
+ * The database runs in WAL mode behind a {@code ConnectionPool}: reads use one of
+ * several read-only connections and can run in parallel, while writes go through
+ * a single writer connection. The number of read connections and the busy timeout
+ * can be set with the system properties {@code chatserver.db.readers} and
+ * {@code chatserver.db.busyTimeout} (milliseconds). All queries are parameterized
+ * statements that are prepared once per connection and then reused.
+ * 
+ * Messages are stored in a {@code MessageStore}, chosen with the system
+ * property {@code chatserver.store} (see {@code openMessageStore}). New
+ * messages are written by a {@code MessageWriter} that commits them in
+ * batches. The batching can be tuned with the system properties
+ * {@code chatserver.db.writeQueueSize}, {@code chatserver.db.writeBatchSize},
+ * {@code chatserver.db.writeLingerMillis} and {@code chatserver.db.writeTimeoutMillis}.
+ * 
+ * The channels are kept in a {@code ChannelRegistry} that is loaded when the
+ * database is opened, so channel checks do not query the database.
+ * 
+ * The newest messages of each channel are kept in a {@code MessageCache}, and
+ * {@code getMessages} only queries the database when a request reaches past
+ * the cached messages. The number of cached messages per channel and the memory
+ * budget of the cache can be set with the system properties
+ * {@code chatserver.cache.channelCapacity} and {@code chatserver.cache.maxBytes}.
+ * 
+ * The schema is versioned with SQLite's {@code user_version}. When the database
+ * is opened, the migrations in {@code MIGRATIONS} that have not been applied
+ * yet are run in order, each in its own transaction.
+ * 
+ * Messages are indexed for full-text search in an FTS5 table. The messages
+ * stored before the index was created are indexed by a {@code SearchIndexBackfill}
+ * in the background, in chunks of {@code chatserver.search.backfillChunk} messages.
  */
 public class ChatDatabase {
 
-    private static ChatDatabase singleton = null;
-    private static Connection dbConnection = null;
+    private static final String COUNT_USERS_BY_NAME = "select count(*) from users where username = ?";
+    private static final String INSERT_USER = "insert into users values (?, ?, ?, ?)";
+    private static final String SELECT_PASSWORD = "select password from users where username = ?";
+    private static final String SEARCH_MESSAGES = "select m.* from messages_fts join messages m on m.id = messages_fts.rowid where messages_fts match ?1 and (?2 is null or m.channel = ?2) and (?3 is null or m.user = ?3) and m.sent >= ?4 and m.sent <= ?5 order by messages_fts.rank limit ?6 offset ?7";
+    private static final String COUNT_BACKFILL = "select count(*) from search_backfill";
+    private static final String INSERT_CHANNEL = "insert or ignore into channels values (?)";
+    private static final String SELECT_CHANNELS = "select * from channels";
+
+    // The current time as unix time with milliseconds, in SQL.
+    private static final String NOW_MILLIS = "cast((julianday('now') - 2440587.5) * 86400000 as integer)";
+
+    /**
+     * Schema migrations. The database's {@code user_version} tells how many of
+     * them have been applied. New migrations are added to the end.
+     */
+    private static final String[][] MIGRATIONS = {
+        // 1: reading a channel's messages in order of sending uses an index instead of a table scan.
+        {"create index if not exists messages_channel_sent on messages(channel, sent, user)"},
+        // 2: messages are keyed by a server-assigned id instead of (user, sent). Existing
+        // messages get ids in the same format as MessageIdGenerator, in order of sending.
+        // The sending times come from the clients, so times in the future are clamped to
+        // the time of the migration; otherwise the ids of all new messages would follow them.
+        {"create table messages_new (id integer PRIMARY KEY, user varchar(50) NOT NULL, message varchar(255) NOT NULL, sent integer NOT NULL, channel varchar(50) DEFAULT 'default', FOREIGN KEY(user) REFERENCES users(username), FOREIGN KEY(channel) REFERENCES channels(name))",
+         "insert into messages_new (id, user, message, sent, channel) select (min(sent, " + NOW_MILLIS + ") << " + MessageIdGenerator.SEQUENCE_BITS + ") + row_number() over (partition by min(sent, " + NOW_MILLIS + ") order by sent, user) - 1, user, message, sent, channel from messages",
+         "drop table messages",
+         "alter table messages_new rename to messages",
+         "create index messages_channel_sent on messages(channel, sent)",
+         "create index messages_channel_id on messages(channel, id)"},
+        // 3: full-text search. New messages are indexed by a trigger; the messages
+        // up to the newest existing one are indexed by SearchIndexBackfill.
+        {"create virtual table messages_fts using fts5(message, content='messages', content_rowid='id')",
+         "create trigger messages_fts_insert after insert on messages begin insert into messages_fts(rowid, message) values (new.id, new.message); end",
+         "create trigger messages_fts_delete after delete on messages begin insert into messages_fts(messages_fts, rowid, message) values ('delete', old.id, old.message); end",
+         "create table search_backfill (high integer NOT NULL, position integer NOT NULL)",
+         "insert into search_backfill select id, 0 from messages order by id desc limit 1"},
+    };
+
+    private static final ChatDatabase singleton = new ChatDatabase();
+    private static final LatencyHistogram insertUserTimer = timer("insertUser");
+    private static final LatencyHistogram validateUserTimer = timer("validateUser");
+    private static final LatencyHistogram insertMessageTimer = timer("insertMessage");
+    private static final LatencyHistogram insertMessagesTimer = timer("insertMessages");
+    private static final LatencyHistogram getMessagesTimer = timer("getMessages");
+    private static final LatencyHistogram getMessagesPageTimer = timer("getMessagesPage");
+    private static final LatencyHistogram searchMessagesTimer = timer("searchMessages");
+    private static final LatencyHistogram createChannelTimer = timer("createChannel");
+    private static ConnectionPool connectionPool = null;
+    private static MessageStore messageStore = null;
+    private static MessageWriter messageWriter = null;
+    private static ChannelRegistry channelRegistry = null;
+    private static MessageCache messageCache = null;
+    private static SearchIndexBackfill searchBackfill = null;
+    private static MessageNotifier messageNotifier = new MessageNotifier();
     private static SecureRandom secureRandom = new SecureRandom();
 
     /**
@@ -32,10 +119,7 @@ public class ChatDatabase {
      * 
      * @return the singleton of the database
      */
-    public static synchronized ChatDatabase getInstance() {
-        if (null == singleton) {
-            singleton = new ChatDatabase();
-        }
+    public static ChatDatabase getInstance() {
         return singleton;
     }
 
@@ -43,9 +127,10 @@ public class ChatDatabase {
     }
 
     /**
-     * Initializes the connection to the database. 
+     * Opens the connection pool to the database. 
      * If the database file did not exist yet, the database will be initialized too
      * using the {@code initializeDatabase(Connection dbConnection)} method.
+     * The schema is then migrated to the latest version.
      * 
      * @param dbName the name of the database file including the full path to it
      * @throws SQLException if the attempt to establish a connection to the given 
@@ -58,12 +143,39 @@ public class ChatDatabase {
         if (tempfile.isDirectory() || tempfile.isFile()) {
             isFileOrDir = true;
         }
-        String JDBCConnectionAddress = "jdbc:sqlite:" + dbName;
-        dbConnection = DriverManager.getConnection(JDBCConnectionAddress);
-        ChatServer.log("Connected to the database.");
+        int readers = Integer.getInteger("chatserver.db.readers", Math.max(2, Runtime.getRuntime().availableProcessors()));
+        int busyTimeout = Integer.getInteger("chatserver.db.busyTimeout", 5000);
+        connectionPool = new ConnectionPool(dbName, readers, busyTimeout);
+        ChatServer.log("Connected to the database with " + readers + " read connections.");
         if (isFileOrDir == false) {
             ChatServer.log("Initializing database...");
-            initializeDatabase(dbConnection);
+            try (PooledConnection writer = connectionPool.getWriter()) {
+                initializeDatabase(writer.getConnection());
+            }
+        }
+        try (PooledConnection writer = connectionPool.getWriter()) {
+            migrateSchema(writer.getConnection());
+        }
+        channelRegistry = loadChannels();
+        ChatServer.log("Loaded " + channelRegistry.size() + " channels.");
+        messageStore = openMessageStore(dbName);
+        int cacheCapacity = Integer.getInteger("chatserver.cache.channelCapacity", 1000);
+        long cacheBytes = Long.getLong("chatserver.cache.maxBytes", 64L * 1024 * 1024);
+        messageCache = new MessageCache(this::loadLatestMessages, cacheCapacity, cacheBytes);
+        messageCache.warm(channelRegistry.getChannels());
+        int writeQueueSize = Integer.getInteger("chatserver.db.writeQueueSize", 4096);
+        int writeBatchSize = Integer.getInteger("chatserver.db.writeBatchSize", 256);
+        long writeLinger = Long.getLong("chatserver.db.writeLingerMillis", 2);
+        long writeTimeout = Long.getLong("chatserver.db.writeTimeoutMillis", 30000);
+        MessageIdGenerator idGenerator = new MessageIdGenerator(messageStore.getLastMessageId());
+        messageWriter = new MessageWriter(messageStore, idGenerator, this::messageCommitted, writeQueueSize, writeBatchSize, writeLinger, busyTimeout, writeTimeout);
+        messageWriter.start();
+        if (isSearchSupported() && hasSearchBackfill()) {
+            int chunkSize = Integer.getInteger("chatserver.search.backfillChunk", 1000);
+            long pause = Long.getLong("chatserver.search.backfillPauseMillis", 10);
+            ChatServer.log("Indexing existing messages for search in the background...");
+            searchBackfill = new SearchIndexBackfill(connectionPool, chunkSize, pause);
+            searchBackfill.start();
         }
     }
 
@@ -90,6 +202,41 @@ public class ChatDatabase {
             ChatServer.log("Database successfully initialized.");
     }
 
+    /**
+     * Applies the schema migrations that have not been applied yet. Each
+     * migration and the new {@code user_version} are committed together, so an
+     * interrupted migration is run again the next time the database is opened.
+     * 
+     * @param dbConnection the writer connection
+     * @throws SQLException if a migration fails or the database has a newer
+     * schema than this server knows
+     */
+    private void migrateSchema(Connection dbConnection) throws SQLException {
+        int version;
+        try (Statement statement = dbConnection.createStatement(); ResultSet rs = statement.executeQuery("pragma user_version")) {
+            version = rs.next() ? rs.getInt(1) : 0;
+        }
+        if (version > MIGRATIONS.length) {
+            throw new SQLException("Database schema version " + version + " is newer than this server supports (" + MIGRATIONS.length + ").");
+        }
+        for (; version < MIGRATIONS.length; version++) {
+            ChatServer.log("Migrating database schema to version " + (version + 1) + "...");
+            try (Statement statement = dbConnection.createStatement()) {
+                dbConnection.setAutoCommit(false);
+                for (String sql : MIGRATIONS[version]) {
+                    statement.execute(sql);
+                }
+                statement.execute("pragma user_version = " + (version + 1));
+                dbConnection.commit();
+            } catch (SQLException e) {
+                dbConnection.rollback();
+                throw e;
+            } finally {
+                dbConnection.setAutoCommit(true);
+            }
+        }
+    }
+
     /**
      * Inserts user information to the database.
      * Passwords are hashed before storing them top the database.
@@ -98,13 +245,15 @@ public class ChatDatabase {
      * @return {@code true} if registration was successful, otherwise {@code false}
      */
     public boolean insertUser(User user) {
-        String query = "select count(*) from users where username='" + user.getUsername() + "'";
-        try {
-            Statement queryStatement = dbConnection.createStatement();
-            ResultSet rs = queryStatement.executeQuery(query);
-            if (rs.getBoolean("count(*)")) {
+        long start = System.nanoTime();
+        try (PooledConnection writer = connectionPool.getWriter()) {
+            PreparedStatement queryStatement = writer.prepare(COUNT_USERS_BY_NAME);
+            queryStatement.setString(1, user.getUsername());
+            ResultSet rs = queryStatement.executeQuery();
+            boolean exists = rs.next() && rs.getInt(1) > 0;
+            rs.close();
+            if (exists) {
                 ChatServer.log("Invalid registration credentials.");
-                queryStatement.close();
                 return false;
             } else {
                 byte bytes[] = new byte[12];
@@ -112,15 +261,20 @@ public class ChatDatabase {
                 String saltBytes = new String(Base64.getEncoder().encode(bytes));
                 String salt = "$6$" + saltBytes;
                 String hashedPassword = Crypt.crypt(user.getPassword(), salt);
-                String insertStatement = "insert into users values (\"" + user.getUsername() + "\", \"" + hashedPassword + "\", \"" + salt + "\", \"" + user.getEmail() + "\")";
-                queryStatement.executeUpdate(insertStatement);
-                queryStatement.close();
+                PreparedStatement insertStatement = writer.prepare(INSERT_USER);
+                insertStatement.setString(1, user.getUsername());
+                insertStatement.setString(2, hashedPassword);
+                insertStatement.setString(3, salt);
+                insertStatement.setString(4, user.getEmail());
+                insertStatement.executeUpdate();
                 ChatServer.log("Registration successful.");
                 return true;
             }
         } catch (SQLException e) {
-            ChatServer.log(e.getMessage());
+            ChatServer.warn(e.getMessage());
             return false;
+        } finally {
+            insertUserTimer.recordSince(start);
         }
     }
 
@@ -134,60 +288,92 @@ public class ChatDatabase {
      * @return {@code true} if validating user was successful, otherwise returns {@code false}
      */
     public boolean validateUser(String username, String password) {
-        String query = "select password from users where username='" + username + "'";
-        Statement queryStatement = null;
-        ResultSet rs = null;
-
+        long start = System.nanoTime();
         try {
-            queryStatement = dbConnection.createStatement();
-            rs = queryStatement.executeQuery(query);
-            if (!rs.next()) {
-                ChatServer.log("Login failed: Invalid credentials.");
-                return false;
-            }
-            String hashedPassword = rs.getString("password");
-            if (hashedPassword.equals(Crypt.crypt(password, hashedPassword))) {
-                return true;
-            } else {
-                ChatServer.log("Login failed: Invalid credentials.");
-                return false;
+            return checkPassword(username, password);
+        } finally {
+            validateUserTimer.recordSince(start);
+        }
+    }
+
+    private boolean checkPassword(String username, String password) {
+        String hashedPassword = null;
+
+        try (PooledConnection reader = connectionPool.getReader()) {
+            PreparedStatement queryStatement = reader.prepare(SELECT_PASSWORD);
+            queryStatement.setString(1, username);
+            ResultSet rs = queryStatement.executeQuery();
+            if (rs.next()) {
+                hashedPassword = rs.getString("password");
             }
+            rs.close();
         } catch (SQLException e) {
             e.printStackTrace();
             return false;
-        } finally {
-            try {
-                if (queryStatement != null) {
-                    queryStatement.close();
-                }
-                if (rs != null) {
-                    rs.close();
-                }
-            } catch (SQLException e) {
-                e.printStackTrace();
-            }
+        }
+        // The password is hashed after the connection has been returned to the pool.
+        if (hashedPassword != null && hashedPassword.equals(Crypt.crypt(password, hashedPassword))) {
+            return true;
+        } else {
+            ChatServer.log("Login failed: Invalid credentials.");
+            return false;
         }
     }
 
     /**
-     * Inserts a message to the database
+     * Inserts a message to the database. The message is given its id and
+     * committed together with other concurrently sent messages, and this method
+     * returns after the commit.
      * 
      * @param message A {@code ChatMessage} object to be inserted into the database
      * @throws SQLException if a database access error occurs or this method 
      * is called on a closed connection
      */
     public void insertMessage(ChatMessage message) throws SQLException{
-        String msg = message.getMessage();
-        msg = msg.replaceAll("\"", "''"); // Handles quotes
-        String insert = "insert into messages values (\"" + message.getNick() + "\", \"" + msg + "\", " + message.dateAsInt() + ", \"" + message.getChannel() + "\")";
+        long start = System.nanoTime();
+        try {
+            messageWriter.write(message);
+        } finally {
+            insertMessageTimer.recordSince(start);
+        }
+    }
 
-        Statement insertStatement = dbConnection.createStatement();
-        insertStatement.executeUpdate(insert);
-        insertStatement.close();
+    /**
+     * Inserts several messages to the database in one transaction. If the
+     * transaction fails, the messages are inserted one by one, and the ones that
+     * can be stored are stored.
+     * 
+     * @param messages the {@code ChatMessage} objects to be inserted into the database
+     * @return the error of inserting each message, in the same order as the
+     * messages; {@code null} for the messages that were stored
+     * @throws SQLException if the messages could not be queued for writing
+     */
+    public SQLException[] insertMessages(List<ChatMessage> messages) throws SQLException {
+        long start = System.nanoTime();
+        try {
+            return messageWriter.writeAll(messages);
+        } finally {
+            insertMessagesTimer.recordSince(start);
+        }
     }
 
     /**
-     * Gets messages from the database.
+     * Called by the {@code MessageWriter} for every committed message, in id order
+     * and before {@code insertMessage} returns. Adds the message to the message
+     * cache, changes the channel's version and publishes the message to the
+     * channel's listeners.
+     * 
+     * @param message the committed {@code ChatMessage}
+     */
+    private void messageCommitted(ChatMessage message) {
+        messageCache.add(message);
+        channelRegistry.messageAdded(message.getChannel());
+        messageNotifier.publish(message);
+    }
+
+    /**
+     * Gets messages from the message cache, or from the database if the
+     * request reaches past the cached messages.
      * 
      * @param since {@code long} int that defines the timestamp from which point onwards this 
      * method should get the messages. If -1, this method returns the last 20 messages
@@ -196,127 +382,361 @@ public class ChatDatabase {
      * exception occurs
      */
     public ArrayList<ChatMessage> getMessages(long since, String channel) {
-        String query = "";
-        if (since != -1) {
-            query = "SELECT * FROM messages WHERE sent > " + since + " AND channel = \"" + channel + "\" order by sent asc";
-        } else {
-            query = "SELECT * FROM (SELECT * FROM messages WHERE channel =\"" + channel + "\" ORDER BY sent DESC LIMIT 20) ORDER BY sent ASC";
+        long start = System.nanoTime();
+        try {
+            return readMessages(since, channel);
+        } finally {
+            getMessagesTimer.recordSince(start);
+        }
+    }
+
+    private ArrayList<ChatMessage> readMessages(long since, String channel) {
+        List<ChatMessage> cached = since != -1 ? messageCache.getSince(channel, since) : messageCache.getLatest(channel, 20);
+        if (cached != null) {
+            return new ArrayList<>(cached);
         }
         try {
-            Statement queryStatement = dbConnection.createStatement();
-            ResultSet rs = queryStatement.executeQuery(query);
-            if (rs == null) {
-                queryStatement.close();
-                return null;
-            } else {
-                ArrayList<ChatMessage> messages = new ArrayList<>();
-                while (rs.next()) {
-                    ChatMessage message = new ChatMessage();
-                    message.setNick(rs.getString("user"));
-                    message.setMessage(rs.getString("message"));
-                    message.setSent(rs.getLong("sent"));
-                    message.setChannel(rs.getString("channel"));
-                    messages.add(message);
-                }
-                queryStatement.close();
-                return messages;
-            }
+            return since != -1 ? messageStore.getMessagesSince(channel, since) : messageStore.getLatestMessages(channel, 20);
         } catch (SQLException e) {
-            ChatServer.log(e.getMessage());
+            ChatServer.warn(e.getMessage());
             return null;
         }
     }
 
     /**
-     * Returns the number of messages stored in the database.
+     * Gets one page of a channel's history from the message store. Messages are
+     * ordered by their ids, and the page is found through an index, so reading
+     * a page costs the same no matter how far back in the history it is.
      * 
-     * @return the number of messages in the database or 0 if an exception occurs
+     * @param channel the name of the channel as a {@code String}
+     * @param cursor the id of the message to read from, or -1 for the newest messages
+     * @param before {@code true} to read the messages before the cursor,
+     * {@code false} to read the messages after it
+     * @param limit the maximum number of messages
+     * @return the messages, oldest first, or {@code null} if an exception occurs
      */
-    public int numberOfMessages() {
-        String query = "select count(*) from messages";
+    public ArrayList<ChatMessage> getMessagesPage(String channel, long cursor, boolean before, int limit) {
+        long start = System.nanoTime();
         try {
-            Statement queryStatement = dbConnection.createStatement();
-            ResultSet rs = queryStatement.executeQuery(query);
-            int count = rs.getInt("count(*)");
-            queryStatement.close();
-            return count;
+            return messageStore.getMessagesPage(channel, cursor, before, limit);
         } catch (SQLException e) {
-            ChatServer.log(e.getMessage());
-            return 0;
+            ChatServer.warn(e.getMessage());
+            return null;
+        } finally {
+            getMessagesPageTimer.recordSince(start);
+        }
+    }
+
+    /**
+     * Searches the messages with the full-text index. The results are ordered by
+     * relevance, best match first. Messages stored before the index existed are
+     * found only after the background backfill has indexed them. Only available
+     * when the messages are stored in SQLite.
+     * 
+     * @param query an FTS5 query, such as {@code "hello" "wor"*}
+     * @param channel the channel to search, or {@code null} for all channels
+     * @param user the sender of the messages, or {@code null} for all senders
+     * @param from the earliest sending time in Unix milliseconds
+     * @param to the latest sending time in Unix milliseconds
+     * @param limit the maximum number of messages
+     * @param offset the number of best matches to skip
+     * @return the matching messages
+     * @throws SQLException if a database access error occurs or the query is not valid
+     */
+    public ArrayList<ChatMessage> searchMessages(String query, String channel, String user, long from, long to, int limit, int offset) throws SQLException {
+        if (!isSearchSupported()) {
+            throw new SQLException("Search is not supported by the message store.");
+        }
+        long start = System.nanoTime();
+        try (PooledConnection reader = connectionPool.getReader()) {
+            PreparedStatement queryStatement = reader.prepare(SEARCH_MESSAGES);
+            queryStatement.setString(1, query);
+            queryStatement.setString(2, channel);
+            queryStatement.setString(3, user);
+            queryStatement.setLong(4, from);
+            queryStatement.setLong(5, to);
+            queryStatement.setInt(6, limit);
+            queryStatement.setInt(7, offset);
+            return SqliteMessageStore.readMessages(queryStatement.executeQuery());
+        } finally {
+            searchMessagesTimer.recordSince(start);
         }
     }
 
     /**
-     * Checks whether the database does not have any messages in it.
+     * Tells whether the messages can be searched. The full-text index is kept
+     * in SQLite, so search needs the messages to be stored there too.
+     * 
+     * @return {@code true} if {@code searchMessages} can be used
+     */
+    public boolean isSearchSupported() {
+        return messageStore instanceof SqliteMessageStore;
+    }
+
+    /**
+     * Tells whether every stored message can be found with {@code searchMessages}.
+     * 
+     * @return {@code false} while the search index backfill is running
+     */
+    public boolean isSearchIndexComplete() {
+        return searchBackfill == null || searchBackfill.isComplete();
+    }
+
+    /**
+     * Loads the newest messages of a channel from the message store. Used for
+     * filling the message cache.
+     * 
+     * @param channel the name of the channel as a {@code String}
+     * @param count the maximum number of messages
+     * @return the messages, oldest first
+     * @throws SQLException if a database access error occurs
+     */
+    private List<ChatMessage> loadLatestMessages(String channel, int count) throws SQLException {
+        return messageStore.getLatestMessages(channel, count);
+    }
+
+    /**
+     * Returns the number of messages stored in the database.
      * 
-     * @return {@code true} if there are no messages in the database, 
-     * {@code false} otherwise
+     * @return the number of messages in the database or 0 if an exception occurs
      */
-    public boolean isEmpty() {
-        String query = "select count(*) from messages";
+    public int numberOfMessages() {
         try {
-            Statement queryStatement = dbConnection.createStatement();
-            ResultSet rs = queryStatement.executeQuery(query);
-            if (rs.getBoolean("count(*)")) {
-                queryStatement.close();
-                return false;
-            } else {
-                queryStatement.close();
-                return true;
-            }
+            return messageStore.numberOfMessages();
         } catch (SQLException e) {
-            ChatServer.log(e.getMessage());
-            return true;
+            ChatServer.warn(e.getMessage());
+            return 0;
         }
     }
 
     /**
-     * Closes the connection to the database.
+     * Closes the connections to the database.
      * 
      * @throws SQLException if a database access error occurs
      */
     public void close() throws SQLException {
-        dbConnection.close();
+        if (searchBackfill != null) {
+            searchBackfill.close();
+        }
+        messageWriter.close();
+        messageStore.close();
+        connectionPool.close();
         ChatServer.log("Database closed.");
     }
 
     /**
-     * Creates a new channel into the database.
+     * Creates a new channel into the database. The database decides whether the
+     * channel already exists, so two clients creating the same channel at the same
+     * time cannot both succeed.
      * 
      * @param channelName the name of the channel to be created as a {@code String}
+     * @return {@code true} if the channel was created, {@code false} if a channel
+     * with the same name already exists
      * @throws SQLException if a database access error occurs
      */
-    public void createChannel(String channelName) throws SQLException {
-        String insert = "insert into channels values (\"" + channelName + "\")";
+    public boolean createChannel(String channelName) throws SQLException {
+        long start = System.nanoTime();
+        try (PooledConnection writer = connectionPool.getWriter()) {
+            PreparedStatement insertStatement = writer.prepare(INSERT_CHANNEL);
+            insertStatement.setString(1, channelName);
+            if (insertStatement.executeUpdate() == 0) {
+                return false;
+            }
+            channelRegistry.add(channelName);
+            return true;
+        } finally {
+            createChannelTimer.recordSince(start);
+        }
+    }
+
+    /**
+     * Checks whether a channel exists. Does not access the database.
+     * 
+     * @param channelName the name of the channel
+     * @return {@code true} if the channel exists, otherwise {@code false}
+     */
+    public boolean channelExists(String channelName) {
+        return channelRegistry.contains(channelName);
+    }
+
+    /**
+     * Returns a list of existing channels. Does not access the database.
+     * 
+     * @return a {@code List<String>} of the channels' names in the order they were created
+     */
+    public List<String> getChannels() {
+        return channelRegistry.getChannels();
+    }
 
-        Statement insertStatement = dbConnection.createStatement();
-        insertStatement.executeUpdate(insert);
-        insertStatement.close();
+    /**
+     * Returns the entity tag of a channel's messages. Does not access the database.
+     * 
+     * @param channelName the name of the channel
+     * @return a weak entity tag that changes whenever a message is stored in the channel
+     */
+    public String getChannelETag(String channelName) {
+        return channelRegistry.getChannelETag(channelName);
     }
 
     /**
-     * Returns a list of existing channels in the database.
+     * Returns the entity tag of the list of channels. Does not access the database.
      * 
-     * @return an {@code ArrayList<String>} of the channels' names
+     * @return a weak entity tag that changes whenever a channel is created
+     */
+    public String getChannelsETag() {
+        return channelRegistry.getRegistryETag();
+    }
+
+    /**
+     * Checks whether some existing messages have not been added to the search index yet.
+     * 
+     * @return {@code true} if the search index backfill has not finished
      * @throws SQLException if a database access error occurs
      */
-    public ArrayList<String> getChannels() throws SQLException {
-        String query = "select * from channels";
+    private boolean hasSearchBackfill() throws SQLException {
+        try (PooledConnection reader = connectionPool.getReader()) {
+            ResultSet rs = reader.prepare(COUNT_BACKFILL).executeQuery();
+            boolean pending = rs.next() && rs.getInt(1) > 0;
+            rs.close();
+            return pending;
+        }
+    }
 
-        Statement queryStatement = dbConnection.createStatement();
-        ResultSet rs = queryStatement.executeQuery(query);
-        if (rs == null) {
-            queryStatement.close();
-            return null;
-        } else {
-            ArrayList<String> channels = new ArrayList<>();
+    /**
+     * Opens the message store chosen with the system property
+     * {@code chatserver.store}: "sqlite" (the default) stores the messages in
+     * the database, and "log" in a {@code LogMessageStore} in the directory
+     * {@code chatserver.store.logDir}, with segments of up to
+     * {@code chatserver.store.segmentSize} bytes.
+     *
+     * The first time the log is used on a database that has messages, they are
+     * copied into the log, so that switching to the log does not hide them.
+     * Only the messages newer than the newest one in the log are copied, so an
+     * interrupted copy continues where it stopped. The messages are not copied
+     * back when switching to "sqlite" again; the server then warns that the
+     * messages in the log are not used.
+     * 
+     * @param dbName the name of the database file, used for the default log directory
+     * @return the opened {@code MessageStore}
+     * @throws SQLException if the store cannot be opened
+     */
+    private MessageStore openMessageStore(String dbName) throws SQLException {
+        String store = System.getProperty("chatserver.store", "sqlite");
+        Path logDirectory = Paths.get(System.getProperty("chatserver.store.logDir", dbName + ".messages"));
+        SqliteMessageStore sqliteStore = new SqliteMessageStore(connectionPool);
+        if (store.equals("sqlite")) {
+            if (Files.isDirectory(logDirectory)) {
+                ChatServer.warn("Storing messages in SQLite; the messages in the log at " + logDirectory + " are not used.");
+            }
+            return sqliteStore;
+        }
+        if (!store.equals("log")) {
+            throw new SQLException("Unknown message store: " + store);
+        }
+        int segmentSize = Integer.getInteger("chatserver.store.segmentSize", 16 * 1024 * 1024);
+        LogMessageStore logStore;
+        try {
+            logStore = new LogMessageStore(logDirectory, segmentSize);
+        } catch (IOException e) {
+            throw new SQLException("Could not open the message log: " + e.getMessage(), e);
+        }
+        try {
+            importMessages(sqliteStore, logStore);
+        } catch (SQLException e) {
+            logStore.close();
+            throw e;
+        }
+        ChatServer.log("Storing messages in the log at " + logDirectory + ".");
+        return logStore;
+    }
+
+    /**
+     * Copies the messages in the database that are newer than the newest
+     * message in the log into the log, in id order.
+     */
+    private void importMessages(SqliteMessageStore from, LogMessageStore to) throws SQLException {
+        long lastId = to.getLastMessageId();
+        if (from.getLastMessageId() <= lastId) {
+            return;
+        }
+        ChatServer.log("Copying the messages in the database to the message log...");
+        int chunkSize = Integer.getInteger("chatserver.db.writeBatchSize", 256) * 4;
+        long copied = 0;
+        ArrayList<ChatMessage> messages;
+        while (!(messages = from.getMessagesAfter(lastId, chunkSize)).isEmpty()) {
+            to.append(messages);
+            lastId = messages.get(messages.size() - 1).getId();
+            copied += messages.size();
+        }
+        ChatServer.log("Copied " + copied + " messages to the message log.");
+    }
+
+    /**
+     * Reads the existing channels from the database into a new registry.
+     * 
+     * @return a {@code ChannelRegistry} containing the channels in the database
+     * @throws SQLException if a database access error occurs
+     */
+    private ChannelRegistry loadChannels() throws SQLException {
+        ChannelRegistry registry = new ChannelRegistry();
+        try (PooledConnection reader = connectionPool.getReader()) {
+            ResultSet rs = reader.prepare(SELECT_CHANNELS).executeQuery();
             while (rs.next()) {
-                String channel = rs.getString("name");
-                channels.add(channel);
+                registry.add(rs.getString("name"));
             }
-            queryStatement.close();
-            return channels;
+            rs.close();
         }
+        return registry;
+    }
+
+    /**
+     * Returns the store the messages are kept in. Used by {@code MessageStoreBenchmark}.
+     * 
+     * @return the open {@code MessageStore}
+     */
+    MessageStore getMessageStore() {
+        return messageStore;
+    }
+
+    /**
+     * Returns the notifier that publishes every stored message to the listeners
+     * of its channel.
+     * 
+     * @return the {@code MessageNotifier} of the database
+     */
+    public MessageNotifier getMessageNotifier() {
+        return messageNotifier;
+    }
+
+    /**
+     * Returns the number of read connections currently in use.
+     *
+     * @return the number of borrowed read connections
+     */
+    public int getReadersInUse() {
+        return connectionPool.getReadersInUse();
+    }
+
+    /**
+     * Returns the number of messages waiting to be written.
+     *
+     * @return the depth of the write queue
+     */
+    public int getWriteQueueDepth() {
+        return messageWriter.getQueueDepth();
+    }
+
+    private static LatencyHistogram timer(String method) {
+        return Metrics.getInstance().timer("chatserver_db_duration_seconds", "Time spent in a ChatDatabase method.", "method=\"" + method + "\"");
+    }
+
+    /**
+     * Returns the statistics of the connection pool and its statement caches.
+     * 
+     * @return the statistics as a {@code String}
+     */
+    public String getStatsAsString() {
+        return connectionPool.getStatsAsString() + "\n" + messageStore.getStatsAsString() + "\n" + messageWriter.getStatsAsString() + "\n" + messageCache.getStatsAsString();
     }
 
 }
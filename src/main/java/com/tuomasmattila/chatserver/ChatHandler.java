@@ -1,28 +1,28 @@
 package com.tuomasmattila.chatserver;
 
-import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.OutputStream;
-import java.nio.charset.StandardCharsets;
 import java.sql.SQLException;
+import java.time.Instant;
 import java.time.OffsetDateTime;
 import java.time.ZoneId;
 import java.time.ZonedDateTime;
 import java.time.format.DateTimeFormatter;
 import java.time.format.DateTimeParseException;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Locale;
-import java.util.stream.Collectors;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
 
 import com.sun.net.httpserver.Headers;
 import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpHandler;
 
-import org.json.JSONArray;
 import org.json.JSONException;
-import org.json.JSONObject;
 
 /**
  * A Class that handles POST and GET requests from clients. 
@@ -31,6 +31,44 @@ import org.json.JSONObject;
 public class ChatHandler implements HttpHandler {
 
     private static final DateTimeFormatter httpDateFormatter = DateTimeFormatter.ofPattern("EEE, dd MMM yyyy HH:mm:ss.SSS z", Locale.ENGLISH).withZone(ZoneId.of("GMT"));
+    private static final int DEFAULT_PAGE_SIZE = 20;
+    private static final int MAX_PAGE_SIZE = 100;
+    private static final byte[][] MESSAGE_FIELDS = RequestReader.fields("user", "message", "sent", "channel");
+    private static final int USER = 0;
+    private static final int MESSAGE = 1;
+    private static final int SENT = 2;
+    private static final int CHANNEL = 3;
+
+    private final Executor executor;
+    private final ResponseCompressor compressor;
+    private final ScheduledThreadPoolExecutor longPollTimer;
+    private final long maxWaitSeconds;
+    private final int maxBatchSize;
+    private final long maxBodySize;
+
+    /**
+     * Handles POST and GET requests to the /chat context. The maximum time a
+     * long-polling request may wait is set with the system property
+     * {@code chatserver.longpoll.maxWait} (seconds), and the maximum number of
+     * messages in one POST with {@code chatserver.chat.maxBatchSize}.
+     * 
+     * @param executor the executor that answers long-polling requests
+     * @param compressor used to compress the responses
+     * @param maxBodySize the largest request body accepted, in bytes
+     */
+    public ChatHandler(Executor executor, ResponseCompressor compressor, long maxBodySize) {
+        this.executor = executor;
+        this.compressor = compressor;
+        this.maxBodySize = maxBodySize;
+        this.maxWaitSeconds = Long.getLong("chatserver.longpoll.maxWait", 30);
+        this.maxBatchSize = Integer.getInteger("chatserver.chat.maxBatchSize", 1000);
+        this.longPollTimer = new ScheduledThreadPoolExecutor(1, runnable -> {
+            Thread thread = new Thread(runnable, "long-poll-timer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.longPollTimer.setRemoveOnCancelPolicy(true);
+    }
 
     /**
      * Handles POST and GET requests from clients.
@@ -46,7 +84,9 @@ public class ChatHandler implements HttpHandler {
         result.setCode(200);
         result.setResponse("");
 
-        ChatServer.log("/chat: Request handled in thread " + Thread.currentThread().getId());
+        if (ChatServer.isDebugEnabled()) {
+            ChatServer.debug("/chat: Request handled in thread " + Thread.currentThread().getId());
+        }
         try {
             if (exchange.getRequestMethod().equalsIgnoreCase("POST")) {
                 result = handleChatMessageFromClient(exchange);
@@ -63,23 +103,41 @@ public class ChatHandler implements HttpHandler {
             result.setCode(500);
             result.setResponse("Error in handling the request: " + e.getMessage());
         }
-        if (result.getCode() < 200 || result.getCode() > 299) {
-            ChatServer.log("---------- Error in /chat: " + result.getCode() + " " + result.getResponse());
-            byte[] bytes = result.getResponse().getBytes("UTF-8");
-            exchange.sendResponseHeaders(result.getCode(), bytes.length);
-            OutputStream os = exchange.getResponseBody();
-            os.write(bytes);
-            os.close();
+        if (isError(result)) {
+            sendErrorResponse(exchange, result);
         }
     }
 
+    private static boolean isError(Result result) {
+        return (result.getCode() < 200 || result.getCode() > 299) && result.getCode() != 304;
+    }
+
     /**
-     * Handles a POST requests from clients.
+     * Sends an error response with the result's status code and message.
+     * 
+     * @param exchange the {@code HttpExchange} used to send the response
+     * @param result the {@code Result} containing the error
+     * @throws IOException if sending response headers fails or if 
+     * writing to the {@code OutputStream} or closing it fails
+     */
+    private void sendErrorResponse(HttpExchange exchange, Result result) throws IOException {
+        ChatServer.warn("---------- Error in /chat: " + result.getCode() + " " + result.getResponse());
+        byte[] bytes = result.getResponse().getBytes("UTF-8");
+        exchange.sendResponseHeaders(result.getCode(), bytes.length);
+        OutputStream os = exchange.getResponseBody();
+        os.write(bytes);
+        os.close();
+    }
+
+    /**
+     * Handles a POST requests from clients. The body is either one message as an
+     * object or several messages as an array (see {@code handleChatMessageBatch}),
+     * in JSON or in CBOR as told by the Content-Type (see {@code WireFormat}).
      * 
      * @param exchange the {@code HttpExchange} containing the request from the
      * client and used to send the response
      * @return a {@code Result} object that includes the HTTP status code and a response message.
-     * @throws IOException if {@code InputStream} fails to close or if sending response headers fails
+     * @throws IOException if reading the request or sending response headers fails
      */
     private Result handleChatMessageFromClient(HttpExchange exchange) throws IOException {
         Result result = new Result();
@@ -98,29 +156,28 @@ public class ChatHandler implements HttpHandler {
             result.setResponse("No content type in request.");
             return result;
         }
-        if (contentType.equalsIgnoreCase("application/json")) {
-            InputStream stream = exchange.getRequestBody();
-            String text = new BufferedReader(new InputStreamReader(stream, StandardCharsets.UTF_8)).lines().collect(Collectors.joining("\n"));
-            stream.close();
-            try {
-                JSONObject obj = new JSONObject(text);
-                if (!obj.has("channel")) {
-                    obj.put("channel", "default");
-                } else {
-                    ArrayList<String> channels = ChatDatabase.getInstance().getChannels();
-                    if (!channels.contains(obj.getString("channel"))) {
-                        result.setCode(400);
-                        result.setResponse("Error: channel name is not valid.");
-                        return result;
-                    }
+        WireFormat format = WireFormat.fromContentType(contentType);
+        if (format != null) {
+            try (RequestReader reader = format.openReader(exchange, maxBodySize)) {
+                if (reader.isArrayNext()) {
+                    return handleChatMessageBatch(exchange, reader, WireFormat.fromAccept(headers, format));
+                }
+                if (!reader.readObject(MESSAGE_FIELDS)) {
+                    throw new JSONException("A JSONObject text must begin with '{'.");
                 }
-                String dateStr = obj.getString("sent");
-                OffsetDateTime odt = OffsetDateTime.parse(dateStr);
-                ChatMessage message = new ChatMessage(odt, obj.getString("user"), obj.getString("message"), obj.getString("channel"));
-                ChatServer.log(message.getChatMessageAsString());
-                if (message.getNick().length() > 0 && message.getMessage().length() > 0 && message.getSent().toString().length() > 0 && message.getChannel().length() > 0) {
+                reader.endDocument();
+                ChatMessage message = parseChatMessage(reader);
+                if (!ChatDatabase.getInstance().channelExists(message.getChannel())) {
+                    result.setCode(400);
+                    result.setResponse("Error: channel name is not valid.");
+                    return result;
+                }
+                if (ChatServer.isDebugEnabled()) {
+                    ChatServer.debug(message.getChatMessageAsString());
+                }
+                if (hasRequiredContent(message)) {
                         ChatDatabase.getInstance().insertMessage(message);
-                        ChatServer.log("New chat message saved.");
+                        ChatServer.debug("New chat message saved.");
                         exchange.sendResponseHeaders(result.getCode(), -1); 
                 } else {
                     result.setCode(400);
@@ -135,28 +192,161 @@ public class ChatHandler implements HttpHandler {
                 result.setResponse("DateTimeParseException. Could not parse date/time. Message was not sent. " + e.getMessage());
                 return result;
             } catch (SQLException e) {
-                if (e.getMessage().contains("SQLITE_CONSTRAINT_PRIMARYKEY")) {
-                    result.setResponse("Error: Sending messages too fast. " + e.getMessage());
-                    result.setCode(429);
+                result.setResponse("Message could not be saved: Database error. " + e.getMessage());
+                result.setCode(500);
+                return result;
+            } catch (RequestReader.BodyTooLargeException e) {
+                result.setCode(413);
+                result.setResponse("Error: " + e.getMessage());
+                return result;
+            }
+        } else {
+            result.setCode(411);
+            result.setResponse("Content-Type must be application/json or application/cbor.");
+        }
+        return result;
+    }
+
+    /**
+     * Handles a POST request with several messages in an array, possibly to
+     * different channels. Each message has the same form as a single message.
+     * The valid messages are stored in one transaction, and the response is an
+     * array with the status of each message in the same order:
+     * {@code {"status":200,"id":...}} for a stored message, or the status code
+     * and an {@code "error"} for a message that was not stored. The response is
+     * in the format the client accepts, or in the format of the request if the
+     * client names neither.
+     * 
+     * @param exchange the {@code HttpExchange} containing the request from the
+     * client and used to send the response
+     * @param reader the reader of the request body, before the array
+     * @param responseFormat the format of the response
+     * @return a {@code Result} object that includes the HTTP status code and a response message
+     * @throws IOException if reading the request or sending the response fails
+     */
+    private Result handleChatMessageBatch(HttpExchange exchange, RequestReader reader, WireFormat responseFormat) throws IOException {
+        Result result = new Result();
+        result.setCode(400);
+        // Each channel in the batch is looked up in the registry only once.
+        Map<String, Boolean> channels = new HashMap<>();
+        List<MessageStatus> statuses = new ArrayList<>();
+        List<ChatMessage> messages = new ArrayList<>();
+        List<Integer> positions = new ArrayList<>();
+        try {
+            reader.beginArray();
+            while (reader.hasNext()) {
+                int i = statuses.size();
+                if (i == maxBatchSize) {
+                    result.setCode(413);
+                    result.setResponse("Error: at most " + maxBatchSize + " messages can be sent at once.");
                     return result;
+                }
+                statuses.add(null);
+                if (!reader.readObject(MESSAGE_FIELDS)) {
+                    statuses.set(i, errorStatus(400, "JSONException. JSONArray[" + i + "] is not a JSONObject."));
+                    continue;
+                }
+                try {
+                    ChatMessage message = parseChatMessage(reader);
+                    if (!channels.computeIfAbsent(message.getChannel(), ChatDatabase.getInstance()::channelExists)) {
+                        statuses.set(i, errorStatus(400, "Error: channel name is not valid."));
+                    } else if (!hasRequiredContent(message)) {
+                        statuses.set(i, errorStatus(400, "No required content in request."));
+                    } else {
+                        messages.add(message);
+                        positions.add(i);
+                    }
+                } catch (JSONException e) {
+                    statuses.set(i, errorStatus(400, "JSONException. " + e.getMessage()));
+                } catch (DateTimeParseException e) {
+                    statuses.set(i, errorStatus(400, "DateTimeParseException. Could not parse date/time. " + e.getMessage()));
+                }
+            }
+            reader.endDocument();
+        } catch (JSONException e) {
+            result.setResponse("JSONException. Messages were not sent. " + e.getMessage());
+            return result;
+        }
+        if (statuses.isEmpty()) {
+            result.setResponse("No messages in request.");
+            return result;
+        }
+        if (!messages.isEmpty()) {
+            SQLException[] errors;
+            try {
+                errors = ChatDatabase.getInstance().insertMessages(messages);
+            } catch (SQLException e) {
+                result.setCode(500);
+                result.setResponse("Messages could not be saved: Database error. " + e.getMessage());
+                return result;
+            }
+            for (int i = 0; i < messages.size(); i++) {
+                if (errors[i] == null) {
+                    statuses.set(positions.get(i), MessageStatus.stored(messages.get(i).getId()));
                 } else {
-                    result.setResponse("Message could not be saved: Database error. " + e.getMessage());
-                    result.setCode(500);
-                    return result;
+                    statuses.set(positions.get(i), errorStatus(500, "Message could not be saved: Database error. " + errors[i].getMessage()));
                 }
             }
-        } else {
-            result.setCode(411);
-            result.setResponse("Content-Type must be application/json.");
         }
+        ChatServer.debug("Saved " + messages.size() + " of " + statuses.size() + " messages in a batch.");
+        result.setCode(200);
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        try (MessageEncoder encoder = responseFormat.openEncoder(body)) {
+            encoder.writeStatuses(statuses);
+        }
+        exchange.getResponseHeaders().set("Content-Type", responseFormat.getContentType());
+        exchange.sendResponseHeaders(result.getCode(), body.size());
+        OutputStream os = exchange.getResponseBody();
+        body.writeTo(os);
+        os.close();
         return result;
     }
 
+    /**
+     * Reads a message from the object last read from the request. A message
+     * without a channel goes to the "default" -channel.
+     * 
+     * @param reader the reader of the request body
+     * @return the {@code ChatMessage}
+     * @throws JSONException if a required field is missing
+     * @throws DateTimeParseException if the time the message was sent cannot be parsed
+     */
+    private static ChatMessage parseChatMessage(RequestReader reader) {
+        ChatMessage message = new ChatMessage();
+        message.setChannel(reader.has(CHANNEL) ? reader.getString(CHANNEL) : "default");
+        message.setSent(reader.getTime(SENT));
+        message.setNick(reader.getString(USER));
+        // The message is kept in the UTF-8 form it was read in.
+        message.setMessageBytes(reader.getBytes(MESSAGE));
+        return message;
+    }
+
+    private static boolean hasRequiredContent(ChatMessage message) {
+        return message.getNick().length() > 0 && message.getMessageBytes().length > 0 && message.getChannel().length() > 0;
+    }
+
+    private static MessageStatus errorStatus(int code, String error) {
+        return MessageStatus.error(code, error);
+    }
+
     /**
      * Handles GET requests from clients. If the channel is not specified in the
      * request (there is no "Channel" -header in the request), the user will be given
      * the messages from the default channel.
      * 
+     * A client can ask the server to wait for new messages with a
+     * {@code Prefer: wait=<seconds>} header. If there are no new messages, the
+     * request is then answered when a new message arrives in the channel or
+     * when the wait times out, without holding a thread in the meantime.
+     * 
+     * Responses carry an {@code ETag} that changes whenever a message is added
+     * to the channel. A request whose {@code If-None-Match} matches it is
+     * answered with 304 without reading any messages.
+     * 
+     * If the request has a {@code before}, {@code after} or {@code limit} query
+     * parameter, it is a history request and one page of messages is returned
+     * (see {@code handlePageRequest}).
+     * 
      * @param exchange the {@code HttpExchange} containing the request from the
      * client and used to send the response
      * @return a {@code Result} object that includes the HTTP status code and 
@@ -174,69 +364,257 @@ public class ChatHandler implements HttpHandler {
 
         if (headers.containsKey("Channel")) {
             channel = headers.getFirst("Channel");
-            ArrayList<String> channels = ChatDatabase.getInstance().getChannels();
-            if (!channels.contains(channel)) {
+            if (!ChatDatabase.getInstance().channelExists(channel)) {
                 result.setCode(400);
                 result.setResponse("Error: requested channel is not valid.");
                 return result;
             }
         }
+        // The messages are sent as JSON or CBOR depending on the Accept header.
+        exchange.getResponseHeaders().add("Vary", "Accept");
+        Map<String, String> query = QueryParameters.parse(exchange.getRequestURI());
+        if (query.containsKey("before") || query.containsKey("after") || query.containsKey("limit")) {
+            return handlePageRequest(exchange, channel, query);
+        }
         if (headers.containsKey("If-Modified-Since")) {
             String ifModifiedSince = headers.getFirst("If-Modified-Since");
             ZonedDateTime zdt = ZonedDateTime.parse(ifModifiedSince, httpDateFormatter);
             OffsetDateTime fromWhichDate = zdt.toOffsetDateTime();
             messagesSince = fromWhichDate.toInstant().toEpochMilli();
         }
-        if (ChatDatabase.getInstance().isEmpty()) {
-            ChatServer.log("No new messages to deliver to client.");
-            result.setCode(204);
-            exchange.sendResponseHeaders(result.getCode(), -1);
-            return result;
+        long waitMillis = getRequestedWaitMillis(headers);
+        LongPollWaiter waiter = null;
+        if (waitMillis > 0) {
+            // Start waiting before reading the messages, so that a message stored
+            // in between is not missed.
+            final String waitChannel = channel;
+            final long waitSince = messagesSince;
+            exchange.getResponseHeaders().set("Preference-Applied", "wait=" + waitMillis / 1000);
+            waiter = LongPollWaiter.start(channel, messagesSince, waitMillis, ChatDatabase.getInstance().getMessageNotifier(), longPollTimer,
+                    executor, () -> completeLongPoll(exchange, waitChannel, waitSince), exchange::close);
+        }
+        // The tag is read before the messages, so that it is never newer than
+        // the messages sent with it.
+        String etag = getChannelETag(exchange, channel);
+        if (ETags.ifNoneMatch(headers, etag)) {
+            if (waiter != null) {
+                // Nothing has changed; the waiter answers the request.
+                return result;
+            }
+            return sendNotModified(exchange, etag);
         }
         ArrayList<ChatMessage> messages = ChatDatabase.getInstance().getMessages(messagesSince, channel);
+        if (waiter != null) {
+            if (messages != null && messages.size() == 0) {
+                // The waiter answers the request when a new message arrives or the wait times out.
+                return result;
+            }
+            if (!waiter.cancel()) {
+                // The waiter fired already and is answering the request.
+                return result;
+            }
+        }
+        return sendMessages(exchange, messages, etag);
+    }
+
+    /**
+     * Returns one page of a channel's history. Without a cursor the newest
+     * messages are returned. {@code before=<id>} returns the messages before
+     * the message with the given id and {@code after=<id>} the messages after
+     * it, at most {@code limit} of them. The links to the neighbouring pages are
+     * sent in a {@code Link} header with the relations "prev" (older messages)
+     * and "next" (newer messages).
+     * 
+     * @param exchange the {@code HttpExchange} containing the request from the
+     * client and used to send the response
+     * @param channel the name of the requested channel
+     * @param query the query parameters of the request
+     * @return a {@code Result} object that includes the HTTP status code and 
+     * a response message
+     * @throws IOException if sending response headers fails or if 
+     * writing to the {@code OutputStream} or closing it fails
+     */
+    private Result handlePageRequest(HttpExchange exchange, String channel, Map<String, String> query) throws IOException {
+        Result result = new Result();
+        result.setCode(400);
+        int limit = DEFAULT_PAGE_SIZE;
+        if (query.containsKey("limit")) {
+            try {
+                limit = Integer.parseInt(query.get("limit"));
+            } catch (NumberFormatException e) {
+                limit = 0;
+            }
+            if (limit < 1) {
+                result.setResponse("Error: limit must be a positive number.");
+                return result;
+            }
+            limit = Math.min(limit, MAX_PAGE_SIZE);
+        }
+        if (query.containsKey("before") && query.containsKey("after")) {
+            result.setResponse("Error: use either before or after, not both.");
+            return result;
+        }
+        boolean before = !query.containsKey("after");
+        String cursorValue = before ? query.get("before") : query.get("after");
+        long cursor = -1;
+        if (cursorValue != null) {
+            try {
+                cursor = Long.parseLong(cursorValue);
+            } catch (NumberFormatException e) {
+                cursor = -1;
+            }
+            if (cursor < 0) {
+                result.setResponse("Error: invalid cursor.");
+                return result;
+            }
+        }
+        ArrayList<ChatMessage> messages = ChatDatabase.getInstance().getMessagesPage(channel, cursor, before, limit);
+        if (messages != null && messages.size() > 0) {
+            List<String> links = new ArrayList<>();
+            if (!before || messages.size() == limit) {
+                links.add("</chat?before=" + messages.get(0).getId() + "&limit=" + limit + ">; rel=\"prev\"");
+            }
+            links.add("</chat?after=" + messages.get(messages.size() - 1).getId() + "&limit=" + limit + ">; rel=\"next\"");
+            exchange.getResponseHeaders().set("Link", String.join(", ", links));
+        }
+        return sendMessages(exchange, messages, null);
+    }
+
+    /**
+     * Answers a long-polling GET request after a new message has arrived or
+     * the wait has timed out. Runs on the executor, not in {@code handle}.
+     * 
+     * @param exchange the {@code HttpExchange} of the waiting request
+     * @param channel the name of the requested channel
+     * @param since the requested {@code If-Modified-Since} time or -1
+     */
+    private void completeLongPoll(HttpExchange exchange, String channel, long since) {
+        try {
+            String etag = getChannelETag(exchange, channel);
+            Result result;
+            if (ETags.ifNoneMatch(exchange.getRequestHeaders(), etag)) {
+                result = sendNotModified(exchange, etag);
+            } else {
+                result = sendMessages(exchange, ChatDatabase.getInstance().getMessages(since, channel), etag);
+            }
+            if (isError(result)) {
+                sendErrorResponse(exchange, result);
+            }
+        } catch (IOException e) {
+            ChatServer.warn("Could not complete a long-polling request: " + e.getMessage());
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * Sends messages to the client as an array, in the format the client
+     * accepts (see {@code WireFormat}).
+     * 
+     * @param exchange the {@code HttpExchange} used to send the response
+     * @param messages the messages to send or {@code null} if reading them failed
+     * @param etag the entity tag of the channel, read before the messages, or
+     * {@code null} if the response has no entity tag
+     * @return a {@code Result} object that includes the HTTP status code and 
+     * a response message
+     * @throws IOException if sending response headers fails or if 
+     * writing to the {@code OutputStream} or closing it fails
+     */
+    private Result sendMessages(HttpExchange exchange, ArrayList<ChatMessage> messages, String etag) throws IOException {
+        Result result = new Result();
+        result.setCode(200);
+        result.setResponse("");
+
         if (messages == null) {
             result.setResponse("Database access error.");
             result.setCode(404);
-            exchange.sendResponseHeaders(result.getCode(), -1);
             return result;
-        } else if (messages.size() == 0) {
+        }
+        if (etag != null) {
+            exchange.getResponseHeaders().set("ETag", etag);
+        }
+        if (messages.size() == 0) {
+            ChatServer.debug("No new messages to deliver to client.");
             result.setResponse("No new messages to deliver.");
             result.setCode(204);
             exchange.sendResponseHeaders(result.getCode(), -1);
             return result;
         } else {
-            String responseBody = "";
-            try {
-                JSONArray jsonArray = new JSONArray();
-                OffsetDateTime newest = null;
-                for (ChatMessage message : messages) {
-                    JSONObject obj = new JSONObject();
-                    obj.put("sent", message.getSent());
-                    obj.put("user", message.getNick());
-                    obj.put("message", message.getMessage());
-                    obj.put("channel", message.getChannel());
-                    if (newest == null || newest.isBefore(message.getSent())) {
-                        newest = message.getSent();
-                    }
-                    jsonArray.put(obj);
-                }
-                String datetime = newest.format(httpDateFormatter);
-                Headers responseHeaders = exchange.getResponseHeaders();
-                responseHeaders.add("Last-Modified", datetime);
-                responseBody = jsonArray.toString();
-            } catch (JSONException e) {
-                result.setCode(400);
-                result.setResponse("JSONException. Could not get messages.");
-                return result;
+            long newest = Long.MIN_VALUE;
+            for (ChatMessage message : messages) {
+                newest = Math.max(newest, message.dateAsInt());
+            }
+            Headers responseHeaders = exchange.getResponseHeaders();
+            responseHeaders.add("Last-Modified", httpDateFormatter.format(Instant.ofEpochMilli(newest)));
+            WireFormat format = WireFormat.fromAccept(exchange.getRequestHeaders());
+            responseHeaders.set("Content-Type", format.getContentType());
+            if (ChatServer.isDebugEnabled()) {
+                ChatServer.debug("Delivering " + messages.size() + " messages to client.");
+            }
+            // The messages are written to the client as they are serialized, in chunks.
+            OutputStream os = compressor.startResponse(exchange, result.getCode());
+            try (MessageEncoder encoder = format.openEncoder(os)) {
+                encoder.writeArray(messages);
             }
-            ChatServer.log("Delivering " + messages.size() + " messages to client.");
-            byte[] bytes = responseBody.toString().getBytes("UTF-8");
-            exchange.sendResponseHeaders(result.getCode(), bytes.length);
-            OutputStream os = exchange.getResponseBody();
-            os.write(bytes);
             os.close();
             return result;
         }
     }
 
-}
\ No newline at end of file
+    /**
+     * Returns the entity tag of a channel's messages in the format the client accepts.
+     * 
+     * @param exchange the {@code HttpExchange} of the request
+     * @param channel the name of the channel
+     * @return the entity tag
+     */
+    private static String getChannelETag(HttpExchange exchange, String channel) {
+        return WireFormat.fromAccept(exchange.getRequestHeaders()).tag(ChatDatabase.getInstance().getChannelETag(channel));
+    }
+
+    /**
+     * Tells the client that it already has the current messages.
+     * 
+     * @param exchange the {@code HttpExchange} used to send the response
+     * @param etag the current entity tag of the channel
+     * @return a {@code Result} object with the status code 304
+     * @throws IOException if sending response headers fails
+     */
+    private Result sendNotModified(HttpExchange exchange, String etag) throws IOException {
+        Result result = new Result();
+        result.setCode(304);
+        result.setResponse("");
+        exchange.getResponseHeaders().set("ETag", etag);
+        exchange.sendResponseHeaders(result.getCode(), -1);
+        return result;
+    }
+
+    /**
+     * Reads the wait time requested with a {@code Prefer: wait=<seconds>} header.
+     * 
+     * @param headers the request headers
+     * @return the wait time in milliseconds, limited to the maximum wait time,
+     * or 0 if the client did not ask to wait
+     */
+    private long getRequestedWaitMillis(Headers headers) {
+        List<String> preferHeaders = headers.get("Prefer");
+        if (preferHeaders == null) {
+            return 0;
+        }
+        for (String preferHeader : preferHeaders) {
+            for (String preference : preferHeader.split(",")) {
+                String trimmed = preference.trim();
+                if (trimmed.regionMatches(true, 0, "wait=", 0, 5)) {
+                    try {
+                        long seconds = Long.parseLong(trimmed.substring(5).trim());
+                        return Math.max(0, Math.min(seconds, maxWaitSeconds)) * 1000;
+                    } catch (NumberFormatException e) {
+                        return 0;
+                    }
+                }
+            }
+        }
+        return 0;
+    }
+
+}
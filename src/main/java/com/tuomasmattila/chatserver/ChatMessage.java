@@ -1,76 +1,129 @@
 package com.tuomasmattila.chatserver;
 
+import java.nio.charset.StandardCharsets;
 import java.time.Instant;
 import java.time.OffsetDateTime;
 import java.time.ZoneOffset;
 
 /**
- * A class that represents a chat message. The class can hold
- * the time the message was sent as an {@code OffsetDateTime}, 
- * the name of the message's sender as {@code String} and the 
- * message itself as a {@code String}
+ * A class that represents a chat message. The class holds the time the
+ * message was sent, the name of the message's sender, the message itself and
+ * the channel it was sent to. A stored message also has an id that the server
+ * assigns when the message is written to the database.
+ *
+ * Messages are kept in memory in large numbers, so they are stored compactly:
+ * the time as Unix milliseconds, the sender and channel names as shared
+ * instances from {@code StringInterner}, and the message as UTF-8 bytes, which
+ * is also the form it is read from the database and written to clients in.
+ * {@code OffsetDateTime}s and the message {@code String} are only created
+ * when they are asked for.
  */
 public class ChatMessage {
 
-    private OffsetDateTime sent;
+    private static final byte[] EMPTY = new byte[0];
+
+    private long id;
+    private long sent;
     private String nick;
-    private String message;
     private String channel;
+    private byte[] message;
 
     public ChatMessage() {
         this.nick = "";
-        this.message = "";
-        this.sent = null;
+        this.message = EMPTY;
         this.channel = "";
     }
 
     public ChatMessage(OffsetDateTime sent, String nick, String message, String channel) {
-        this.nick = nick;
-        this.message = message;
-        this.sent = sent;
-        this.channel = channel;
+        setSent(sent);
+        setNick(nick);
+        setMessage(message);
+        setChannel(channel);
     }
 
     /**
-     * Converts {@code OffsetDateTime} to {@code long} integer, making it
-     * an unix timestamp with milliseconds.
-     * 
+     * Returns the time the message was sent as a Unix timestamp with milliseconds.
+     *
      * @return the timestamp in Unix time with milliseconds
      */
-    public long dateAsInt() {  
-        return sent.toInstant().toEpochMilli(); 
+    public long dateAsInt() {
+        return sent;
     }
-    
+
     /**
-     * Converts {@code long} integers (unix timestamps) to {@code OffsetDateTime}.
+     * Sets the time the message was sent.
+     *
      * @param epoch the timestamp in unix format ({@code long})
      */
-    public void setSent(long epoch) { 
-        sent = OffsetDateTime.ofInstant(Instant.ofEpochMilli(epoch), ZoneOffset.UTC); 
+    public void setSent(long epoch) {
+        sent = epoch;
     }
-    
+
     public void setSent(OffsetDateTime sent) {
-        this.sent = sent;
+        this.sent = sent.toInstant().toEpochMilli();
+    }
+
+    /**
+     * Returns the id of the message. Ids are assigned in the order the messages
+     * are stored, so a greater id means a later message.
+     *
+     * @return the id, or 0 if the message has not been stored
+     */
+    public long getId() {
+        return id;
+    }
+
+    public void setId(long id) {
+        this.id = id;
     }
 
     public void setNick(String nick) {
-        this.nick = nick;
+        this.nick = StringInterner.intern(nick);
     }
 
     public void setMessage(String message) {
+        this.message = message.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Sets the message as UTF-8 bytes. The array is used as it is and must not
+     * be changed afterwards.
+     *
+     * @param message the message in UTF-8
+     */
+    public void setMessageBytes(byte[] message) {
         this.message = message;
     }
 
+    /**
+     * Returns the time the message was sent in UTC.
+     *
+     * @return a new {@code OffsetDateTime}
+     */
     public OffsetDateTime getSent() {
-        return this.sent;
+        return OffsetDateTime.ofInstant(Instant.ofEpochMilli(sent), ZoneOffset.UTC);
     }
 
     public String getNick() {
         return this.nick;
     }
 
+    /**
+     * Decodes the message into a {@code String}.
+     *
+     * @return the message
+     */
     public String getMessage() {
-        return this.message;
+        return new String(message, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Returns the message as UTF-8 bytes. The array is shared and must not be changed.
+     *
+     * @return the message in UTF-8
+     */
+    public byte[] getMessageBytes() {
+        return message;
     }
 
     public String getChannel() {
@@ -78,11 +131,11 @@ public class ChatMessage {
     }
 
     public void setChannel(String channel) {
-        this.channel = channel;
+        this.channel = StringInterner.intern(channel);
     }
 
     public String getChatMessageAsString() {
-        return "Nick: " + this.nick + " Message: " + this.message + " Sent: " + this.sent.toString() + " Channel: " + this.channel;
+        return "Nick: " + this.nick + " Message: " + getMessage() + " Sent: " + getSent().toString() + " Channel: " + this.channel;
     }
 
 }
@@ -12,16 +12,17 @@ import java.security.NoSuchAlgorithmException;
 import java.security.UnrecoverableKeyException;
 import java.security.cert.CertificateException;
 import java.sql.SQLException;
-import java.time.LocalDateTime;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.ArrayList;
+import java.util.List;
 
 import javax.net.ssl.KeyManagerFactory;
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLParameters;
 import javax.net.ssl.TrustManagerFactory;
 
+import com.sun.net.httpserver.Authenticator;
 import com.sun.net.httpserver.HttpContext;
+import com.sun.net.httpserver.HttpHandler;
 import com.sun.net.httpserver.HttpsConfigurator;
 import com.sun.net.httpserver.HttpsParameters;
 import com.sun.net.httpserver.HttpsServer;
@@ -61,23 +62,83 @@ public class ChatServer {
                 }
             });
             ChatAuthenticator auth = new ChatAuthenticator();
-            HttpContext chatContext = server.createContext("/chat", new ChatHandler());
-            chatContext.setAuthenticator(auth);
-            server.createContext("/registration", new RegistrationHandler(auth));
-            HttpContext channelContext = server.createContext("/channels", new ChannelHandler());
-            channelContext.setAuthenticator(auth);
-            ExecutorService cachedThreadPool = Executors.newCachedThreadPool();
-            server.setExecutor(cachedThreadPool);
+            TokenManager tokenManager = new TokenManager(System.getProperty("chatserver.token.secret"), Long.getLong("chatserver.token.ttl", 3600) * 1000);
+            Authenticator tokenAuth = new TokenAuthenticator(tokenManager, auth);
+            Authenticator loginAuth = auth;
+            if (Metrics.ENABLED) {
+                tokenAuth = new TimedAuthenticator("token", tokenAuth);
+                loginAuth = new TimedAuthenticator("basic", auth);
+            }
+            ResponseCompressor compressor = new ResponseCompressor(Integer.getInteger("chatserver.compression.minSize", 1024), Integer.getInteger("chatserver.compression.level", 6));
+            long maxBodySize = Long.getLong("chatserver.request.maxBytes", 1024 * 1024);
+            List<RateLimiter> rateLimiters = new ArrayList<>();
+            boolean virtualThreads = Boolean.getBoolean("chatserver.workers.virtual");
+            int defaultThreads = virtualThreads ? 10000 : Math.max(16, 4 * Runtime.getRuntime().availableProcessors());
+            WorkerPool workers = new WorkerPool(Integer.getInteger("chatserver.workers.threads", defaultThreads),
+                    Integer.getInteger("chatserver.workers.queueSize", 256), virtualThreads);
+            HttpContext chatContext = server.createContext("/chat", rateLimited("chat", 50, 100, new ChatHandler(workers, compressor, maxBodySize), rateLimiters));
+            chatContext.setAuthenticator(tokenAuth);
+            int retryAfter = Integer.getInteger("chatserver.workers.retryAfter", 1);
+            int maxStreams = Integer.getInteger("chatserver.stream.max", virtualThreads ? 10000 : 1000);
+            ChatStreamHandler streamHandler = new ChatStreamHandler(workers.newLongTaskExecutor("stream", maxStreams), retryAfter);
+            HttpContext streamContext = server.createContext("/chat/stream", rateLimited("stream", 1, 5, streamHandler, rateLimiters));
+            streamContext.setAuthenticator(tokenAuth);
+            HttpContext registrationContext = server.createContext("/registration", rateLimited("registration", 1, 10, new RegistrationHandler(auth, maxBodySize), rateLimiters));
+            HttpContext loginContext = server.createContext("/login", rateLimited("login", 2, 10, new LoginHandler(tokenManager), rateLimiters));
+            loginContext.setAuthenticator(loginAuth);
+            HttpContext channelContext = server.createContext("/channels", rateLimited("channels", 10, 20, new ChannelHandler(compressor, maxBodySize), rateLimiters));
+            channelContext.setAuthenticator(tokenAuth);
+            HttpContext searchContext = server.createContext("/search", rateLimited("search", 5, 20, new SearchHandler(compressor), rateLimiters));
+            searchContext.setAuthenticator(tokenAuth);
+            List<HttpContext> contexts = new ArrayList<>(List.of(chatContext, streamContext, registrationContext, loginContext, channelContext, searchContext));
+            if (Metrics.ENABLED) {
+                Metrics metrics = Metrics.getInstance();
+                HttpContext metricsContext = server.createContext("/metrics", rateLimited("metrics", 2, 10, new MetricsHandler(metrics, compressor), rateLimiters));
+                metricsContext.setAuthenticator(tokenAuth);
+                contexts.add(metricsContext);
+                metrics.gauge("chatserver_executor_queue_depth", "Requests waiting for a worker thread.", workers::getQueueDepth);
+                metrics.gauge("chatserver_executor_active_threads", "Worker threads handling a request.", workers::getActiveCount);
+                metrics.counter("chatserver_executor_rejected_total", "Requests refused with 503 because the workers were busy.", workers::getRejectedCount);
+                metrics.counter("chatserver_executor_dropped_total", "Requests whose connection was closed because even the shedding threads were busy.", workers::getDroppedCount);
+                metrics.gauge("chatserver_db_readers_in_use", "Read connections to the database in use.", database::getReadersInUse);
+                metrics.gauge("chatserver_db_write_queue_depth", "Messages waiting to be written to the database.", database::getWriteQueueDepth);
+                metrics.gauge("chatserver_streams_open", "Open Server-Sent Event streams.", streamHandler::getOpenStreams);
+                metrics.counter("chatserver_streams_refused_total", "Streams refused with 503 because all stream threads were taken.", streamHandler::getRefusedCount);
+            }
+            OverloadFilter overloadFilter = new OverloadFilter(retryAfter);
+            for (HttpContext context : contexts) {
+                if (Metrics.ENABLED) {
+                    String path = context.getPath();
+                    context.getFilters().add(new MetricsFilter(path.substring(path.lastIndexOf('/') + 1)));
+                }
+                context.getFilters().add(overloadFilter);
+            }
+            server.setExecutor(workers);
             server.start();
-            log("Server is running...");
+            log("Server is running" + (workers.isVirtual() ? " on virtual threads..." : "..."));
             Console console = System.console();
             boolean running = true;
             while (running) {
-                if (console.readLine().equals("/quit")) {
+                String command = console.readLine();
+                if (command.equals("/quit")) {
                     running = false;
                     server.stop(3);
+                    workers.shutdown();
                     database.close();
                     log("Server closed.");
+                    AsyncLog.flush();
+                } else if (command.equals("/stats")) {
+                    log(auth.getCredentialCache().getStatsAsString());
+                    log(database.getStatsAsString());
+                    log(streamHandler.getStatsAsString());
+                    log(compressor.getStatsAsString());
+                    log(workers.getStatsAsString());
+                    for (RateLimiter limiter : rateLimiters) {
+                        log(limiter.getStatsAsString());
+                    }
+                } else if (command.equals("/flushauth")) {
+                    auth.getCredentialCache().clear();
+                    log("Credential cache cleared.");
                 }
             }
         } catch (FileNotFoundException e) {
@@ -92,6 +153,28 @@ public class ChatServer {
         }
     }
 
+    /**
+     * Puts a handler behind a {@code RateLimiter}, configured with the system
+     * properties chatserver.ratelimit.[name].rate and .burst. A rate of 0
+     * turns the limit off.
+     *
+     * @param name the name of the context in the properties
+     * @param defaultRate requests per second allowed if the property is not set
+     * @param defaultBurst requests allowed at once if the property is not set
+     * @param handler the handler of the context
+     * @param limiters the list the created limiter is added to
+     * @return the handler to register for the context
+     */
+    private static HttpHandler rateLimited(String name, int defaultRate, int defaultBurst, HttpHandler handler, List<RateLimiter> limiters) {
+        int rate = Integer.getInteger("chatserver.ratelimit." + name + ".rate", defaultRate);
+        if (rate <= 0) {
+            return handler;
+        }
+        RateLimiter limiter = new RateLimiter(name, rate, Integer.getInteger("chatserver.ratelimit." + name + ".burst", defaultBurst));
+        limiters.add(limiter);
+        return new RateLimitedHandler(limiter, handler);
+    }
+
     /**
      * Creates SSLContext.
      * 
@@ -125,12 +208,42 @@ public class ChatServer {
     }
 
     /**
-     * Used for printing messages to the server's log.
+     * Used for printing messages to the server's log. The messages are
+     * written by a background thread (see {@code AsyncLog}).
      * 
      * @param message
      */
     public static void log(String message) {
-        System.out.println(LocalDateTime.now() + " " + message);
+        AsyncLog.log(AsyncLog.Level.INFO, message);
+    }
+
+    /**
+     * Logs a detail that is only needed when debugging, such as request
+     * bodies. Not written unless chatserver.log.level is DEBUG.
+     *
+     * @param message
+     */
+    public static void debug(String message) {
+        AsyncLog.log(AsyncLog.Level.DEBUG, message);
+    }
+
+    /**
+     * Logs a failed request or another problem.
+     *
+     * @param message
+     */
+    public static void warn(String message) {
+        AsyncLog.log(AsyncLog.Level.WARN, message);
+    }
+
+    /**
+     * Tells whether debug messages are logged, so that building them can be
+     * skipped when they are not.
+     *
+     * @return {@code true} if the log level is DEBUG
+     */
+    public static boolean isDebugEnabled() {
+        return AsyncLog.isEnabled(AsyncLog.Level.DEBUG);
     }
 
 }
\ No newline at end of file
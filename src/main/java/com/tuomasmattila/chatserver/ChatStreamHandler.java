@@ -0,0 +1,295 @@
+package com.tuomasmattila.chatserver;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+/**
+ * A class that streams the messages of a channel to clients as Server-Sent
+ * Events. A GET request to /chat/stream is kept open, and every new message in
+ * the requested channel is sent as an event whose data is the message as JSON,
+ * in the same form as GET /chat returns it. The id of an event is the id of the
+ * message, so a client that reconnects with a {@code Last-Event-ID} header
+ * first gets exactly the messages it missed.
+ *
+ * If reading the missed messages fails after the stream has started, an
+ * {@code error} event is sent and the stream is closed, so that the client
+ * reconnects and resumes from the last event it got.
+ *
+ * Every stream has a bounded buffer of messages waiting to be sent. A client
+ * that reads so slowly that its buffer fills up is disconnected, and can
+ * reconnect with {@code Last-Event-ID} to catch up.
+ *
+ * A stream is kept open for as long as the client stays connected, so it is
+ * served on a thread of its own rather than on one of the server's workers,
+ * which would otherwise all end up holding streams. The number of stream
+ * threads is bounded; when they are all taken, a new stream is refused with
+ * 503 Service Unavailable and a {@code Retry-After} header.
+ */
+public class ChatStreamHandler implements HttpHandler {
+
+    private static final int RESUME_PAGE_SIZE = 100;
+
+    private final int bufferSize;
+    private final long heartbeatMillis;
+    private final Executor streamThreads;
+    private final String retryAfter;
+    private final AtomicInteger openStreams = new AtomicInteger();
+    private final LongAdder eventsSent = new LongAdder();
+    private final LongAdder slowDisconnects = new LongAdder();
+    private final LongAdder refused = new LongAdder();
+
+    /**
+     * Creates the handler. The size of a stream's buffer is set with the system
+     * property {@code chatserver.stream.bufferSize} (messages) and the interval
+     * of heartbeat comments on an idle stream with
+     * {@code chatserver.stream.heartbeat} (seconds).
+     *
+     * @param streamThreads the executor that runs the streams, with a thread
+     * each; it rejects the streams it has no thread for
+     * @param retryAfterSeconds the {@code Retry-After} sent when a stream is refused
+     */
+    public ChatStreamHandler(Executor streamThreads, int retryAfterSeconds) {
+        this.streamThreads = streamThreads;
+        this.retryAfter = Integer.toString(retryAfterSeconds);
+        this.bufferSize = Integer.getInteger("chatserver.stream.bufferSize", 256);
+        this.heartbeatMillis = TimeUnit.SECONDS.toMillis(Long.getLong("chatserver.stream.heartbeat", 15));
+    }
+
+    /**
+     * Handles GET requests to /chat/stream. The channel is given in a "Channel"
+     * -header or in a {@code channel} query parameter, and defaults to the
+     * "default" -channel. The request is passed to a stream thread, and the
+     * worker returns at once. If there is no stream thread free, the worker
+     * answers with 503.
+     *
+     * @param exchange the {@code HttpExchange} containing the request from the
+     * client and used to send the response
+     * @throws IOException if sending the 503 response fails
+     */
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+        try {
+            streamThreads.execute(() -> {
+                try {
+                    serve(exchange);
+                } catch (IOException e) {
+                    ChatServer.warn("/chat/stream: could not send a response: " + e.getMessage());
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            refused.increment();
+            ChatServer.warn("---------- Error in /chat/stream: 503 too many open streams");
+            byte[] bytes = "Too many open streams, try again later.".getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Retry-After", retryAfter);
+            exchange.sendResponseHeaders(503, bytes.length);
+            OutputStream os = exchange.getResponseBody();
+            os.write(bytes);
+            os.close();
+        }
+    }
+
+    /**
+     * Serves a request to /chat/stream on a stream thread.
+     *
+     * @param exchange the {@code HttpExchange} of the request
+     * @throws IOException if sending the error response fails
+     */
+    private void serve(HttpExchange exchange) throws IOException {
+        Result result = new Result();
+        result.setCode(200);
+        result.setResponse("");
+
+        try {
+            if (exchange.getRequestMethod().equalsIgnoreCase("GET")) {
+                result = handleStreamRequest(exchange);
+            } else {
+                result.setCode(400);
+                result.setResponse("Not supported.");
+            }
+        } catch (IOException e) {
+            // The client has closed the stream.
+            ChatServer.debug("/chat/stream: stream closed: " + e.getMessage());
+        } finally {
+            if (result.getCode() < 200 || result.getCode() > 299) {
+                ChatServer.warn("---------- Error in /chat/stream: " + result.getCode() + " " + result.getResponse());
+                byte[] bytes = result.getResponse().getBytes(StandardCharsets.UTF_8);
+                exchange.sendResponseHeaders(result.getCode(), bytes.length);
+                OutputStream os = exchange.getResponseBody();
+                os.write(bytes);
+                os.close();
+            } else {
+                exchange.close();
+            }
+        }
+    }
+
+    public int getOpenStreams() {
+        return openStreams.get();
+    }
+
+    public long getRefusedCount() {
+        return refused.sum();
+    }
+
+    public String getStatsAsString() {
+        return "Streams: open " + openStreams.get() + ", events sent " + eventsSent.sum() + ", slow clients disconnected " + slowDisconnects.sum() + ", refused " + refused.sum();
+    }
+
+    /**
+     * Sends the messages missed since {@code Last-Event-ID} and then every new
+     * message of the channel until the client disconnects or falls behind.
+     *
+     * @return a {@code Result} object that includes the HTTP status code and a response message
+     * @throws IOException if writing to the stream fails
+     */
+    private Result handleStreamRequest(HttpExchange exchange) throws IOException {
+        Result result = new Result();
+        result.setCode(200);
+        result.setResponse("");
+        Headers headers = exchange.getRequestHeaders();
+
+        String channel = headers.getFirst("Channel");
+        if (channel == null) {
+            channel = QueryParameters.parse(exchange.getRequestURI()).get("channel");
+        }
+        if (channel == null) {
+            channel = "default";
+        }
+        if (!ChatDatabase.getInstance().channelExists(channel)) {
+            result.setCode(400);
+            result.setResponse("Error: requested channel is not valid.");
+            return result;
+        }
+        long lastEventId = -1;
+        String lastEventIdHeader = headers.getFirst("Last-Event-ID");
+        if (lastEventIdHeader != null) {
+            try {
+                lastEventId = Long.parseLong(lastEventIdHeader.trim());
+            } catch (NumberFormatException e) {
+                result.setCode(400);
+                result.setResponse("Error: Last-Event-ID is not valid.");
+                return result;
+            }
+        }
+
+        // Subscribe before reading the missed messages, so that a message stored
+        // in between is not lost. It may then be both read and queued; messages
+        // are published in id order, so the queued copies are the ones with an
+        // id not greater than the last one sent.
+        Subscriber subscriber = new Subscriber(bufferSize);
+        MessageNotifier notifier = ChatDatabase.getInstance().getMessageNotifier();
+        notifier.subscribe(channel, subscriber);
+        openStreams.incrementAndGet();
+        try {
+            Headers responseHeaders = exchange.getResponseHeaders();
+            responseHeaders.set("Content-Type", "text/event-stream; charset=utf-8");
+            responseHeaders.set("Cache-Control", "no-cache");
+            long lastSentId = lastEventId;
+            if (lastEventId >= 0) {
+                // The missed messages are read one page at a time.
+                ArrayList<ChatMessage> missed = ChatDatabase.getInstance().getMessagesPage(channel, lastEventId, false, RESUME_PAGE_SIZE);
+                if (missed == null) {
+                    result.setCode(500);
+                    result.setResponse("Database access error.");
+                    return result;
+                }
+                exchange.sendResponseHeaders(200, 0);
+                while (missed.size() > 0) {
+                    for (ChatMessage message : missed) {
+                        writeEvent(exchange.getResponseBody(), message);
+                        lastSentId = message.getId();
+                    }
+                    if (missed.size() < RESUME_PAGE_SIZE) {
+                        break;
+                    }
+                    missed = ChatDatabase.getInstance().getMessagesPage(channel, lastSentId, false, RESUME_PAGE_SIZE);
+                    if (missed == null) {
+                        // The response has started, so the error is sent as an event
+                        // and the stream is closed. The client reconnects and resumes
+                        // after the last message it got.
+                        OutputStream os = exchange.getResponseBody();
+                        os.write("event: error\ndata: Database access error.\n\n".getBytes(StandardCharsets.UTF_8));
+                        os.flush();
+                        ChatServer.warn("/chat/stream: could not read the missed messages, closing the stream.");
+                        return result;
+                    }
+                }
+            } else {
+                exchange.sendResponseHeaders(200, 0);
+            }
+            OutputStream os = exchange.getResponseBody();
+            os.flush();
+            if (ChatServer.isDebugEnabled()) {
+                ChatServer.debug("/chat/stream: streaming channel " + channel + " in thread " + Thread.currentThread().getId());
+            }
+
+            while (true) {
+                ChatMessage message = subscriber.queue.poll(heartbeatMillis, TimeUnit.MILLISECONDS);
+                if (subscriber.overflowed) {
+                    slowDisconnects.increment();
+                    ChatServer.log("/chat/stream: disconnecting a client that fell behind.");
+                    return result;
+                }
+                if (message == null) {
+                    os.write(": heartbeat\n\n".getBytes(StandardCharsets.UTF_8));
+                } else if (message.getId() > lastSentId) {
+                    writeEvent(os, message);
+                    lastSentId = message.getId();
+                }
+                os.flush();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return result;
+        } finally {
+            notifier.unsubscribe(channel, subscriber);
+            openStreams.decrementAndGet();
+        }
+    }
+
+    private void writeEvent(OutputStream os, ChatMessage message) throws IOException {
+        // The JSON is written on one line, since line breaks in strings are escaped.
+        try (JsonMessageWriter writer = JsonMessageWriter.open(os)) {
+            writer.writeAscii("id: " + message.getId() + "\ndata: ");
+            writer.writeMessage(message);
+            writer.writeAscii("\n\n");
+        }
+        eventsSent.increment();
+    }
+
+    /**
+     * Queues the messages of one stream. When the queue is full the subscriber
+     * is marked as overflowed and stops queueing, so a slow client cannot make
+     * the server hold more than {@code bufferSize} messages for it.
+     */
+    private static class Subscriber implements MessageNotifier.Listener {
+
+        private final BlockingQueue<ChatMessage> queue;
+        private volatile boolean overflowed;
+
+        Subscriber(int bufferSize) {
+            this.queue = new ArrayBlockingQueue<>(bufferSize);
+        }
+
+        @Override
+        public void onMessage(ChatMessage message) {
+            if (!overflowed && !queue.offer(message)) {
+                overflowed = true;
+            }
+        }
+    }
+
+}
@@ -0,0 +1,206 @@
+package com.tuomasmattila.chatserver;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.sqlite.SQLiteConfig;
+
+/**
+ * A pool of connections to a SQLite database running in WAL mode. In WAL mode
+ * readers do not block the writer and the writer does not block readers, so
+ * the pool keeps several read-only connections that can be used in parallel
+ * and one writer connection that is handed out to one thread at a time.
+ *
+ * Connections are borrowed as {@code PooledConnection}s, one for every borrow,
+ * which return the connection to the pool when they are closed:
+ * <pre>
+ * try (PooledConnection connection = pool.getReader()) {
+ *     ...
+ * }
+ * </pre>
+ * Each connection keeps a cache of its prepared statements, so a query is
+ * parsed and planned by SQLite only once per connection. The cache does not
+ * need synchronization because a connection is used by one thread at a time.
+ * The pool also counts how often the caches had to prepare a new statement
+ * and how often a cached one was reused.
+ */
+public class ConnectionPool {
+
+    /**
+     * One connection of the pool and its prepared statements.
+     */
+    static class Slot {
+
+        final Connection connection;
+        final boolean writer;
+        private final ConnectionPool pool;
+        private final Map<String, PreparedStatement> statements = new HashMap<>();
+
+        Slot(ConnectionPool pool, Connection connection, boolean writer) {
+            this.pool = pool;
+            this.connection = connection;
+            this.writer = writer;
+        }
+
+        PreparedStatement prepare(String sql) throws SQLException {
+            PreparedStatement statement = statements.get(sql);
+            if (statement == null) {
+                statement = connection.prepareStatement(sql);
+                statements.put(sql, statement);
+                pool.statementsPrepared.increment();
+            } else {
+                statement.clearParameters();
+                pool.statementsReused.increment();
+            }
+            return statement;
+        }
+
+        /**
+         * Closes the cached statements and the underlying connection.
+         */
+        void closeConnection() throws SQLException {
+            for (PreparedStatement statement : statements.values()) {
+                statement.close();
+            }
+            statements.clear();
+            connection.close();
+        }
+    }
+
+    private final BlockingQueue<Slot> readers;
+    private final List<Slot> allReaders = new ArrayList<>();
+    private final Slot writer;
+    private final ReentrantLock writerLock = new ReentrantLock();
+    private final int busyTimeoutMillis;
+    private final LongAdder statementsPrepared = new LongAdder();
+    private final LongAdder statementsReused = new LongAdder();
+
+    /**
+     * Opens the writer connection and the read connections. The writer is opened
+     * first, so that the database file exists and is switched to WAL mode before
+     * the read-only connections are opened.
+     *
+     * @param dbName the name of the database file including the full path to it
+     * @param readerCount the number of read connections
+     * @param busyTimeoutMillis how long to wait for a connection or a database
+     * lock before giving up, in milliseconds
+     * @throws SQLException if opening a connection fails
+     */
+    public ConnectionPool(String dbName, int readerCount, int busyTimeoutMillis) throws SQLException {
+        String address = "jdbc:sqlite:" + dbName;
+        this.busyTimeoutMillis = busyTimeoutMillis;
+
+        SQLiteConfig writerConfig = new SQLiteConfig();
+        writerConfig.setJournalMode(SQLiteConfig.JournalMode.WAL);
+        writerConfig.setBusyTimeout(busyTimeoutMillis);
+        writer = new Slot(this, writerConfig.createConnection(address), true);
+
+        SQLiteConfig readerConfig = new SQLiteConfig();
+        readerConfig.setReadOnly(true);
+        readerConfig.setBusyTimeout(busyTimeoutMillis);
+        readers = new ArrayBlockingQueue<>(readerCount);
+        for (int i = 0; i < readerCount; i++) {
+            Slot reader = new Slot(this, readerConfig.createConnection(address), false);
+            allReaders.add(reader);
+            readers.add(reader);
+        }
+    }
+
+    /**
+     * Borrows a read-only connection. Waits for the busy timeout if all read
+     * connections are in use.
+     *
+     * @return a read-only {@code PooledConnection}
+     * @throws SQLException if no read connection became available in time
+     */
+    public PooledConnection getReader() throws SQLException {
+        try {
+            Slot reader = readers.poll(busyTimeoutMillis, TimeUnit.MILLISECONDS);
+            if (reader == null) {
+                throw new SQLException("Timed out waiting for a database connection.");
+            }
+            return new PooledConnection(this, reader);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a database connection.", e);
+        }
+    }
+
+    /**
+     * Borrows the writer connection. Only one thread can hold the writer at a
+     * time; others wait for the busy timeout. The thread holding the writer
+     * can borrow it again, and every borrow must be closed.
+     *
+     * @return the writer {@code PooledConnection}
+     * @throws SQLException if the writer did not become available in time
+     */
+    public PooledConnection getWriter() throws SQLException {
+        try {
+            if (!writerLock.tryLock(busyTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                throw new SQLException("Timed out waiting for the database writer.");
+            }
+            return new PooledConnection(this, writer);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for the database writer.", e);
+        }
+    }
+
+    /**
+     * Returns a borrowed connection to the pool. Called by the first
+     * {@code PooledConnection.close()} of a borrow.
+     *
+     * @param slot the connection to return
+     */
+    void release(Slot slot) {
+        if (slot.writer) {
+            writerLock.unlock();
+        } else {
+            readers.offer(slot);
+        }
+    }
+
+    public long getStatementsPrepared() {
+        return statementsPrepared.sum();
+    }
+
+    public long getStatementsReused() {
+        return statementsReused.sum();
+    }
+
+    public String getStatsAsString() {
+        return "Connection pool: readers in use " + getReadersInUse() + "/" + allReaders.size() + ", statements prepared " + getStatementsPrepared() + ", statements reused " + getStatementsReused();
+    }
+
+    /**
+     * Returns the number of read connections currently borrowed.
+     *
+     * @return the number of read connections in use
+     */
+    public int getReadersInUse() {
+        return allReaders.size() - readers.size();
+    }
+
+    /**
+     * Closes all connections of the pool.
+     *
+     * @throws SQLException if a database access error occurs
+     */
+    public void close() throws SQLException {
+        for (Slot reader : allReaders) {
+            reader.closeConnection();
+        }
+        writer.closeConnection();
+    }
+
+}
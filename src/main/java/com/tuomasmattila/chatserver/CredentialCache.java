@@ -0,0 +1,191 @@
+package com.tuomasmattila.chatserver;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * A bounded cache of successfully verified credentials. The cache lets
+ * {@code ChatAuthenticator} skip the database lookup and the expensive
+ * password hashing for users that have recently logged in with the same
+ * username and password.
+ *
+ * Entries are keyed by a HMAC-SHA256 digest of the username and password,
+ * computed with a random key that only lives in this process, so plaintext
+ * passwords are never stored. Entries expire after a fixed time to live and
+ * the soonest expiring entries are evicted when the cache grows over its
+ * maximum size.
+ */
+public class CredentialCache {
+
+    private static final String HMAC_ALGORITHM = "HmacSHA256";
+
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+    private final ReentrantLock evictionLock = new ReentrantLock();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final SecretKeySpec key;
+    private final ThreadLocal<Mac> macs;
+    private final int maxEntries;
+    private final long ttlMillis;
+
+    /**
+     * Creates an empty cache with a new random digest key.
+     *
+     * @param maxEntries the maximum number of cached credentials
+     * @param ttlMillis how long a verification stays valid in milliseconds
+     */
+    public CredentialCache(int maxEntries, long ttlMillis) {
+        byte[] keyBytes = new byte[32];
+        new SecureRandom().nextBytes(keyBytes);
+        this.key = new SecretKeySpec(keyBytes, HMAC_ALGORITHM);
+        this.macs = ThreadLocal.withInitial(this::createMac);
+        this.maxEntries = maxEntries;
+        this.ttlMillis = ttlMillis;
+    }
+
+    /**
+     * Checks whether the given credentials have been verified recently.
+     *
+     * @param username the username provided by the client
+     * @param password the password provided by the client
+     * @return {@code true} if the credentials are cached and not expired,
+     * otherwise {@code false}
+     */
+    public boolean contains(String username, String password) {
+        String digest = digest(username, password);
+        Entry entry = entries.get(digest);
+        if (entry != null) {
+            if (entry.expiresAt > System.currentTimeMillis()) {
+                hits.increment();
+                return true;
+            }
+            entries.remove(digest, entry);
+        }
+        misses.increment();
+        return false;
+    }
+
+    /**
+     * Stores credentials that were successfully verified against the database.
+     *
+     * @param username the verified username
+     * @param password the verified password
+     */
+    public void put(String username, String password) {
+        entries.put(digest(username, password), new Entry(username, System.currentTimeMillis() + ttlMillis));
+        if (entries.size() > maxEntries) {
+            evict();
+        }
+    }
+
+    /**
+     * Removes all cached credentials of a user. To be called when the user's
+     * password changes, so that the old password stops working at once.
+     *
+     * @param username the user whose credentials are removed
+     */
+    public void invalidate(String username) {
+        entries.values().removeIf(entry -> entry.username.equals(username));
+    }
+
+    /**
+     * Removes all cached credentials.
+     */
+    public void clear() {
+        entries.clear();
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public String getStatsAsString() {
+        return "Credential cache: size " + size() + "/" + maxEntries + ", hits " + getHits() + ", misses " + getMisses() + ", evictions " + getEvictions();
+    }
+
+    /**
+     * Drops expired entries and, if the cache is still too large, the entries
+     * that would expire soonest. Only one thread evicts at a time; other
+     * threads skip eviction while it is running.
+     */
+    private void evict() {
+        if (!evictionLock.tryLock()) {
+            return;
+        }
+        try {
+            long now = System.currentTimeMillis();
+            int before = entries.size();
+            entries.values().removeIf(entry -> entry.expiresAt <= now);
+            if (entries.size() > maxEntries) {
+                List<Map.Entry<String, Entry>> oldest = new ArrayList<>(entries.entrySet());
+                oldest.sort(Comparator.comparingLong(e -> e.getValue().expiresAt));
+                // Evict a little extra so that the next few insertions do not evict again.
+                int target = maxEntries - maxEntries / 10;
+                for (int i = 0; i < oldest.size() && entries.size() > target; i++) {
+                    entries.remove(oldest.get(i).getKey(), oldest.get(i).getValue());
+                }
+            }
+            evictions.add(Math.max(0, before - entries.size()));
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    private String digest(String username, String password) {
+        Mac mac = macs.get();
+        byte[] usernameBytes = username.getBytes(StandardCharsets.UTF_8);
+        // The length prefix keeps ("ab", "c") and ("a", "bc") from producing the same digest.
+        mac.update(ByteBuffer.allocate(4).putInt(usernameBytes.length).array());
+        mac.update(usernameBytes);
+        return Base64.getEncoder().encodeToString(mac.doFinal(password.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private Mac createMac() {
+        try {
+            Mac mac = Mac.getInstance(HMAC_ALGORITHM);
+            mac.init(key);
+            return mac;
+        } catch (NoSuchAlgorithmException | InvalidKeyException e) {
+            throw new IllegalStateException("Could not initialize credential digest: " + e.getMessage(), e);
+        }
+    }
+
+    private static class Entry {
+
+        private final String username;
+        private final long expiresAt;
+
+        Entry(String username, long expiresAt) {
+            this.username = username;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+}
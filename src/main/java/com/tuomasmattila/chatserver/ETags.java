@@ -0,0 +1,45 @@
+package com.tuomasmattila.chatserver;
+
+import java.util.List;
+
+import com.sun.net.httpserver.Headers;
+
+/**
+ * Helpers for conditional requests with entity tags.
+ */
+public class ETags {
+
+    private ETags() {
+    }
+
+    /**
+     * Checks whether the request's {@code If-None-Match} header matches the
+     * current entity tag, using the weak comparison.
+     *
+     * @param requestHeaders the request headers
+     * @param etag the current entity tag of the resource
+     * @return {@code true} if the client already has the current version and
+     * can be answered with 304 Not Modified
+     */
+    public static boolean ifNoneMatch(Headers requestHeaders, String etag) {
+        List<String> ifNoneMatch = requestHeaders.get("If-None-Match");
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        String opaque = opaqueTag(etag);
+        for (String header : ifNoneMatch) {
+            for (String candidate : header.split(",")) {
+                String trimmed = candidate.trim();
+                if (trimmed.equals("*") || opaqueTag(trimmed).equals(opaque)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static String opaqueTag(String etag) {
+        return etag.startsWith("W/") ? etag.substring(2) : etag;
+    }
+
+}
@@ -0,0 +1,347 @@
+package com.tuomasmattila.chatserver;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Writes chat messages as JSON straight to an {@code OutputStream}, encoding
+ * them to UTF-8 through a fixed-size buffer. Unlike building a {@code JSONArray},
+ * converting it to a {@code String} and that to bytes, the memory used does not
+ * grow with the number of messages written.
+ *
+ * Writers and their buffers are reused: {@code open} takes a writer from a small
+ * pool and {@code close} flushes it and returns it to the pool. Closing a writer
+ * does not close the underlying stream.
+ *
+ * The messages are written byte for byte as {@code JSONObject} writes them,
+ * with the keys in the order its hash map keeps them:
+ * <pre>{"channel":"...","id":...,"message":"...","sent":"...","user":"..."}</pre>
+ * Strings are escaped as {@code JSONObject.quote} escapes them: besides the
+ * characters JSON requires to be escaped, "/" after "&lt;" and the characters
+ * U+0080 to U+009F and U+2000 to U+20FF are escaped.
+ */
+public class JsonMessageWriter implements MessageEncoder {
+
+    private static final int BUFFER_SIZE = 8192;
+    private static final int MAX_POOLED = 64;
+    private static final ConcurrentLinkedQueue<JsonMessageWriter> pool = new ConcurrentLinkedQueue<>();
+    private static final AtomicInteger pooled = new AtomicInteger();
+    private static final byte[] HEX = "0123456789abcdef".getBytes();
+
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private int position;
+    private OutputStream out;
+
+    private JsonMessageWriter() {
+    }
+
+    /**
+     * Takes a writer from the pool, or creates one if the pool is empty.
+     *
+     * @param out the stream to write to
+     * @return a {@code JsonMessageWriter} writing to {@code out}
+     */
+    public static JsonMessageWriter open(OutputStream out) {
+        JsonMessageWriter writer = pool.poll();
+        if (writer == null) {
+            writer = new JsonMessageWriter();
+        } else {
+            pooled.decrementAndGet();
+        }
+        writer.out = out;
+        writer.position = 0;
+        return writer;
+    }
+
+    /**
+     * Writes the messages as a JSON array.
+     *
+     * @param messages the messages to write
+     * @throws IOException if writing to the stream fails
+     */
+    @Override
+    public void writeArray(List<ChatMessage> messages) throws IOException {
+        writeByte('[');
+        for (int i = 0; i < messages.size(); i++) {
+            if (i > 0) {
+                writeByte(',');
+            }
+            writeMessage(messages.get(i));
+        }
+        writeByte(']');
+    }
+
+    /**
+     * Writes a message as a JSON object.
+     *
+     * @param message the message to write
+     * @throws IOException if writing to the stream fails
+     */
+    @Override
+    public void writeMessage(ChatMessage message) throws IOException {
+        writeAscii("{\"channel\":");
+        writeString(message.getChannel());
+        writeAscii(",\"id\":");
+        writeAscii(Long.toString(message.getId()));
+        writeAscii(",\"message\":");
+        writeUtf8(message.getMessageBytes());
+        writeAscii(",\"sent\":");
+        writeTimestamp(message.dateAsInt());
+        writeAscii(",\"user\":");
+        writeString(message.getNick());
+        writeByte('}');
+    }
+
+    /**
+     * Writes the results of storing a batch of messages as a JSON array, with
+     * the keys in the order {@code JSONObject} writes them.
+     *
+     * @param statuses the results to write
+     * @throws IOException if writing to the stream fails
+     */
+    @Override
+    public void writeStatuses(List<MessageStatus> statuses) throws IOException {
+        writeByte('[');
+        for (int i = 0; i < statuses.size(); i++) {
+            MessageStatus status = statuses.get(i);
+            if (i > 0) {
+                writeByte(',');
+            }
+            if (status.getError() == null) {
+                writeAscii("{\"id\":");
+                writeAscii(Long.toString(status.getId()));
+            } else {
+                writeAscii("{\"error\":");
+                writeString(status.getError());
+            }
+            writeAscii(",\"status\":");
+            writeAscii(Integer.toString(status.getCode()));
+            writeByte('}');
+        }
+        writeByte(']');
+    }
+
+    /**
+     * Writes text that contains only ASCII characters as it is.
+     *
+     * @param text the text to write
+     * @throws IOException if writing to the stream fails
+     */
+    public void writeAscii(String text) throws IOException {
+        for (int i = 0; i < text.length(); i++) {
+            writeByte(text.charAt(i));
+        }
+    }
+
+    /**
+     * Writes the buffered bytes to the stream and flushes it.
+     *
+     * @throws IOException if writing to the stream fails
+     */
+    @Override
+    public void flush() throws IOException {
+        flushBuffer();
+        out.flush();
+    }
+
+    /**
+     * Writes the buffered bytes to the stream and returns the writer to the pool.
+     * The stream is not closed.
+     *
+     * @throws IOException if writing to the stream fails
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            flushBuffer();
+        } finally {
+            out = null;
+            if (pooled.incrementAndGet() <= MAX_POOLED) {
+                pool.offer(this);
+            } else {
+                pooled.decrementAndGet();
+            }
+        }
+    }
+
+    private void writeString(String value) throws IOException {
+        writeByte('"');
+        char previous = 0;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '/' && previous == '<') {
+                writeByte('\\');
+                writeByte('/');
+            } else if (c < 0x80) {
+                writeEscapedAscii(c);
+            } else if (isEscaped(c)) {
+                writeUnicodeEscape(c);
+            } else if (c < 0x800) {
+                writeByte(0xc0 | (c >> 6));
+                writeByte(0x80 | (c & 0x3f));
+            } else if (Character.isHighSurrogate(c) && i + 1 < value.length() && Character.isLowSurrogate(value.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                writeByte(0xf0 | (codePoint >> 18));
+                writeByte(0x80 | ((codePoint >> 12) & 0x3f));
+                writeByte(0x80 | ((codePoint >> 6) & 0x3f));
+                writeByte(0x80 | (codePoint & 0x3f));
+            } else if (Character.isSurrogate(c)) {
+                // An unpaired surrogate cannot be encoded, as in String.getBytes.
+                writeByte('?');
+            } else {
+                writeByte(0xe0 | (c >> 12));
+                writeByte(0x80 | ((c >> 6) & 0x3f));
+                writeByte(0x80 | (c & 0x3f));
+            }
+            previous = c;
+        }
+        writeByte('"');
+    }
+
+    /**
+     * Writes a string that is already UTF-8. Runs of bytes that need no
+     * escaping are copied as they are. The characters escaped above U+007F
+     * are two bytes starting with 0xc2 or three bytes starting with 0xe2.
+     */
+    private void writeUtf8(byte[] value) throws IOException {
+        writeByte('"');
+        int start = 0;
+        for (int i = 0; i < value.length; i++) {
+            int b = value[i] & 0xff;
+            char escaped = 0;
+            int length = 1;
+            if (b == 0xc2 && i + 1 < value.length) {
+                escaped = (char) (value[i + 1] & 0xff);
+                length = 2;
+            } else if (b == 0xe2 && i + 2 < value.length) {
+                escaped = (char) (0x2000 | (value[i + 1] & 0x3f) << 6 | value[i + 2] & 0x3f);
+                length = 3;
+            }
+            if (escaped != 0 && !isEscaped(escaped)) {
+                continue;
+            }
+            boolean slash = b == '/' && i > 0 && value[i - 1] == '<';
+            if (escaped == 0 && b >= 0x20 && b != '"' && b != '\\' && !slash) {
+                continue;
+            }
+            writeBytes(value, start, i - start);
+            if (escaped != 0) {
+                writeUnicodeEscape(escaped);
+                i += length - 1;
+            } else if (slash) {
+                writeByte('\\');
+                writeByte('/');
+            } else {
+                writeEscapedAscii((char) b);
+            }
+            start = i + 1;
+        }
+        writeBytes(value, start, value.length - start);
+        writeByte('"');
+    }
+
+    /**
+     * Tells whether {@code JSONObject.quote} escapes a character above U+007F.
+     */
+    private static boolean isEscaped(char c) {
+        return (c >= 0x80 && c < 0xa0) || (c >= 0x2000 && c < 0x2100);
+    }
+
+    private void writeEscapedAscii(char c) throws IOException {
+        switch (c) {
+            case '"':
+                writeByte('\\');
+                writeByte('"');
+                break;
+            case '\\':
+                writeByte('\\');
+                writeByte('\\');
+                break;
+            case '\n':
+                writeByte('\\');
+                writeByte('n');
+                break;
+            case '\r':
+                writeByte('\\');
+                writeByte('r');
+                break;
+            case '\t':
+                writeByte('\\');
+                writeByte('t');
+                break;
+            case '\b':
+                writeByte('\\');
+                writeByte('b');
+                break;
+            case '\f':
+                writeByte('\\');
+                writeByte('f');
+                break;
+            default:
+                if (c < 0x20) {
+                    writeUnicodeEscape(c);
+                } else {
+                    writeByte(c);
+                }
+        }
+    }
+
+    /**
+     * Writes a time in the form {@code OffsetDateTime.toString} gives it in
+     * UTC, such as "2021-12-21T07:57:47.123Z". That is the form of
+     * {@code LocalDateTime.toString} followed by the offset, which leaves out
+     * the seconds and milliseconds when they are zero; the ISO formatters of
+     * {@code DateTimeFormatter} always write the seconds, so they would not
+     * give the same bytes.
+     */
+    private void writeTimestamp(long epochMillis) throws IOException {
+        LocalDateTime time = LocalDateTime.ofEpochSecond(Math.floorDiv(epochMillis, 1000L),
+                (int) Math.floorMod(epochMillis, 1000L) * 1_000_000, ZoneOffset.UTC);
+        writeByte('"');
+        writeAscii(time.toString());
+        writeByte('Z');
+        writeByte('"');
+    }
+
+    private void writeUnicodeEscape(char c) throws IOException {
+        writeByte('\\');
+        writeByte('u');
+        writeByte(HEX[(c >> 12) & 0xf]);
+        writeByte(HEX[(c >> 8) & 0xf]);
+        writeByte(HEX[(c >> 4) & 0xf]);
+        writeByte(HEX[c & 0xf]);
+    }
+
+    private void writeByte(int b) throws IOException {
+        if (position == buffer.length) {
+            flushBuffer();
+        }
+        buffer[position++] = (byte) b;
+    }
+
+    private void writeBytes(byte[] bytes, int offset, int length) throws IOException {
+        while (length > 0) {
+            if (position == buffer.length) {
+                flushBuffer();
+            }
+            int count = Math.min(length, buffer.length - position);
+            System.arraycopy(bytes, offset, buffer, position, count);
+            position += count;
+            offset += count;
+            length -= count;
+        }
+    }
+
+    private void flushBuffer() throws IOException {
+        if (position > 0) {
+            out.write(buffer, 0, position);
+            position = 0;
+        }
+    }
+
+}
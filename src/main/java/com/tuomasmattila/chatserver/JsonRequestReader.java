@@ -0,0 +1,355 @@
+package com.tuomasmattila.chatserver;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.sun.net.httpserver.HttpExchange;
+
+/**
+ * Reads JSON request bodies. Unlike reading the body into a {@code String}
+ * and building a {@code JSONObject} of it, the body is parsed straight from
+ * the request stream and only the strings of the requested fields are kept,
+ * as UTF-8 bytes. Readers are pooled like {@code JsonMessageWriter}s:
+ * {@code open} takes a reader from the pool and {@code close} returns it.
+ */
+public class JsonRequestReader extends RequestReader {
+
+    private static final int MAX_POOLED = 64;
+    private static final int MAX_DEPTH = 64;
+    private static final ConcurrentLinkedQueue<JsonRequestReader> pool = new ConcurrentLinkedQueue<>();
+    private static final AtomicInteger pooled = new AtomicInteger();
+
+    private boolean firstElement;
+
+    private JsonRequestReader() {
+    }
+
+    /**
+     * Takes a reader from the pool, or creates one if the pool is empty, to read
+     * the body of a request.
+     *
+     * @param exchange the {@code HttpExchange} whose request body is read
+     * @param maxSize the largest body accepted, in bytes
+     * @return a {@code JsonRequestReader} reading the request body
+     * @throws BodyTooLargeException if the Content-Length of the request is larger than {@code maxSize}
+     */
+    public static JsonRequestReader open(HttpExchange exchange, long maxSize) throws BodyTooLargeException {
+        checkContentLength(exchange, maxSize);
+        JsonRequestReader reader = pool.poll();
+        if (reader == null) {
+            reader = new JsonRequestReader();
+        } else {
+            pooled.decrementAndGet();
+        }
+        reader.start(exchange.getRequestBody(), maxSize);
+        return reader;
+    }
+
+    /**
+     * Returns the first character of the next value without reading it.
+     *
+     * @return the character, or -1 at the end of the body
+     * @throws IOException if reading the body fails
+     */
+    public int peek() throws IOException {
+        skipWhitespace();
+        return position < limit ? buffer[position] & 0xff : -1;
+    }
+
+    @Override
+    public boolean isArrayNext() throws IOException {
+        return peek() == '[';
+    }
+
+    @Override
+    public void beginArray() throws IOException {
+        if (peek() != '[') {
+            throw syntaxError("A JSONArray text must start with '['");
+        }
+        position++;
+        firstElement = true;
+    }
+
+    @Override
+    public boolean hasNext() throws IOException {
+        int c = peek();
+        if (c == ']') {
+            position++;
+            return false;
+        }
+        if (!firstElement) {
+            if (c != ',') {
+                throw syntaxError("Expected a ',' or ']'");
+            }
+            position++;
+        }
+        firstElement = false;
+        return true;
+    }
+
+    @Override
+    public boolean readObject(byte[][] fields) throws IOException {
+        startObject(fields);
+        if (peek() != '{') {
+            skipValue(0);
+            return false;
+        }
+        position++;
+        if (peek() == '}') {
+            position++;
+            return true;
+        }
+        while (true) {
+            if (peek() != '"') {
+                throw syntaxError("Expected a string key");
+            }
+            position++;
+            int keyStart = valuesEnd;
+            int field = findField(keyStart, readString(true));
+            valuesEnd = keyStart;
+            if (peek() != ':') {
+                throw syntaxError("Expected a ':' after a key");
+            }
+            position++;
+            if (field < 0) {
+                skipValue(1);
+            } else if (peek() == '"') {
+                // A repeated field replaces the earlier value.
+                position++;
+                int start = valuesEnd;
+                setString(field, start, readString(true));
+            } else {
+                skipValue(1);
+                setNotString(field);
+            }
+            int c = peek();
+            if (c == '}') {
+                position++;
+                return true;
+            }
+            if (c != ',') {
+                throw syntaxError("Expected a ',' or '}'");
+            }
+            position++;
+        }
+    }
+
+    @Override
+    public void endDocument() throws IOException {
+        if (peek() != -1) {
+            throw syntaxError("Unexpected content after the JSON text");
+        }
+    }
+
+    @Override
+    protected void recycle() {
+        if (pooled.incrementAndGet() <= MAX_POOLED) {
+            pool.offer(this);
+        } else {
+            pooled.decrementAndGet();
+        }
+    }
+
+    /**
+     * Reads a string after its opening quote, decoding it to UTF-8 at the end
+     * of {@code values}, or only skips it.
+     *
+     * @param keep {@code false} to skip the string
+     * @return the length of the string in bytes, or 0 if it was skipped
+     */
+    private int readString(boolean keep) throws IOException {
+        int start = valuesEnd;
+        boolean nonAscii = false;
+        while (true) {
+            int c = read();
+            if (c == '"') {
+                break;
+            } else if (c == '\\') {
+                readEscape();
+            } else if (c < 0x20) {
+                throw syntaxError(c < 0 ? "Unterminated string" : "Control character in a string");
+            } else {
+                nonAscii |= c >= 0x80;
+                append(c);
+            }
+        }
+        if (!keep) {
+            valuesEnd = start;
+        } else if (nonAscii) {
+            replaceInvalidUtf8(start);
+        }
+        return valuesEnd - start;
+    }
+
+    private void readEscape() throws IOException {
+        int c = read();
+        switch (c) {
+            case '"':
+            case '\\':
+            case '/':
+                append(c);
+                break;
+            case 'b':
+                append('\b');
+                break;
+            case 'f':
+                append('\f');
+                break;
+            case 'n':
+                append('\n');
+                break;
+            case 'r':
+                append('\r');
+                break;
+            case 't':
+                append('\t');
+                break;
+            case 'u':
+                int codePoint = readHex();
+                if (Character.isHighSurrogate((char) codePoint) && ensure(2) && buffer[position] == '\\' && buffer[position + 1] == 'u') {
+                    position += 2;
+                    int low = readHex();
+                    if (Character.isLowSurrogate((char) low)) {
+                        codePoint = Character.toCodePoint((char) codePoint, (char) low);
+                    } else {
+                        appendCodePoint(codePoint);
+                        codePoint = low;
+                    }
+                }
+                appendCodePoint(codePoint);
+                break;
+            default:
+                throw syntaxError("Illegal escape");
+        }
+    }
+
+    private int readHex() throws IOException {
+        int value = 0;
+        for (int i = 0; i < 4; i++) {
+            int digit = Character.digit(read(), 16);
+            if (digit < 0) {
+                throw syntaxError("Illegal escape");
+            }
+            value = value << 4 | digit;
+        }
+        return value;
+    }
+
+    private void appendCodePoint(int codePoint) {
+        if (codePoint < 0x80) {
+            append(codePoint);
+        } else if (codePoint < 0x800) {
+            append(0xc0 | (codePoint >> 6));
+            append(0x80 | (codePoint & 0x3f));
+        } else if (Character.isSurrogate((char) codePoint)) {
+            // An unpaired surrogate cannot be encoded, as in String.getBytes.
+            append('?');
+        } else if (codePoint < 0x10000) {
+            append(0xe0 | (codePoint >> 12));
+            append(0x80 | ((codePoint >> 6) & 0x3f));
+            append(0x80 | (codePoint & 0x3f));
+        } else {
+            append(0xf0 | (codePoint >> 18));
+            append(0x80 | ((codePoint >> 12) & 0x3f));
+            append(0x80 | ((codePoint >> 6) & 0x3f));
+            append(0x80 | (codePoint & 0x3f));
+        }
+    }
+
+    private void skipValue(int depth) throws IOException {
+        if (depth > MAX_DEPTH) {
+            throw syntaxError("Nesting too deep");
+        }
+        int c = peek();
+        if (c == '"') {
+            position++;
+            readString(false);
+        } else if (c == '{' || c == '[') {
+            position++;
+            char close = c == '{' ? '}' : ']';
+            if (peek() == close) {
+                position++;
+                return;
+            }
+            while (true) {
+                if (close == '}') {
+                    if (peek() != '"') {
+                        throw syntaxError("Expected a string key");
+                    }
+                    skipValue(depth + 1);
+                    if (peek() != ':') {
+                        throw syntaxError("Expected a ':' after a key");
+                    }
+                    position++;
+                }
+                skipValue(depth + 1);
+                int next = peek();
+                if (next == close) {
+                    position++;
+                    return;
+                }
+                if (next != ',') {
+                    throw syntaxError("Expected a ',' or '" + close + "'");
+                }
+                position++;
+            }
+        } else {
+            skipLiteral();
+        }
+    }
+
+    /**
+     * Skips a number, {@code true}, {@code false} or {@code null}.
+     */
+    private void skipLiteral() throws IOException {
+        int start = valuesEnd;
+        int c = peek();
+        while (c == '-' || c == '+' || c == '.' || (c >= '0' && c <= '9') || (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z')) {
+            append(c);
+            position++;
+            c = position < limit || fill() ? buffer[position] & 0xff : -1;
+        }
+        int length = valuesEnd - start;
+        valuesEnd = start;
+        if (length == 0) {
+            throw syntaxError(c < 0 ? "Unexpected end of the JSON text" : "Unexpected character");
+        }
+        int first = values[start];
+        if (first == '-' || (first >= '0' && first <= '9')) {
+            try {
+                Double.parseDouble(new String(values, start, length, StandardCharsets.US_ASCII));
+                return;
+            } catch (NumberFormatException e) {
+                throw syntaxError("Invalid number");
+            }
+        }
+        if (!(matches(start, length, "true") || matches(start, length, "false") || matches(start, length, "null"))) {
+            throw syntaxError("Invalid value");
+        }
+    }
+
+    private boolean matches(int start, int length, String literal) {
+        if (length != literal.length()) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (values[start + i] != literal.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void skipWhitespace() throws IOException {
+        while (position < limit || fill()) {
+            byte b = buffer[position];
+            if (b != ' ' && b != '\n' && b != '\r' && b != '\t') {
+                return;
+            }
+            position++;
+        }
+    }
+
+}
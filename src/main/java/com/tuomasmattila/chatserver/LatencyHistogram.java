@@ -0,0 +1,119 @@
+package com.tuomasmattila.chatserver;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts durations in buckets of logarithmic width, like an HdrHistogram with
+ * a precision of 1/16: durations are counted in microseconds, exactly up to
+ * 16 µs and then in 16 buckets for every power of two, up to about an hour.
+ * The buckets are exported to Prometheus as the cumulative counts below a
+ * few bounds that are powers of two, which are bucket edges and so counted
+ * exactly; Prometheus computes the percentiles over any window from those.
+ *
+ * Recording is an atomic increment without locks. The counts are kept in
+ * several stripes, chosen by the recording thread, so that threads rarely
+ * update the same counters; the stripes are only added up when the histogram
+ * is read.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int MAX_MAGNITUDE = 31;
+    private static final int BUCKETS = (MAX_MAGNITUDE - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+    private static final int SUM = BUCKETS;
+    private static final int STRIPES = Math.min(16, Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors() - 1)) << 1);
+
+    private final AtomicLongArray[] stripes = new AtomicLongArray[STRIPES];
+
+    public LatencyHistogram() {
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new AtomicLongArray(BUCKETS + 1);
+        }
+    }
+
+    /**
+     * Records the time passed since a start time, if metrics are enabled.
+     *
+     * @param startNanos the start time from {@code System.nanoTime()}
+     */
+    public void recordSince(long startNanos) {
+        if (Metrics.ENABLED) {
+            record(System.nanoTime() - startNanos);
+        }
+    }
+
+    /**
+     * Records a duration.
+     *
+     * @param nanos the duration in nanoseconds
+     */
+    public void record(long nanos) {
+        long micros = Math.max(0, TimeUnit.NANOSECONDS.toMicros(nanos));
+        AtomicLongArray stripe = stripes[(int) (Thread.currentThread().getId() * 0x9E3779B97F4A7C15L >>> 32) & (STRIPES - 1)];
+        stripe.getAndIncrement(bucketOf(micros));
+        stripe.getAndAdd(SUM, micros);
+    }
+
+    /**
+     * Adds up the stripes.
+     *
+     * @return the counts of the buckets, followed by the sum of the durations
+     * in microseconds
+     */
+    public long[] snapshot() {
+        long[] counts = new long[BUCKETS + 1];
+        for (AtomicLongArray stripe : stripes) {
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] += stripe.get(i);
+            }
+        }
+        return counts;
+    }
+
+    /**
+     * Counts the durations in a snapshot that are shorter than a bound. The
+     * count is exact when the bound is a power of two of at least 16 µs,
+     * since those are bucket edges; other bounds are rounded down to the
+     * edge below them.
+     *
+     * @param snapshot the result of {@code snapshot}
+     * @param micros the bound in microseconds, or {@code Long.MAX_VALUE} for
+     * all durations
+     * @return the number of durations recorded below the bound
+     */
+    public static long countBelow(long[] snapshot, long micros) {
+        long count = 0;
+        for (int i = 0; i < BUCKETS && highestValueOf(i) < micros; i++) {
+            count += snapshot[i];
+        }
+        return count;
+    }
+
+    public static long sumOf(long[] snapshot) {
+        return snapshot[SUM];
+    }
+
+    static int bucketOf(long micros) {
+        if (micros < SUB_BUCKETS) {
+            return (int) micros;
+        }
+        int magnitude = 63 - Long.numberOfLeadingZeros(micros);
+        if (magnitude > MAX_MAGNITUDE) {
+            return BUCKETS - 1;
+        }
+        int shift = magnitude - SUB_BUCKET_BITS;
+        return (magnitude - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + (int) (micros >> shift) - SUB_BUCKETS;
+    }
+
+    static long highestValueOf(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int shift = bucket / SUB_BUCKETS - 1;
+        long lowest = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+
+}
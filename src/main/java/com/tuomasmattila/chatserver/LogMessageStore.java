@@ -0,0 +1,800 @@
+package com.tuomasmattila.chatserver;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+import org.apache.commons.codec.DecoderException;
+import org.apache.commons.codec.binary.Hex;
+
+/**
+ * Stores messages in an append-only log. Every channel has its own directory
+ * of segment files, and messages are appended to the newest segment of their
+ * channel. A segment starts small and doubles in size when a message does not
+ * fit, up to the segment size; when it is full, a new segment is started. So a
+ * quiet channel takes little disk space, and the zeros written to allocate a
+ * segment are never more than the messages already in it. Segments are
+ * memory-mapped, so appending a message is a copy into memory, reading is done
+ * straight from the mapping, and a batch of messages is made durable with one
+ * {@code force()} per segment it touched.
+ *
+ * A record in a segment is:
+ * <pre>
+ * int length, int crc32, long id, long sent, short user length, user, message
+ * </pre>
+ * where the length and checksum cover everything after the checksum, and the
+ * strings are UTF-8. The rest of a segment is zeros, so a length of 0 ends it.
+ *
+ * Each channel has a sparse index in memory: the records are grouped into
+ * blocks of {@code BLOCK_RECORDS}, and for each block the index has its first
+ * id, position and the latest sending time in it. Ids grow along the log, so a
+ * page is found by a binary search on the first ids. Sending times are given
+ * by the clients and are only roughly in order, so queries by time skip the
+ * blocks whose latest sending time is too early and read the rest.
+ *
+ * When a segment is full, its index is written next to it in a {@code .idx}
+ * file, and the index of the newest segment is written when the store is
+ * closed. When the store is opened, the indexes are loaded from these files,
+ * and a segment without one, such as the newest segment after a crash, is
+ * scanned. The scan stops at the first record that is incomplete or whose
+ * checksum does not match, and the rest of the segment is cleared, so the log
+ * continues after the last message that was completely written.
+ */
+public class LogMessageStore implements MessageStore {
+
+    private static final String CHANNEL_PREFIX = "channel-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final String INDEX_SUFFIX = ".idx";
+    private static final int INDEX_MAGIC = 0x4d534749;
+    private static final int RECORD_HEADER_SIZE = 8;
+    private static final int MIN_PAYLOAD_SIZE = 18;
+    private static final int BLOCK_RECORDS = 64;
+    private static final int INITIAL_SEGMENT_SIZE = 64 * 1024;
+    private static final Comparator<ChatMessage> BY_SENT = Comparator.comparingLong(ChatMessage::dateAsInt).thenComparingLong(ChatMessage::getId);
+
+    private final Path directory;
+    private final int segmentSize;
+    private final ConcurrentHashMap<String, ChannelLog> channels = new ConcurrentHashMap<>();
+    private final ReentrantLock appendLock = new ReentrantLock();
+    private final CRC32 crc = new CRC32();
+    private ByteBuffer recordBuffer = ByteBuffer.allocate(1024);
+    private volatile long lastMessageId;
+    private final AtomicInteger messageCount = new AtomicInteger();
+    private final AtomicInteger segmentCount = new AtomicInteger();
+    private final LongAdder recoveredSegments = new LongAdder();
+
+    /**
+     * Opens the log in a directory, creating the directory if it does not exist.
+     *
+     * @param directory the directory of the log
+     * @param segmentSize the largest size of a segment file in bytes
+     * @throws IOException if reading the log fails
+     */
+    public LogMessageStore(Path directory, int segmentSize) throws IOException {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        Files.createDirectories(directory);
+        try (DirectoryStream<Path> channelDirectories = Files.newDirectoryStream(directory, CHANNEL_PREFIX + "*")) {
+            for (Path channelDirectory : channelDirectories) {
+                String name = channelDirectory.getFileName().toString().substring(CHANNEL_PREFIX.length());
+                String channel;
+                try {
+                    channel = new String(Hex.decodeHex(name), StandardCharsets.UTF_8);
+                } catch (DecoderException e) {
+                    throw new IOException("Not a channel directory: " + channelDirectory, e);
+                }
+                ChannelLog log = new ChannelLog(channel, channelDirectory);
+                log.open();
+                channels.put(channel, log);
+                lastMessageId = Math.max(lastMessageId, log.lastId);
+                messageCount.addAndGet(log.recordCount);
+            }
+        }
+    }
+
+    /**
+     * Appends the messages to their channels' segments and forces the touched
+     * segments to disk before making the messages visible to readers. If the
+     * append fails, the records written so far are cleared.
+     */
+    @Override
+    public void append(List<ChatMessage> messages) throws SQLException {
+        appendLock.lock();
+        Set<ChannelLog> touched = new LinkedHashSet<>();
+        try {
+            for (ChatMessage message : messages) {
+                ChannelLog log = channels.get(message.getChannel());
+                if (log == null) {
+                    Path channelDirectory = directory.resolve(CHANNEL_PREFIX + Hex.encodeHexString(message.getChannel().getBytes(StandardCharsets.UTF_8)));
+                    Files.createDirectories(channelDirectory);
+                    log = new ChannelLog(message.getChannel(), channelDirectory);
+                    channels.put(message.getChannel(), log);
+                }
+                touched.add(log);
+                log.write(message);
+            }
+            for (ChannelLog log : touched) {
+                log.force();
+            }
+            for (ChannelLog log : touched) {
+                log.publish();
+            }
+            messageCount.addAndGet(messages.size());
+            if (!messages.isEmpty()) {
+                lastMessageId = Math.max(lastMessageId, messages.get(messages.size() - 1).getId());
+            }
+        } catch (IOException | RuntimeException e) {
+            for (ChannelLog log : touched) {
+                log.discard();
+            }
+            throw new SQLException("Could not append to the message log: " + e.getMessage(), e);
+        } finally {
+            appendLock.unlock();
+        }
+    }
+
+    @Override
+    public ArrayList<ChatMessage> getMessagesSince(String channel, long since) {
+        ChannelLog log = channels.get(channel);
+        return log == null ? new ArrayList<>() : log.getMessagesSince(since);
+    }
+
+    @Override
+    public ArrayList<ChatMessage> getLatestMessages(String channel, int count) {
+        ChannelLog log = channels.get(channel);
+        return log == null ? new ArrayList<>() : log.getLatestMessages(count);
+    }
+
+    @Override
+    public ArrayList<ChatMessage> getMessagesPage(String channel, long cursor, boolean before, int limit) {
+        ChannelLog log = channels.get(channel);
+        return log == null ? new ArrayList<>() : log.getMessagesPage(cursor, before, limit);
+    }
+
+    @Override
+    public long getLastMessageId() {
+        return lastMessageId;
+    }
+
+    @Override
+    public int numberOfMessages() {
+        return messageCount.get();
+    }
+
+    @Override
+    public String getStatsAsString() {
+        return "Message store: log, channels " + channels.size() + ", segments " + segmentCount.get() + ", messages " + messageCount.get() + ", segments recovered " + recoveredSegments.sum();
+    }
+
+    /**
+     * Writes the index of every channel's newest segment, so that the next
+     * open does not have to scan them.
+     */
+    @Override
+    public void close() throws SQLException {
+        appendLock.lock();
+        try {
+            for (ChannelLog log : channels.values()) {
+                log.close();
+            }
+        } catch (IOException e) {
+            throw new SQLException("Could not close the message log: " + e.getMessage(), e);
+        } finally {
+            appendLock.unlock();
+        }
+    }
+
+    /**
+     * The segments and the sparse index of one channel. Records are written
+     * and the index is changed only by the thread holding the append lock,
+     * and readers see a record only after it has been published under the
+     * write lock.
+     */
+    private class ChannelLog {
+
+        private final String channel;
+        private final Path directory;
+        private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+        private final List<Segment> segments = new ArrayList<>();
+        private final List<PendingRecord> pending = new ArrayList<>();
+        private final List<Segment> sealing = new ArrayList<>();
+        private Segment current;
+        private int writePosition;
+        private long lastId;
+        private int recordCount;
+
+        // The sparse index: one entry per block of records.
+        private Segment[] blockSegments = new Segment[16];
+        private long[] blockFirstIds = new long[16];
+        private int[] blockPositions = new int[16];
+        private long[] blockMaxSent = new long[16];
+        // The latest sending time in the block or any block before it, for skipping blocks in bulk.
+        private long[] blockMaxSentSoFar = new long[16];
+        private int[] blockRecords = new int[16];
+        private int blockCount;
+
+        ChannelLog(String channel, Path directory) {
+            this.channel = channel;
+            this.directory = directory;
+        }
+
+        /**
+         * Loads the segments of the channel, from their index files where
+         * possible and otherwise by scanning them.
+         */
+        void open() throws IOException {
+            List<Path> paths = new ArrayList<>();
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + SEGMENT_SUFFIX)) {
+                files.forEach(paths::add);
+            }
+            paths.sort(null);
+            for (int i = 0; i < paths.size(); i++) {
+                boolean newest = i == paths.size() - 1;
+                Segment segment = Segment.open(paths.get(i));
+                segments.add(segment);
+                segmentCount.incrementAndGet();
+                Path indexPath = indexPath(segment);
+                if (!loadIndex(segment, indexPath)) {
+                    int end = scan(segment);
+                    recoveredSegments.increment();
+                    if (newest) {
+                        if (segment.clearFrom(end)) {
+                            ChatServer.warn("Message log: discarded an incomplete record at " + segment.path + ":" + end);
+                        }
+                    } else {
+                        writeIndex(segment);
+                    }
+                }
+                if (newest) {
+                    // The index of the newest segment becomes stale with the next append.
+                    Files.deleteIfExists(indexPath);
+                    current = segment;
+                    writePosition = segment.end;
+                }
+            }
+        }
+
+        /**
+         * Writes a record after the published ones. It is not visible to
+         * readers until {@code publish} is called.
+         */
+        void write(ChatMessage message) throws IOException {
+            byte[] user = message.getNick().getBytes(StandardCharsets.UTF_8);
+            byte[] text = message.getMessageBytes();
+            if (user.length > 0xffff) {
+                throw new IOException("User name is too long.");
+            }
+            int payload = MIN_PAYLOAD_SIZE + user.length + text.length;
+            int size = RECORD_HEADER_SIZE + payload;
+            if (current == null || writePosition + size > current.capacity) {
+                growOrRoll(message.getId(), size);
+            }
+            if (recordBuffer.capacity() < size) {
+                recordBuffer = ByteBuffer.allocate(Integer.highestOneBit(size) << 1);
+            }
+            ByteBuffer record = recordBuffer.clear();
+            record.putInt(payload).putInt(0).putLong(message.getId()).putLong(message.dateAsInt()).putShort((short) user.length).put(user).put(text);
+            crc.reset();
+            crc.update(record.array(), RECORD_HEADER_SIZE, payload);
+            record.putInt(4, (int) crc.getValue());
+            current.buffer.put(writePosition, record.array(), 0, size);
+            pending.add(new PendingRecord(current, writePosition, size, message.getId(), message.dateAsInt()));
+            writePosition += size;
+        }
+
+        /**
+         * Forces the written records to disk, one range per segment.
+         */
+        void force() {
+            int start = 0;
+            for (int i = 1; i <= pending.size(); i++) {
+                if (i == pending.size() || pending.get(i).segment != pending.get(start).segment) {
+                    PendingRecord first = pending.get(start);
+                    PendingRecord last = pending.get(i - 1);
+                    first.segment.buffer.force(first.position, last.position + last.size - first.position);
+                    start = i;
+                }
+            }
+        }
+
+        /**
+         * Makes the written records visible to readers, and writes the index
+         * of the segments that became full.
+         */
+        void publish() {
+            lock.writeLock().lock();
+            try {
+                for (PendingRecord record : pending) {
+                    indexRecord(record.segment, record.position, record.size, record.id, record.sent);
+                }
+            } finally {
+                lock.writeLock().unlock();
+            }
+            pending.clear();
+            for (Segment segment : sealing) {
+                try {
+                    writeIndex(segment);
+                } catch (IOException e) {
+                    // The segment is scanned the next time the log is opened.
+                    ChatServer.warn("Message log: could not write the index of " + segment.path + ": " + e.getMessage());
+                }
+            }
+            sealing.clear();
+        }
+
+        /**
+         * Clears the records written since the last {@code publish}.
+         */
+        void discard() {
+            for (PendingRecord record : pending) {
+                record.segment.clear(record.position, record.position + record.size);
+            }
+            pending.clear();
+            writePosition = current == null ? 0 : current.end;
+        }
+
+        void close() throws IOException {
+            if (current != null) {
+                writeIndex(current);
+            }
+        }
+
+        ArrayList<ChatMessage> getMessagesSince(long since) {
+            ArrayList<ChatMessage> messages = new ArrayList<>();
+            lock.readLock().lock();
+            try {
+                for (int block = firstBlockSentAfter(since); block < blockCount; block++) {
+                    if (blockMaxSent[block] > since) {
+                        readBlock(block, since, Long.MIN_VALUE, Long.MAX_VALUE, messages);
+                    }
+                }
+            } finally {
+                lock.readLock().unlock();
+            }
+            messages.sort(BY_SENT);
+            return messages;
+        }
+
+        /**
+         * Goes through the blocks from the newest, keeping the {@code count}
+         * latest messages, and skips the blocks that cannot have later ones.
+         * With sending times roughly in order, only the last blocks are read.
+         */
+        ArrayList<ChatMessage> getLatestMessages(int count) {
+            if (count <= 0) {
+                return new ArrayList<>();
+            }
+            PriorityQueue<ChatMessage> latest = new PriorityQueue<>(count, BY_SENT);
+            List<ChatMessage> blockMessages = new ArrayList<>(BLOCK_RECORDS);
+            lock.readLock().lock();
+            try {
+                for (int block = blockCount - 1; block >= 0; block--) {
+                    if (latest.size() == count) {
+                        long earliest = latest.peek().dateAsInt();
+                        if (blockMaxSentSoFar[block] <= earliest) {
+                            break;
+                        }
+                        if (blockMaxSent[block] <= earliest) {
+                            continue;
+                        }
+                    }
+                    blockMessages.clear();
+                    readBlock(block, Long.MIN_VALUE, Long.MIN_VALUE, Long.MAX_VALUE, blockMessages);
+                    for (ChatMessage message : blockMessages) {
+                        if (latest.size() < count) {
+                            latest.add(message);
+                        } else if (BY_SENT.compare(message, latest.peek()) > 0) {
+                            latest.poll();
+                            latest.add(message);
+                        }
+                    }
+                }
+            } finally {
+                lock.readLock().unlock();
+            }
+            ArrayList<ChatMessage> messages = new ArrayList<>(latest);
+            messages.sort(BY_SENT);
+            return messages;
+        }
+
+        ArrayList<ChatMessage> getMessagesPage(long cursor, boolean before, int limit) {
+            ArrayList<ChatMessage> messages = new ArrayList<>();
+            lock.readLock().lock();
+            try {
+                if (cursor == -1 || before) {
+                    long idBefore = cursor == -1 ? Long.MAX_VALUE : cursor;
+                    int block = cursor == -1 ? blockCount - 1 : findBlock(cursor - 1);
+                    List<ChatMessage> blockMessages = new ArrayList<>(BLOCK_RECORDS);
+                    for (; block >= 0 && messages.size() < limit; block--) {
+                        blockMessages.clear();
+                        readBlock(block, Long.MIN_VALUE, Long.MIN_VALUE, idBefore, blockMessages);
+                        messages.addAll(0, blockMessages);
+                    }
+                    if (messages.size() > limit) {
+                        messages.subList(0, messages.size() - limit).clear();
+                    }
+                } else {
+                    for (int block = Math.max(0, findBlock(cursor)); block < blockCount && messages.size() < limit; block++) {
+                        readBlock(block, Long.MIN_VALUE, cursor, Long.MAX_VALUE, messages);
+                    }
+                    if (messages.size() > limit) {
+                        messages.subList(limit, messages.size()).clear();
+                    }
+                }
+            } finally {
+                lock.readLock().unlock();
+            }
+            return messages;
+        }
+
+        /**
+         * @return the first block that may have messages sent after {@code since}
+         */
+        private int firstBlockSentAfter(long since) {
+            int low = 0;
+            int high = blockCount;
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (blockMaxSentSoFar[middle] > since) {
+                    high = middle;
+                } else {
+                    low = middle + 1;
+                }
+            }
+            return low;
+        }
+
+        /**
+         * @return the last block whose first id is at most {@code id}, or -1 if there is none
+         */
+        private int findBlock(long id) {
+            int index = Arrays.binarySearch(blockFirstIds, 0, blockCount, id);
+            return index >= 0 ? index : -index - 2;
+        }
+
+        /**
+         * Reads the records of a block that were sent after {@code sentAfter}
+         * and whose id is between {@code idAfter} and {@code idBefore}.
+         */
+        private void readBlock(int block, long sentAfter, long idAfter, long idBefore, List<ChatMessage> messages) {
+            Segment segment = blockSegments[block];
+            int end = block + 1 < blockCount && blockSegments[block + 1] == segment ? blockPositions[block + 1] : segment.end;
+            MappedByteBuffer buffer = segment.buffer;
+            for (int position = blockPositions[block]; position < end; position += RECORD_HEADER_SIZE + buffer.getInt(position)) {
+                long id = buffer.getLong(position + 8);
+                long sent = buffer.getLong(position + 16);
+                if (sent <= sentAfter || id <= idAfter || id >= idBefore) {
+                    continue;
+                }
+                int payload = buffer.getInt(position);
+                int userLength = buffer.getShort(position + 24) & 0xffff;
+                byte[] user = new byte[userLength];
+                byte[] text = new byte[payload - MIN_PAYLOAD_SIZE - userLength];
+                buffer.get(position + RECORD_HEADER_SIZE + MIN_PAYLOAD_SIZE, user);
+                buffer.get(position + RECORD_HEADER_SIZE + MIN_PAYLOAD_SIZE + userLength, text);
+                ChatMessage message = new ChatMessage();
+                message.setId(id);
+                message.setSent(sent);
+                message.setNick(new String(user, StandardCharsets.UTF_8));
+                message.setMessageBytes(text);
+                message.setChannel(channel);
+                messages.add(message);
+            }
+        }
+
+        /**
+         * Makes room for a record: doubles the current segment until the
+         * record fits, as long as it stays within the segment size, and
+         * otherwise starts a new segment.
+         */
+        private void growOrRoll(long firstId, int recordSize) throws IOException {
+            long needed = (long) writePosition + recordSize;
+            if (current != null && current.capacity < segmentSize && needed <= segmentSize) {
+                long capacity = current.capacity;
+                while (capacity < needed) {
+                    capacity *= 2;
+                }
+                current.grow((int) Math.min(capacity, segmentSize));
+                return;
+            }
+            int capacity = Math.max(Math.min(INITIAL_SEGMENT_SIZE, segmentSize), recordSize + RECORD_HEADER_SIZE);
+            Segment segment = Segment.create(directory.resolve(String.format("%020d", firstId) + SEGMENT_SUFFIX), capacity);
+            if (current != null) {
+                sealing.add(current);
+            }
+            segments.add(segment);
+            segmentCount.incrementAndGet();
+            current = segment;
+            writePosition = 0;
+        }
+
+        /**
+         * Adds a record to the sparse index and makes it the last record of its segment.
+         */
+        private void indexRecord(Segment segment, int position, int size, long id, long sent) {
+            int last = blockCount - 1;
+            if (last < 0 || blockSegments[last] != segment || blockRecords[last] == BLOCK_RECORDS) {
+                addBlock(segment, id, position, sent, 0);
+                last = blockCount - 1;
+            }
+            blockMaxSent[last] = Math.max(blockMaxSent[last], sent);
+            blockMaxSentSoFar[last] = Math.max(blockMaxSentSoFar[last], sent);
+            blockRecords[last]++;
+            segment.end = position + size;
+            segment.lastId = id;
+            lastId = id;
+            recordCount++;
+        }
+
+        private void addBlock(Segment segment, long firstId, int position, long maxSent, int records) {
+            if (blockCount == blockFirstIds.length) {
+                int length = blockCount * 2;
+                blockSegments = Arrays.copyOf(blockSegments, length);
+                blockFirstIds = Arrays.copyOf(blockFirstIds, length);
+                blockPositions = Arrays.copyOf(blockPositions, length);
+                blockMaxSent = Arrays.copyOf(blockMaxSent, length);
+                blockMaxSentSoFar = Arrays.copyOf(blockMaxSentSoFar, length);
+                blockRecords = Arrays.copyOf(blockRecords, length);
+            }
+            blockSegments[blockCount] = segment;
+            blockFirstIds[blockCount] = firstId;
+            blockPositions[blockCount] = position;
+            blockMaxSent[blockCount] = maxSent;
+            blockMaxSentSoFar[blockCount] = blockCount == 0 ? maxSent : Math.max(blockMaxSentSoFar[blockCount - 1], maxSent);
+            blockRecords[blockCount] = records;
+            blockCount++;
+        }
+
+        /**
+         * Indexes the complete records of a segment from its start.
+         *
+         * @return the position after the last complete record
+         */
+        private int scan(Segment segment) {
+            MappedByteBuffer buffer = segment.buffer;
+            CRC32 check = new CRC32();
+            byte[] payloadBytes = new byte[256];
+            int position = 0;
+            while (position + RECORD_HEADER_SIZE <= segment.capacity) {
+                int payload = buffer.getInt(position);
+                if (payload < MIN_PAYLOAD_SIZE || payload > segment.capacity - position - RECORD_HEADER_SIZE) {
+                    break;
+                }
+                if (payloadBytes.length < payload) {
+                    payloadBytes = new byte[payload];
+                }
+                buffer.get(position + RECORD_HEADER_SIZE, payloadBytes, 0, payload);
+                check.reset();
+                check.update(payloadBytes, 0, payload);
+                long id = buffer.getLong(position + 8);
+                if ((int) check.getValue() != buffer.getInt(position + 4) || id <= lastId) {
+                    break;
+                }
+                indexRecord(segment, position, RECORD_HEADER_SIZE + payload, id, buffer.getLong(position + 16));
+                position += RECORD_HEADER_SIZE + payload;
+            }
+            return position;
+        }
+
+        private Path indexPath(Segment segment) {
+            String name = segment.path.getFileName().toString();
+            return segment.path.resolveSibling(name.substring(0, name.length() - SEGMENT_SUFFIX.length()) + INDEX_SUFFIX);
+        }
+
+        /**
+         * Writes the index entries of a segment into its index file. The file
+         * is replaced atomically, so it is either complete or missing.
+         */
+        private void writeIndex(Segment segment) throws IOException {
+            Path indexPath = indexPath(segment);
+            Path temporary = indexPath.resolveSibling(indexPath.getFileName() + ".tmp");
+            CRC32 checksum = new CRC32();
+            int first = 0;
+            while (first < blockCount && blockSegments[first] != segment) {
+                first++;
+            }
+            int count = 0;
+            while (first + count < blockCount && blockSegments[first + count] == segment) {
+                count++;
+            }
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new CheckedOutputStream(Files.newOutputStream(temporary), checksum)))) {
+                out.writeInt(INDEX_MAGIC);
+                out.writeInt(segment.end);
+                out.writeLong(segment.lastId);
+                out.writeInt(count);
+                for (int block = first; block < first + count; block++) {
+                    out.writeLong(blockFirstIds[block]);
+                    out.writeInt(blockPositions[block]);
+                    out.writeLong(blockMaxSent[block]);
+                    out.writeInt(blockRecords[block]);
+                }
+                out.flush();
+                out.writeLong(checksum.getValue());
+            }
+            Files.move(temporary, indexPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+
+        /**
+         * Loads the index of a segment from its index file.
+         *
+         * @return {@code false} if there is no valid index file
+         */
+        private boolean loadIndex(Segment segment, Path indexPath) throws IOException {
+            if (!Files.exists(indexPath)) {
+                return false;
+            }
+            ByteBuffer index = ByteBuffer.wrap(Files.readAllBytes(indexPath));
+            if (index.remaining() < 28) {
+                return false;
+            }
+            CRC32 checksum = new CRC32();
+            checksum.update(index.array(), 0, index.limit() - 8);
+            int end = index.getInt(4);
+            long segmentLastId = index.getLong(8);
+            int count = index.getInt(16);
+            if (index.getInt(0) != INDEX_MAGIC || count < 0 || index.limit() != 28 + count * 24
+                    || index.getLong(index.limit() - 8) != checksum.getValue() || end > segment.capacity) {
+                return false;
+            }
+            index.position(20);
+            for (int block = 0; block < count; block++) {
+                long firstId = index.getLong();
+                int position = index.getInt();
+                long maxSent = index.getLong();
+                int records = index.getInt();
+                addBlock(segment, firstId, position, maxSent, records);
+                recordCount += records;
+            }
+            segment.end = end;
+            if (count > 0) {
+                segment.lastId = segmentLastId;
+                lastId = segmentLastId;
+            }
+            return true;
+        }
+    }
+
+    /**
+     * A segment file and its memory mapping. The mapping is replaced when the
+     * segment grows; readers that still hold the old one read the same file.
+     */
+    private static class Segment {
+
+        private final Path path;
+        private volatile MappedByteBuffer buffer;
+        private int capacity;
+        private int end;
+        private long lastId;
+
+        private Segment(Path path, MappedByteBuffer buffer) {
+            this.path = path;
+            this.buffer = buffer;
+            this.capacity = buffer.capacity();
+        }
+
+        static Segment open(Path path) throws IOException {
+            try (FileChannel file = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                if (file.size() > Integer.MAX_VALUE) {
+                    throw new IOException("Segment is too large: " + path);
+                }
+                return new Segment(path, file.map(FileChannel.MapMode.READ_WRITE, 0, file.size()));
+            }
+        }
+
+        /**
+         * Creates a segment filled with zeros. The zeros are written instead of
+         * just setting the file's size, so that the disk space is allocated
+         * here and a full disk fails this call instead of a write to the mapping.
+         * The file is not forced: forcing the records written to the mapping
+         * later also makes the file's size durable.
+         */
+        static Segment create(Path path, int capacity) throws IOException {
+            try (FileChannel file = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                writeZeros(file, 0, capacity);
+                return new Segment(path, file.map(FileChannel.MapMode.READ_WRITE, 0, capacity));
+            } catch (IOException e) {
+                Files.deleteIfExists(path);
+                throw e;
+            }
+        }
+
+        /**
+         * Extends the segment file with zeros and maps it again.
+         */
+        void grow(int newCapacity) throws IOException {
+            try (FileChannel file = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                try {
+                    writeZeros(file, capacity, newCapacity);
+                } catch (IOException e) {
+                    file.truncate(capacity);
+                    throw e;
+                }
+                buffer = file.map(FileChannel.MapMode.READ_WRITE, 0, newCapacity);
+                capacity = newCapacity;
+            }
+        }
+
+        private static void writeZeros(FileChannel file, long from, long to) throws IOException {
+            ByteBuffer zeros = ByteBuffer.allocate(64 * 1024);
+            long written = from;
+            while (written < to) {
+                zeros.clear().limit((int) Math.min(zeros.capacity(), to - written));
+                written += file.write(zeros, written);
+            }
+        }
+
+        void clear(int from, int to) {
+            for (int position = from; position < to; position++) {
+                buffer.put(position, (byte) 0);
+            }
+        }
+
+        /**
+         * Clears the segment from a position to its end.
+         *
+         * @return {@code true} if there was something to clear
+         */
+        boolean clearFrom(int from) {
+            boolean cleared = false;
+            int position = from;
+            for (; position + 8 <= capacity; position += 8) {
+                if (buffer.getLong(position) != 0) {
+                    buffer.putLong(position, 0);
+                    cleared = true;
+                }
+            }
+            for (; position < capacity; position++) {
+                if (buffer.get(position) != 0) {
+                    buffer.put(position, (byte) 0);
+                    cleared = true;
+                }
+            }
+            if (cleared) {
+                buffer.force();
+            }
+            return cleared;
+        }
+    }
+
+    private static class PendingRecord {
+
+        private final Segment segment;
+        private final int position;
+        private final int size;
+        private final long id;
+        private final long sent;
+
+        PendingRecord(Segment segment, int position, int size, long id, long sent) {
+            this.segment = segment;
+            this.position = position;
+            this.size = size;
+            this.id = id;
+            this.sent = sent;
+        }
+    }
+
+}
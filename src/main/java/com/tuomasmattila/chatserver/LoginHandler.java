@@ -0,0 +1,69 @@
+package com.tuomasmattila.chatserver;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.time.Instant;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+import org.json.JSONObject;
+
+/**
+ * A Class that handles login requests from clients. The /login context is
+ * protected with Basic authentication, and a successful POST request returns
+ * a session token that can be used with the other contexts in an
+ * {@code Authorization: Bearer <token>} header.
+ */
+public class LoginHandler implements HttpHandler {
+
+    private final TokenManager tokenManager;
+
+    /**
+     * Handles login requests.
+     *
+     * @param tokenManager the {@code TokenManager} used to issue session tokens
+     */
+    LoginHandler(TokenManager tokenManager) {
+        this.tokenManager = tokenManager;
+    }
+
+    /**
+     * Handles POST requests from clients. Responds with the session token and
+     * its expiry time in JSON format, for example:
+     * {"token": "...", "expires": "2021-12-21T08:57:47.123Z"}
+     *
+     * @param exchange the {@code HttpExchange} containing the request from the
+     * client and used to send the response
+     * @throws IOException if sending response headers fails or if
+     * writing to the {@code OutputStream} or closing it fails.
+     */
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+        Result result = new Result(200, "");
+
+        if (exchange.getRequestMethod().equalsIgnoreCase("POST")) {
+            String username = exchange.getPrincipal().getUsername();
+            TokenManager.Token token = tokenManager.issueToken(username);
+            JSONObject obj = new JSONObject();
+            obj.put("token", token.getValue());
+            obj.put("expires", OffsetDateTime.ofInstant(Instant.ofEpochMilli(token.getExpiresAt()), ZoneOffset.UTC).toString());
+            result.setResponse(obj.toString());
+            ChatServer.log("Issued a session token to " + username + ".");
+            exchange.getResponseHeaders().set("Content-Type", "application/json");
+            exchange.getResponseHeaders().set("Cache-Control", "no-store");
+        } else {
+            result.setCode(400);
+            result.setResponse("Not supported.");
+            ChatServer.warn("---------- Error in /login: " + result.getCode() + " " + result.getResponse());
+        }
+        byte[] bytes = result.getResponse().getBytes("UTF-8");
+        exchange.sendResponseHeaders(result.getCode(), bytes.length);
+        OutputStream os = exchange.getResponseBody();
+        os.write(bytes);
+        os.close();
+    }
+
+}
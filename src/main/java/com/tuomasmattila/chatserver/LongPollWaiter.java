@@ -0,0 +1,107 @@
+package com.tuomasmattila.chatserver;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A long-polling GET request waiting for a new message in a channel. The waiter
+ * does not hold a thread while it waits: it is registered as a listener of the
+ * channel and a timer, and whichever fires first, a new message or the timeout,
+ * runs the response task on the given executor. A waiter fires at most once,
+ * and can be cancelled if the request is answered in some other way. If the
+ * executor rejects the response task, the rejection task is run instead, on
+ * the thread that fired the waiter.
+ */
+public class LongPollWaiter implements MessageNotifier.Listener {
+
+    private final AtomicBoolean finished = new AtomicBoolean();
+    private final String channel;
+    private final long since;
+    private final MessageNotifier notifier;
+    private final Executor executor;
+    private final Runnable response;
+    private final Runnable rejection;
+    private volatile ScheduledFuture<?> timeout;
+
+    private LongPollWaiter(String channel, long since, MessageNotifier notifier, Executor executor, Runnable response, Runnable rejection) {
+        this.channel = channel;
+        this.since = since;
+        this.notifier = notifier;
+        this.executor = executor;
+        this.response = response;
+        this.rejection = rejection;
+    }
+
+    /**
+     * Starts waiting for a new message in a channel.
+     *
+     * @param channel the name of the channel
+     * @param since only messages sent after this time (unix time with milliseconds)
+     * wake the waiter, or -1 for any message
+     * @param waitMillis how long to wait at most, in milliseconds
+     * @param notifier the {@code MessageNotifier} publishing the channel's messages
+     * @param timer the timer used for the timeout
+     * @param executor the executor that runs the response task
+     * @param response the task that answers the request when a new message
+     * arrives or the wait times out
+     * @param rejection the task that gives up on the request if the executor
+     * rejects the response task; must not block
+     * @return the started {@code LongPollWaiter}
+     */
+    public static LongPollWaiter start(String channel, long since, long waitMillis, MessageNotifier notifier, ScheduledExecutorService timer,
+            Executor executor, Runnable response, Runnable rejection) {
+        LongPollWaiter waiter = new LongPollWaiter(channel, since, notifier, executor, response, rejection);
+        notifier.subscribe(channel, waiter);
+        waiter.timeout = timer.schedule(waiter::expire, waitMillis, TimeUnit.MILLISECONDS);
+        return waiter;
+    }
+
+    @Override
+    public void onMessage(ChatMessage message) {
+        if (message.dateAsInt() > since && finish()) {
+            respond();
+        }
+    }
+
+    /**
+     * Stops waiting without running the response task.
+     *
+     * @return {@code true} if the waiter was cancelled, {@code false} if it had
+     * already fired and its response task will answer the request
+     */
+    public boolean cancel() {
+        return finish();
+    }
+
+    private void expire() {
+        if (finish()) {
+            respond();
+        }
+    }
+
+    private void respond() {
+        try {
+            executor.execute(response);
+        } catch (RejectedExecutionException e) {
+            ChatServer.warn("Could not answer a long-polling request: " + e.getMessage());
+            rejection.run();
+        }
+    }
+
+    private boolean finish() {
+        if (!finished.compareAndSet(false, true)) {
+            return false;
+        }
+        notifier.unsubscribe(channel, this);
+        ScheduledFuture<?> scheduled = timeout;
+        if (scheduled != null) {
+            scheduled.cancel(false);
+        }
+        return true;
+    }
+
+}
@@ -0,0 +1,412 @@
+package com.tuomasmattila.chatserver;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+
+/**
+ * An in-memory cache of the most recent messages of each channel. Each channel
+ * has a bounded ring buffer of its newest messages, ordered by the time they
+ * were sent. Most GET requests ask for the latest messages or for the few
+ * messages sent after {@code If-Modified-Since}, and those can be answered from
+ * the buffer without querying the database.
+ *
+ * A buffer always contains every message of its channel that was sent after
+ * its cutoff time. Requests that reach further back than the cutoff are not
+ * answered from the cache, and the caller falls back to the database.
+ *
+ * Buffers are loaded from the database when the server starts and when a
+ * channel is requested again after its buffer was evicted. The database is
+ * read without holding the buffer's lock, so that the writer thread adding
+ * committed messages never waits for a load; messages added while a buffer
+ * is loading are kept, and the loaded ones are merged with them by id.
+ *
+ * When the estimated size of all buffers grows over the memory budget, the
+ * buffers of the least recently used channels are evicted.
+ */
+public class MessageCache {
+
+    /**
+     * Loads the newest messages of a channel from the database.
+     */
+    public interface Loader {
+
+        /**
+         * @param channel the name of the channel
+         * @param count the maximum number of messages to load
+         * @return the newest messages of the channel, oldest first
+         * @throws SQLException if a database access error occurs
+         */
+        List<ChatMessage> loadLatest(String channel, int count) throws SQLException;
+    }
+
+    private static final int READ_ATTEMPTS = 2;
+
+    private final Loader loader;
+    private final int channelCapacity;
+    private final long maxBytes;
+    private final LinkedHashMap<String, ChannelBuffer> buffers = new LinkedHashMap<>(16, 0.75f, true);
+    private final ReentrantLock buffersLock = new ReentrantLock();
+    private final AtomicLong totalBytes = new AtomicLong();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * Creates an empty message cache.
+     *
+     * @param loader used to load a channel's messages from the database
+     * @param channelCapacity the maximum number of messages cached per channel
+     * @param maxBytes the memory budget of all buffers together, in bytes
+     */
+    public MessageCache(Loader loader, int channelCapacity, long maxBytes) {
+        this.loader = loader;
+        this.channelCapacity = channelCapacity;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Loads the buffers of the given channels until the memory budget is used.
+     *
+     * @param channels the names of the channels to load
+     */
+    public void warm(List<String> channels) {
+        for (String channel : channels) {
+            if (totalBytes.get() >= maxBytes) {
+                break;
+            }
+            ensureLoaded(getOrCreateBuffer(channel));
+        }
+        enforceBudget(null);
+    }
+
+    /**
+     * Returns the latest messages of a channel from the cache.
+     *
+     * @param channel the name of the channel
+     * @param count the number of messages
+     * @return the latest messages, oldest first, or {@code null} if the cache
+     * cannot answer the request
+     */
+    public List<ChatMessage> getLatest(String channel, int count) {
+        return read(channel, buffer -> buffer.latest(count));
+    }
+
+    /**
+     * Returns the messages of a channel sent after the given time from the cache.
+     *
+     * @param channel the name of the channel
+     * @param since the time as unix time with milliseconds
+     * @return the messages sent after {@code since}, oldest first, or {@code null}
+     * if the request reaches further back than the cache
+     */
+    public List<ChatMessage> getSince(String channel, long since) {
+        return read(channel, buffer -> buffer.since(since));
+    }
+
+    /**
+     * Adds a message that has been committed to the database. Messages of
+     * channels that have no buffer are ignored; their buffer will be loaded from
+     * the database when the channel is requested. A buffer that is still
+     * loading gets the message too, in case the load read the database before
+     * it was committed.
+     *
+     * @param message the stored {@code ChatMessage}
+     */
+    public void add(ChatMessage message) {
+        ChannelBuffer buffer;
+        buffersLock.lock();
+        try {
+            buffer = buffers.get(message.getChannel());
+        } finally {
+            buffersLock.unlock();
+        }
+        if (buffer == null) {
+            return;
+        }
+        buffer.lock.lock();
+        try {
+            // An evicted buffer is not updated: the buffer that replaces it is
+            // loaded from the database, which already has the message.
+            if (!buffer.evicted) {
+                totalBytes.addAndGet(buffer.add(message));
+            }
+        } finally {
+            buffer.lock.unlock();
+        }
+        enforceBudget(buffer);
+    }
+
+    public String getStatsAsString() {
+        int channels;
+        buffersLock.lock();
+        try {
+            channels = buffers.size();
+        } finally {
+            buffersLock.unlock();
+        }
+        return "Message cache: channels " + channels + ", bytes " + totalBytes.get() + "/" + maxBytes + ", hits " + hits.sum() + ", misses " + misses.sum() + ", evictions " + evictions.sum();
+    }
+
+    /**
+     * Answers a request from the buffer of a channel. A buffer that was evicted
+     * after it was looked up no longer gets new messages, so then the request
+     * is retried with a new buffer, and if that is evicted too, the caller falls
+     * back to the database.
+     *
+     * @return the messages, or {@code null} if the cache cannot answer the request
+     */
+    private List<ChatMessage> read(String channel, Function<ChannelBuffer, List<ChatMessage>> query) {
+        for (int attempt = 0; attempt < READ_ATTEMPTS; attempt++) {
+            ChannelBuffer buffer = getOrCreateBuffer(channel);
+            boolean loaded = ensureLoaded(buffer);
+            List<ChatMessage> messages = null;
+            buffer.lock.lock();
+            try {
+                if (buffer.evicted) {
+                    continue;
+                }
+                if (loaded) {
+                    messages = query.apply(buffer);
+                }
+            } finally {
+                buffer.lock.unlock();
+            }
+            record(messages);
+            enforceBudget(buffer);
+            return messages;
+        }
+        record(null);
+        return null;
+    }
+
+    private void record(List<ChatMessage> messages) {
+        if (messages != null) {
+            hits.increment();
+        } else {
+            misses.increment();
+        }
+    }
+
+    private ChannelBuffer getOrCreateBuffer(String channel) {
+        buffersLock.lock();
+        try {
+            return buffers.computeIfAbsent(channel, name -> new ChannelBuffer(name, channelCapacity));
+        } finally {
+            buffersLock.unlock();
+        }
+    }
+
+    /**
+     * Loads a buffer from the database if it has not been loaded yet. The
+     * database is read without holding the buffer's lock, and the result is
+     * then merged under the lock with the messages added in the meantime; a
+     * message that is both loaded and added is kept once. If several threads
+     * load the same buffer at once, the first result is used.
+     *
+     * @return {@code true} if the buffer is loaded, {@code false} if loading failed
+     */
+    private boolean ensureLoaded(ChannelBuffer buffer) {
+        buffer.lock.lock();
+        try {
+            if (buffer.loaded) {
+                return true;
+            }
+        } finally {
+            buffer.lock.unlock();
+        }
+        List<ChatMessage> messages;
+        try {
+            messages = loader.loadLatest(buffer.channel, channelCapacity);
+        } catch (SQLException e) {
+            ChatServer.warn("Could not load messages to the cache: " + e.getMessage());
+            return false;
+        }
+        buffer.lock.lock();
+        try {
+            if (!buffer.loaded) {
+                long added = buffer.fill(messages);
+                if (!buffer.evicted) {
+                    totalBytes.addAndGet(added);
+                }
+            }
+            return true;
+        } finally {
+            buffer.lock.unlock();
+        }
+    }
+
+    /**
+     * Evicts the least recently used buffers until the cache fits in its budget.
+     * Buffers that are being used by another thread are skipped.
+     *
+     * @param keep a buffer that must not be evicted, or {@code null}
+     */
+    private void enforceBudget(ChannelBuffer keep) {
+        if (totalBytes.get() <= maxBytes) {
+            return;
+        }
+        buffersLock.lock();
+        try {
+            Iterator<Map.Entry<String, ChannelBuffer>> iterator = buffers.entrySet().iterator();
+            while (totalBytes.get() > maxBytes && iterator.hasNext()) {
+                ChannelBuffer buffer = iterator.next().getValue();
+                if (buffer == keep || !buffer.lock.tryLock()) {
+                    continue;
+                }
+                try {
+                    iterator.remove();
+                    buffer.evicted = true;
+                    totalBytes.addAndGet(-buffer.bytes);
+                    evictions.increment();
+                } finally {
+                    buffer.lock.unlock();
+                }
+            }
+        } finally {
+            buffersLock.unlock();
+        }
+    }
+
+    /**
+     * A ring buffer of a channel's newest messages, ordered by the time they were sent.
+     */
+    private static class ChannelBuffer {
+
+        private final ReentrantLock lock = new ReentrantLock();
+        private final String channel;
+        private final ChatMessage[] ring;
+        private int head;
+        private int size;
+        private boolean loaded;
+        private boolean evicted;
+        private long bytes;
+        // The buffer contains every message of the channel sent after this time.
+        private long cutoff = Long.MIN_VALUE;
+
+        ChannelBuffer(String channel, int capacity) {
+            this.channel = channel;
+            this.ring = new ChatMessage[capacity];
+        }
+
+        /**
+         * Fills the buffer with the newest messages loaded from the database,
+         * merged with the messages added while they were loading.
+         *
+         * @return the change in the buffer's estimated size in bytes
+         */
+        long fill(List<ChatMessage> messages) {
+            long added = 0;
+            for (ChatMessage message : messages) {
+                added += add(message);
+            }
+            if (messages.size() >= ring.length) {
+                // There may be older messages sent at the same time as the oldest loaded one.
+                cutoff = Math.max(cutoff, messages.get(0).dateAsInt());
+            }
+            loaded = true;
+            return added;
+        }
+
+        /**
+         * Adds a message to its place by sending time, evicting the oldest message if
+         * the buffer is full. Messages that are already in the buffer (with the same
+         * id) are ignored.
+         *
+         * @return the change in the buffer's estimated size in bytes
+         */
+        long add(ChatMessage message) {
+            long sent = message.dateAsInt();
+            if (sent <= cutoff) {
+                return 0;
+            }
+            int position = size;
+            while (position > 0 && get(position - 1).dateAsInt() > sent) {
+                position--;
+            }
+            for (int i = position - 1; i >= 0 && get(i).dateAsInt() == sent; i--) {
+                if (get(i).getId() == message.getId()) {
+                    return 0;
+                }
+            }
+            long change = 0;
+            if (size == ring.length) {
+                if (position == 0) {
+                    // Older than everything in a full buffer: the buffer no longer covers it.
+                    cutoff = sent;
+                    return 0;
+                }
+                ChatMessage oldest = get(0);
+                cutoff = Math.max(cutoff, oldest.dateAsInt());
+                change -= estimateSize(oldest);
+                ring[head] = null;
+                head = (head + 1) % ring.length;
+                size--;
+                position--;
+            }
+            for (int i = size; i > position; i--) {
+                set(i, get(i - 1));
+            }
+            set(position, message);
+            size++;
+            change += estimateSize(message);
+            bytes += change;
+            return change;
+        }
+
+        List<ChatMessage> latest(int count) {
+            if (size < count && cutoff != Long.MIN_VALUE) {
+                return null;
+            }
+            int from = Math.max(0, size - count);
+            List<ChatMessage> messages = new ArrayList<>(size - from);
+            for (int i = from; i < size; i++) {
+                messages.add(get(i));
+            }
+            return messages;
+        }
+
+        List<ChatMessage> since(long since) {
+            if (since < cutoff) {
+                return null;
+            }
+            int low = 0;
+            int high = size;
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (get(middle).dateAsInt() <= since) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            List<ChatMessage> messages = new ArrayList<>(size - low);
+            for (int i = low; i < size; i++) {
+                messages.add(get(i));
+            }
+            return messages;
+        }
+
+        private ChatMessage get(int index) {
+            return ring[(head + index) % ring.length];
+        }
+
+        private void set(int index, ChatMessage message) {
+            ring[(head + index) % ring.length] = message;
+        }
+
+        private static long estimateSize(ChatMessage message) {
+            // The object, its message array and the reference in the ring. The
+            // user and channel names are shared between messages.
+            return 72 + message.getMessageBytes().length;
+        }
+    }
+
+}
@@ -0,0 +1,47 @@
+package com.tuomasmattila.chatserver;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Writes chat messages to a response in one of the wire formats (see
+ * {@code WireFormat}). Closing an encoder writes what is buffered but does not
+ * close the underlying stream.
+ */
+public interface MessageEncoder extends Closeable {
+
+    /**
+     * Writes the messages as an array.
+     *
+     * @param messages the messages to write
+     * @throws IOException if writing to the stream fails
+     */
+    void writeArray(List<ChatMessage> messages) throws IOException;
+
+    /**
+     * Writes one message.
+     *
+     * @param message the message to write
+     * @throws IOException if writing to the stream fails
+     */
+    void writeMessage(ChatMessage message) throws IOException;
+
+    /**
+     * Writes the results of storing a batch of messages as an array, in the
+     * same order as the messages were sent. A stored message has the keys
+     * "status" and "id", and one that was not stored "status" and "error".
+     *
+     * @param statuses the results to write
+     * @throws IOException if writing to the stream fails
+     */
+    void writeStatuses(List<MessageStatus> statuses) throws IOException;
+
+    /**
+     * Writes the buffered bytes to the stream and flushes it.
+     *
+     * @throws IOException if writing to the stream fails
+     */
+    void flush() throws IOException;
+
+}
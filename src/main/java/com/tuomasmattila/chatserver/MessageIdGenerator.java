@@ -0,0 +1,38 @@
+package com.tuomasmattila.chatserver;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Generates unique, increasing 64-bit message ids. An id is the server's time
+ * in milliseconds shifted left by {@code SEQUENCE_BITS}, plus a sequence number
+ * for ids generated within the same millisecond. If the clock goes backwards
+ * or more than 4096 ids are generated in a millisecond, the next id is simply
+ * the previous one plus one, so ids never decrease. Safe to use from several
+ * threads.
+ */
+public class MessageIdGenerator {
+
+    public static final int SEQUENCE_BITS = 12;
+
+    private final AtomicLong last;
+
+    /**
+     * Creates a generator whose ids are greater than every id already in use.
+     *
+     * @param lastUsedId the greatest id already in use, or 0 if there is none
+     */
+    public MessageIdGenerator(long lastUsedId) {
+        this.last = new AtomicLong(lastUsedId);
+    }
+
+    /**
+     * Returns a new id that is greater than every id returned before.
+     *
+     * @return the new id
+     */
+    public long next() {
+        long timeBased = System.currentTimeMillis() << SEQUENCE_BITS;
+        return last.accumulateAndGet(timeBased, (previous, time) -> Math.max(previous + 1, time));
+    }
+
+}
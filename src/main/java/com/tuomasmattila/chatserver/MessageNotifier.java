@@ -0,0 +1,83 @@
+package com.tuomasmattila.chatserver;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Notifies listeners about new messages in the channels they are interested in.
+ * {@code ChatDatabase} publishes every message after it has been committed.
+ */
+public class MessageNotifier {
+
+    /**
+     * Receives the messages published to a channel.
+     */
+    public interface Listener {
+
+        /**
+         * Called on the publishing thread after a message has been stored.
+         * Implementations must return quickly and must not block.
+         *
+         * @param message the new {@code ChatMessage}
+         */
+        void onMessage(ChatMessage message);
+    }
+
+    private final ConcurrentHashMap<String, Set<Listener>> listeners = new ConcurrentHashMap<>();
+
+    /**
+     * Starts delivering the messages of a channel to a listener.
+     *
+     * @param channel the name of the channel
+     * @param listener the {@code Listener} to add
+     */
+    public void subscribe(String channel, Listener listener) {
+        listeners.computeIfAbsent(channel, name -> ConcurrentHashMap.newKeySet()).add(listener);
+    }
+
+    /**
+     * Stops delivering the messages of a channel to a listener.
+     *
+     * @param channel the name of the channel
+     * @param listener the {@code Listener} to remove
+     */
+    public void unsubscribe(String channel, Listener listener) {
+        Set<Listener> channelListeners = listeners.get(channel);
+        if (channelListeners != null) {
+            channelListeners.remove(listener);
+        }
+    }
+
+    /**
+     * Delivers a message to every listener of its channel.
+     *
+     * @param message the stored {@code ChatMessage}
+     */
+    public void publish(ChatMessage message) {
+        Set<Listener> channelListeners = listeners.get(message.getChannel());
+        if (channelListeners == null) {
+            return;
+        }
+        for (Listener listener : channelListeners) {
+            try {
+                listener.onMessage(message);
+            } catch (RuntimeException e) {
+                ChatServer.warn("Message listener failed: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Returns the number of listeners in all channels.
+     *
+     * @return the number of listeners
+     */
+    public int getListenerCount() {
+        int count = 0;
+        for (Set<Listener> channelListeners : listeners.values()) {
+            count += channelListeners.size();
+        }
+        return count;
+    }
+
+}
@@ -0,0 +1,52 @@
+package com.tuomasmattila.chatserver;
+
+/**
+ * The result of storing one message of a batch: the id the message was stored
+ * with, or the status code and the error of a message that was not stored.
+ * The results are written to the client with {@code MessageEncoder.writeStatuses}.
+ */
+public class MessageStatus {
+
+    private final int code;
+    private final long id;
+    private final String error;
+
+    private MessageStatus(int code, long id, String error) {
+        this.code = code;
+        this.id = id;
+        this.error = error;
+    }
+
+    /**
+     * @param id the id of the stored message
+     * @return the status of a stored message
+     */
+    public static MessageStatus stored(long id) {
+        return new MessageStatus(200, id, null);
+    }
+
+    /**
+     * @param code the HTTP status code telling why the message was not stored
+     * @param error the description of the error
+     * @return the status of a message that was not stored
+     */
+    public static MessageStatus error(int code, String error) {
+        return new MessageStatus(code, 0, error);
+    }
+
+    public int getCode() {
+        return code;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    /**
+     * @return the error, or {@code null} if the message was stored
+     */
+    public String getError() {
+        return error;
+    }
+
+}
@@ -0,0 +1,83 @@
+package com.tuomasmattila.chatserver;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A storage engine for chat messages. {@code ChatDatabase} keeps users and
+ * channels in SQLite and stores messages in a {@code MessageStore}, which is
+ * either the SQLite database itself ({@code SqliteMessageStore}) or an
+ * append-only log of files ({@code LogMessageStore}).
+ *
+ * Messages are only appended, by the {@code MessageWriter} thread, and they
+ * already have their ids when they are appended. Reads may run concurrently
+ * with each other and with appends. Engines report their errors as
+ * {@code SQLException}s, like the rest of {@code ChatDatabase}.
+ */
+public interface MessageStore {
+
+    /**
+     * Stores messages durably. Either all of the messages are stored or the
+     * method throws.
+     *
+     * @param messages the messages to store, in id order
+     * @throws SQLException if the messages could not be stored
+     */
+    void append(List<ChatMessage> messages) throws SQLException;
+
+    /**
+     * Returns a channel's messages sent after the given time.
+     *
+     * @param channel the name of the channel
+     * @param since the time in Unix milliseconds
+     * @return the messages ordered by the time they were sent, then by id
+     * @throws SQLException if reading the messages fails
+     */
+    ArrayList<ChatMessage> getMessagesSince(String channel, long since) throws SQLException;
+
+    /**
+     * Returns the messages of a channel that were sent last.
+     *
+     * @param channel the name of the channel
+     * @param count the maximum number of messages
+     * @return the messages ordered by the time they were sent, then by id
+     * @throws SQLException if reading the messages fails
+     */
+    ArrayList<ChatMessage> getLatestMessages(String channel, int count) throws SQLException;
+
+    /**
+     * Returns one page of a channel's messages in id order.
+     *
+     * @param channel the name of the channel
+     * @param cursor the id of the message to read from, or -1 for the newest messages
+     * @param before {@code true} to read the messages before the cursor,
+     * {@code false} to read the messages after it
+     * @param limit the maximum number of messages
+     * @return the messages, oldest first
+     * @throws SQLException if reading the messages fails
+     */
+    ArrayList<ChatMessage> getMessagesPage(String channel, long cursor, boolean before, int limit) throws SQLException;
+
+    /**
+     * @return the greatest id of a stored message, or 0 if there are no messages
+     * @throws SQLException if reading the id fails
+     */
+    long getLastMessageId() throws SQLException;
+
+    /**
+     * @return the number of stored messages
+     * @throws SQLException if counting the messages fails
+     */
+    int numberOfMessages() throws SQLException;
+
+    String getStatsAsString();
+
+    /**
+     * Closes the store. Called after the {@code MessageWriter} has been closed.
+     *
+     * @throws SQLException if closing the store fails
+     */
+    void close() throws SQLException;
+
+}
@@ -0,0 +1,124 @@
+package com.tuomasmattila.chatserver;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.SQLException;
+import java.time.OffsetDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Compares the message stores on the operations the server uses. For each
+ * store, a new database is filled with messages in batches like the
+ * {@code MessageWriter} writes them, and then timed on single-message appends,
+ * history pages at random positions, reads of recent messages by time, and
+ * reopening the database. Run with:
+ * <pre>
+ * java -cp chatserver-1.0-SNAPSHOT-jar-with-dependencies.jar com.tuomasmattila.chatserver.MessageStoreBenchmark [messages] [directory]
+ * </pre>
+ * The databases are created in the given directory, or in a temporary one.
+ */
+public class MessageStoreBenchmark {
+
+    private static final String[] STORES = {"sqlite", "log"};
+    private static final int CHANNELS = 8;
+    private static final int BATCH_SIZE = 256;
+    private static final int READS = 5000;
+
+    private final List<String> results = new ArrayList<>();
+    private final Random random = new Random(1);
+
+    public static void main(String[] args) throws IOException, SQLException {
+        int messages = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+        Path directory = args.length > 1 ? Paths.get(args[1]) : Files.createTempDirectory("chatserver-benchmark");
+        MessageStoreBenchmark benchmark = new MessageStoreBenchmark();
+        for (String store : STORES) {
+            benchmark.run(store, directory.resolve(store + ".db").toString(), messages);
+        }
+        System.out.println();
+        System.out.println(messages + " messages in " + CHANNELS + " channels, in " + directory);
+        for (String result : benchmark.results) {
+            System.out.println(result);
+        }
+    }
+
+    private void run(String storeName, String dbName, int messageCount) throws SQLException {
+        System.setProperty("chatserver.store", storeName);
+        ChatDatabase database = ChatDatabase.getInstance();
+        database.open(dbName);
+        MessageStore store = database.getMessageStore();
+        MessageIdGenerator idGenerator = new MessageIdGenerator(store.getLastMessageId());
+        long firstSent = System.currentTimeMillis();
+
+        long start = System.nanoTime();
+        List<ChatMessage> batch = new ArrayList<>(BATCH_SIZE);
+        for (int i = 0; i < messageCount; i++) {
+            batch.add(newMessage(idGenerator, firstSent + i));
+            if (batch.size() == BATCH_SIZE || i == messageCount - 1) {
+                store.append(batch);
+                batch.clear();
+            }
+        }
+        report(storeName, "append, batches of " + BATCH_SIZE, messageCount, start);
+
+        int singles = Math.max(1, Math.min(2000, messageCount / 100));
+        start = System.nanoTime();
+        for (int i = 0; i < singles; i++) {
+            store.append(Collections.singletonList(newMessage(idGenerator, firstSent + messageCount + i)));
+        }
+        report(storeName, "append, one at a time", singles, start);
+
+        long firstId = 0;
+        long lastId = store.getLastMessageId();
+        for (ChatMessage message : store.getMessagesPage("channel-0", 0, false, 1)) {
+            firstId = message.getId();
+        }
+        start = System.nanoTime();
+        for (int i = 0; i < READS; i++) {
+            long cursor = firstId + (long) (random.nextDouble() * (lastId - firstId));
+            store.getMessagesPage(randomChannel(), cursor, random.nextBoolean(), 50);
+        }
+        report(storeName, "random page of 50", READS, start);
+
+        // About the newest 1% of each channel, like a client polling with If-Modified-Since.
+        long recent = firstSent + messageCount + singles - Math.max(1, (messageCount + singles) / 100);
+        start = System.nanoTime();
+        for (int i = 0; i < READS; i++) {
+            store.getMessagesSince(randomChannel(), recent);
+        }
+        report(storeName, "messages since (1%)", READS, start);
+
+        start = System.nanoTime();
+        for (int i = 0; i < READS; i++) {
+            store.getLatestMessages(randomChannel(), 20);
+        }
+        report(storeName, "latest 20", READS, start);
+
+        database.close();
+        start = System.nanoTime();
+        database.open(dbName);
+        results.add(String.format("%-7s %-24s %10.1f ms", storeName, "reopen", (System.nanoTime() - start) / 1e6));
+        database.close();
+    }
+
+    private ChatMessage newMessage(MessageIdGenerator idGenerator, long sent) {
+        ChatMessage message = new ChatMessage(OffsetDateTime.now(), "user" + random.nextInt(100), "Message number " + sent + " of the benchmark.", randomChannel());
+        message.setSent(sent);
+        message.setId(idGenerator.next());
+        return message;
+    }
+
+    private String randomChannel() {
+        return "channel-" + random.nextInt(CHANNELS);
+    }
+
+    private void report(String storeName, String operation, int count, long startNanos) {
+        double seconds = (System.nanoTime() - startNanos) / 1e9;
+        results.add(String.format("%-7s %-24s %10.0f ops/s", storeName, operation, count / seconds));
+    }
+
+}
@@ -0,0 +1,278 @@
+package com.tuomasmattila.chatserver;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Writes chat messages to the {@code MessageStore} in batches (group commit).
+ * Handler threads put their messages on a bounded queue and wait, while a
+ * single writer thread takes up to {@code maxBatchSize} queued messages,
+ * waiting at most {@code maxLingerMillis} for more to arrive, and appends them
+ * to the store in one write. A waiting handler is released only after the
+ * write with its message has been committed, so a successful {@code write}
+ * still means the message is stored.
+ *
+ * The writer thread assigns each message its id just before appending it, so
+ * ids increase in the order the messages are committed. After a commit, and
+ * before the waiting handlers are released, the committed messages are passed
+ * to a listener in id order on the writer thread.
+ *
+ * Several messages can be queued together with {@code writeAll}. They are
+ * always committed in the same write.
+ *
+ * If a batch fails, it is rolled back and its messages are appended one by one,
+ * so that one bad message does not fail the others in the same batch. An
+ * unexpected exception fails only the batch it was thrown in, and a handler
+ * waits for its write at most {@code writeTimeoutMillis}, so handlers are
+ * never left waiting for a writer thread that has stopped.
+ */
+public class MessageWriter {
+
+    private final MessageStore store;
+    private final MessageIdGenerator idGenerator;
+    private final Consumer<ChatMessage> committedListener;
+    private final BlockingQueue<PendingWrite> queue;
+    private final int maxBatchSize;
+    private final long maxLingerNanos;
+    private final long offerTimeoutMillis;
+    private final long writeTimeoutMillis;
+    private final Thread writerThread;
+    private final LongAdder batchesCommitted = new LongAdder();
+    private final LongAdder messagesWritten = new LongAdder();
+    private volatile boolean running = true;
+
+    /**
+     * Creates a message writer. The writer thread is started with {@code start()}.
+     *
+     * @param store the store the messages are appended to
+     * @param idGenerator the generator of the messages' ids
+     * @param committedListener called on the writer thread with every committed
+     * message, in id order; must not block
+     * @param queueSize the maximum number of messages waiting to be written
+     * @param maxBatchSize the maximum number of messages committed in one write
+     * @param maxLingerMillis how long the writer waits for more messages before
+     * committing a batch that is not full, in milliseconds
+     * @param offerTimeoutMillis how long a handler waits for room in a full queue,
+     * in milliseconds
+     * @param writeTimeoutMillis how long a handler waits for its queued messages
+     * to be committed, in milliseconds
+     */
+    public MessageWriter(MessageStore store, MessageIdGenerator idGenerator, Consumer<ChatMessage> committedListener,
+            int queueSize, int maxBatchSize, long maxLingerMillis, long offerTimeoutMillis, long writeTimeoutMillis) {
+        this.store = store;
+        this.idGenerator = idGenerator;
+        this.committedListener = committedListener;
+        this.queue = new ArrayBlockingQueue<>(queueSize);
+        this.maxBatchSize = maxBatchSize;
+        this.maxLingerNanos = TimeUnit.MILLISECONDS.toNanos(maxLingerMillis);
+        this.offerTimeoutMillis = offerTimeoutMillis;
+        this.writeTimeoutMillis = writeTimeoutMillis;
+        this.writerThread = new Thread(this::run, "message-writer");
+        this.writerThread.setDaemon(true);
+    }
+
+    public void start() {
+        writerThread.start();
+    }
+
+    /**
+     * Queues a message and waits until the batch containing it has been committed.
+     * When this method returns, the message's id has been set.
+     *
+     * @param message the {@code ChatMessage} to store
+     * @throws SQLException if the queue stays full, the writer has been closed or
+     * inserting the message fails
+     */
+    public void write(ChatMessage message) throws SQLException {
+        SQLException error = writeAll(Collections.singletonList(message))[0];
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    /**
+     * Queues several messages and waits until they have been committed. The
+     * messages are committed in the same write, unless the write fails and
+     * they are appended one by one.
+     *
+     * @param messages the messages to store
+     * @return the error of storing each message, in the same order as the
+     * messages; {@code null} for the messages that were stored
+     * @throws SQLException if the queue stays full, the writer has been closed
+     * or has stopped, or the messages were not committed in time; in the last
+     * case they may still be stored later
+     */
+    public SQLException[] writeAll(List<ChatMessage> messages) throws SQLException {
+        if (!running || !writerThread.isAlive()) {
+            throw new SQLException("Message writer is closed.");
+        }
+        PendingWrite write = new PendingWrite(messages);
+        try {
+            if (!queue.offer(write, offerTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                throw new SQLException("Message queue is full.");
+            }
+            write.done.get(writeTimeoutMillis, TimeUnit.MILLISECONDS);
+            return write.errors;
+        } catch (TimeoutException e) {
+            throw new SQLException("Timed out waiting for the message to be written.", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while writing a message.", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof SQLException) {
+                throw (SQLException) e.getCause();
+            }
+            throw new SQLException(e.getCause());
+        }
+    }
+
+    /**
+     * Stops accepting messages and waits until the queued messages have been written.
+     */
+    public void close() {
+        running = false;
+        try {
+            writerThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public int getQueueDepth() {
+        return queue.size();
+    }
+
+    public String getStatsAsString() {
+        long batches = batchesCommitted.sum();
+        long messages = messagesWritten.sum();
+        return "Message writer: queued " + getQueueDepth() + ", batches " + batches + ", messages " + messages + ", average batch " + (batches == 0 ? 0 : messages / batches);
+    }
+
+    private void run() {
+        try {
+            writeBatches();
+        } finally {
+            running = false;
+            PendingWrite late;
+            while ((late = queue.poll()) != null) {
+                late.done.completeExceptionally(new SQLException("Message writer is closed."));
+            }
+        }
+    }
+
+    private void writeBatches() {
+        List<PendingWrite> batch = new ArrayList<>(maxBatchSize);
+        while (running || !queue.isEmpty()) {
+            try {
+                PendingWrite first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                int messages = first.messages.size();
+                long deadline = System.nanoTime() + maxLingerNanos;
+                // Writes queued together are never split, so a batch may go over the maximum size.
+                while (messages < maxBatchSize) {
+                    PendingWrite next = queue.poll();
+                    if (next == null) {
+                        long remaining = deadline - System.nanoTime();
+                        if (remaining <= 0) {
+                            break;
+                        }
+                        next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+                        if (next == null) {
+                            break;
+                        }
+                    }
+                    batch.add(next);
+                    messages += next.messages.size();
+                }
+                commit(batch);
+            } catch (InterruptedException e) {
+                running = false;
+            } catch (RuntimeException e) {
+                ChatServer.warn("Writing a batch of messages failed: " + e);
+                for (PendingWrite write : batch) {
+                    write.done.completeExceptionally(new SQLException("Message was not written.", e));
+                }
+            } finally {
+                for (PendingWrite write : batch) {
+                    write.done.completeExceptionally(new SQLException("Message was not written."));
+                }
+                batch.clear();
+            }
+        }
+    }
+
+    /**
+     * Appends a batch to the store in one write and completes its pending writes.
+     * Falls back to appending the messages one by one if the write fails.
+     */
+    private void commit(List<PendingWrite> batch) {
+        List<ChatMessage> messages = new ArrayList<>();
+        for (PendingWrite write : batch) {
+            for (ChatMessage message : write.messages) {
+                message.setId(idGenerator.next());
+                messages.add(message);
+            }
+        }
+        try {
+            store.append(messages);
+            batchesCommitted.increment();
+            messagesWritten.add(messages.size());
+            for (PendingWrite write : batch) {
+                committed(write);
+            }
+        } catch (SQLException e) {
+            // The ids assigned in the failed batch are reused; they are still in order.
+            for (PendingWrite write : batch) {
+                for (int i = 0; i < write.messages.size(); i++) {
+                    try {
+                        store.append(Collections.singletonList(write.messages.get(i)));
+                        messagesWritten.increment();
+                    } catch (SQLException singleError) {
+                        write.errors[i] = singleError;
+                    }
+                }
+                committed(write);
+            }
+        }
+    }
+
+    private void committed(PendingWrite write) {
+        for (int i = 0; i < write.messages.size(); i++) {
+            if (write.errors[i] != null) {
+                continue;
+            }
+            try {
+                committedListener.accept(write.messages.get(i));
+            } catch (RuntimeException e) {
+                ChatServer.warn("Committed message listener failed: " + e.getMessage());
+            }
+        }
+        write.done.complete(null);
+    }
+
+    private static class PendingWrite {
+
+        private final List<ChatMessage> messages;
+        private final SQLException[] errors;
+        private final CompletableFuture<Void> done = new CompletableFuture<>();
+
+        PendingWrite(List<ChatMessage> messages) {
+            this.messages = messages;
+            this.errors = new SQLException[messages.size()];
+        }
+    }
+
+}
@@ -0,0 +1,171 @@
+package com.tuomasmattila.chatserver;
+
+import java.math.BigDecimal;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * The server's metrics, written at /metrics in the Prometheus text format.
+ * A metric has a name and, for each combination of its labels, a series:
+ * a counter, a latency histogram, or a gauge read from elsewhere when the
+ * metrics are written.
+ *
+ * Histograms are written as Prometheus histograms, with cumulative
+ * {@code _bucket} counts at bounds from 64 µs to about 34 s, doubling each
+ * time. The counts only grow, so percentiles over any recent window, such as
+ * the 99th percentile of the last five minutes, are computed by Prometheus
+ * with {@code histogram_quantile} over the rate of the buckets, rather than
+ * reported here since the server started.
+ *
+ * Counters are {@code LongAdder}s and histograms are {@code LatencyHistogram}s,
+ * so recording takes no locks. Metrics can be turned off with the system
+ * property chatserver.metrics.enabled=false, in which case nothing is
+ * recorded.
+ */
+public class Metrics {
+
+    public static final boolean ENABLED = !"false".equalsIgnoreCase(System.getProperty("chatserver.metrics.enabled"));
+
+    private static final long[] BUCKET_BOUNDS_MICROS = new long[20];
+    private static final String[] BUCKET_LABELS = new String[BUCKET_BOUNDS_MICROS.length];
+    private static final Metrics singleton = new Metrics();
+
+    private final ConcurrentHashMap<String, Family> families = new ConcurrentHashMap<>();
+
+    static {
+        for (int i = 0; i < BUCKET_BOUNDS_MICROS.length; i++) {
+            BUCKET_BOUNDS_MICROS[i] = 64L << i;
+            BUCKET_LABELS[i] = "le=\"" + BigDecimal.valueOf(BUCKET_BOUNDS_MICROS[i], 6).stripTrailingZeros().toPlainString() + "\"";
+        }
+    }
+
+    /**
+     * The series of one metric, by their labels.
+     */
+    private static class Family {
+
+        final String type;
+        final String help;
+        final ConcurrentHashMap<String, Object> series = new ConcurrentHashMap<>();
+
+        Family(String type, String help) {
+            this.type = type;
+            this.help = help;
+        }
+    }
+
+    private Metrics() {
+    }
+
+    public static Metrics getInstance() {
+        return singleton;
+    }
+
+    /**
+     * Returns the counter of a metric with the given labels, creating it if
+     * needed. Callers should keep the counter instead of looking it up for
+     * every event.
+     *
+     * @param name the name of the metric
+     * @param help the description of the metric
+     * @param labels the labels, such as {@code handler="chat",code="200"}
+     * @return the counter
+     */
+    public LongAdder counter(String name, String help, String labels) {
+        return (LongAdder) family(name, "counter", help).series.computeIfAbsent(labels, key -> new LongAdder());
+    }
+
+    /**
+     * Returns the latency histogram of a metric with the given labels,
+     * creating it if needed. The metric is reported in seconds.
+     *
+     * @param name the name of the metric
+     * @param help the description of the metric
+     * @param labels the labels, such as {@code method="getMessages"}
+     * @return the histogram
+     */
+    public LatencyHistogram timer(String name, String help, String labels) {
+        return (LatencyHistogram) family(name, "histogram", help).series.computeIfAbsent(labels, key -> new LatencyHistogram());
+    }
+
+    /**
+     * Adds a gauge, a value that is read when the metrics are written.
+     *
+     * @param name the name of the metric
+     * @param help the description of the metric
+     * @param value supplies the current value
+     */
+    public void gauge(String name, String help, LongSupplier value) {
+        family(name, "gauge", help).series.put("", value);
+    }
+
+    /**
+     * Adds a counter whose value is kept elsewhere and read when the metrics
+     * are written.
+     *
+     * @param name the name of the metric
+     * @param help the description of the metric
+     * @param value supplies the current count
+     */
+    public void counter(String name, String help, LongSupplier value) {
+        family(name, "counter", help).series.put("", value);
+    }
+
+    /**
+     * Writes all metrics in the Prometheus text format, version 0.0.4.
+     *
+     * @param out the builder to write to
+     */
+    public void writeTo(StringBuilder out) {
+        for (Map.Entry<String, Family> entry : new TreeMap<>(families).entrySet()) {
+            String name = entry.getKey();
+            Family family = entry.getValue();
+            out.append("# HELP ").append(name).append(' ').append(family.help).append('\n');
+            out.append("# TYPE ").append(name).append(' ').append(family.type).append('\n');
+            for (Map.Entry<String, Object> series : new TreeMap<>(family.series).entrySet()) {
+                String labels = series.getKey();
+                Object value = series.getValue();
+                if (value instanceof LatencyHistogram) {
+                    long[] snapshot = ((LatencyHistogram) value).snapshot();
+                    String prefix = labels.isEmpty() ? "" : labels + ",";
+                    for (int i = 0; i < BUCKET_BOUNDS_MICROS.length; i++) {
+                        writeSample(out, name + "_bucket", prefix + BUCKET_LABELS[i], Long.toString(LatencyHistogram.countBelow(snapshot, BUCKET_BOUNDS_MICROS[i])));
+                    }
+                    // The count is the sum of the buckets read, so that it matches the +Inf bucket.
+                    String count = Long.toString(LatencyHistogram.countBelow(snapshot, Long.MAX_VALUE));
+                    writeSample(out, name + "_bucket", prefix + "le=\"+Inf\"", count);
+                    writeSample(out, name + "_sum", labels, seconds(LatencyHistogram.sumOf(snapshot)));
+                    writeSample(out, name + "_count", labels, count);
+                } else if (value instanceof LongAdder) {
+                    writeSample(out, name, labels, Long.toString(((LongAdder) value).sum()));
+                } else {
+                    writeSample(out, name, labels, Long.toString(((LongSupplier) value).getAsLong()));
+                }
+            }
+        }
+    }
+
+    private Family family(String name, String type, String help) {
+        Family family = families.computeIfAbsent(name, key -> new Family(type, help));
+        if (!family.type.equals(type)) {
+            throw new IllegalArgumentException("Metric " + name + " is a " + family.type + ", not a " + type + ".");
+        }
+        return family;
+    }
+
+    private static void writeSample(StringBuilder out, String name, String labels, String value) {
+        out.append(name);
+        if (!labels.isEmpty()) {
+            out.append('{').append(labels).append('}');
+        }
+        out.append(' ').append(value).append('\n');
+    }
+
+    private static String seconds(long micros) {
+        return Double.toString(micros / 1e6);
+    }
+
+}
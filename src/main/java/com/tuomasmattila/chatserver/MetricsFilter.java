@@ -0,0 +1,61 @@
+package com.tuomasmattila.chatserver;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.sun.net.httpserver.Filter;
+import com.sun.net.httpserver.HttpExchange;
+
+/**
+ * Counts the requests of a context by status code and records how long they
+ * take, authentication included. A request whose response is sent later by
+ * another thread, such as a long-polling request or a stream, is counted with
+ * the code "async" and its duration is not recorded; a request whose handler
+ * failed without sending a response is counted with the code "error".
+ */
+public class MetricsFilter extends Filter {
+
+    private final String handler;
+    private final LatencyHistogram latency;
+    private final ConcurrentHashMap<String, LongAdder> requests = new ConcurrentHashMap<>();
+
+    /**
+     * Creates the filter of a context.
+     *
+     * @param handler the name of the context in the metrics
+     */
+    MetricsFilter(String handler) {
+        this.handler = handler;
+        this.latency = Metrics.getInstance().timer("chatserver_http_request_duration_seconds",
+                "Time to handle a request, authentication included.", "handler=\"" + handler + "\"");
+    }
+
+    @Override
+    public void doFilter(HttpExchange exchange, Chain chain) throws IOException {
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            chain.doFilter(exchange);
+            failed = false;
+        } finally {
+            int code = exchange.getResponseCode();
+            if (code > 0) {
+                latency.recordSince(start);
+            }
+            String label = code > 0 ? Integer.toString(code) : failed ? "error" : "async";
+            LongAdder counter = requests.get(label);
+            if (counter == null) {
+                counter = requests.computeIfAbsent(label, key -> Metrics.getInstance().counter("chatserver_http_requests_total",
+                        "Requests by handler and status code.", "handler=\"" + handler + "\",code=\"" + key + "\""));
+            }
+            counter.increment();
+        }
+    }
+
+    @Override
+    public String description() {
+        return "Records request metrics";
+    }
+
+}
@@ -0,0 +1,59 @@
+package com.tuomasmattila.chatserver;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+/**
+ * Handles GET requests to /metrics, answering with the server's metrics in
+ * the Prometheus text format (see {@code Metrics}).
+ */
+public class MetricsHandler implements HttpHandler {
+
+    private final Metrics metrics;
+    private final ResponseCompressor compressor;
+
+    /**
+     * Handles requests to the /metrics context.
+     *
+     * @param metrics the metrics to write
+     * @param compressor used to compress the responses
+     */
+    MetricsHandler(Metrics metrics, ResponseCompressor compressor) {
+        this.metrics = metrics;
+        this.compressor = compressor;
+    }
+
+    /**
+     * Handles GET requests from clients.
+     *
+     * @param exchange the {@code HttpExchange} containing the request from the
+     * client and used to send the response
+     * @throws IOException if sending response headers fails or if
+     * writing to the {@code OutputStream} or closing it fails
+     */
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+        if (!exchange.getRequestMethod().equalsIgnoreCase("GET")) {
+            Result result = new Result(400, "Not supported.");
+            ChatServer.warn("---------- Error in /metrics: " + result.getCode() + " " + result.getResponse());
+            byte[] bytes = result.getResponse().getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(result.getCode(), bytes.length);
+            OutputStream os = exchange.getResponseBody();
+            os.write(bytes);
+            os.close();
+            return;
+        }
+        StringBuilder text = new StringBuilder();
+        metrics.writeTo(text);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+        exchange.getResponseHeaders().set("Cache-Control", "no-store");
+        OutputStream os = compressor.startResponse(exchange, 200);
+        os.write(text.toString().getBytes(StandardCharsets.UTF_8));
+        os.close();
+    }
+
+}
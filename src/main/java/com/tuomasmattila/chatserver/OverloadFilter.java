@@ -0,0 +1,48 @@
+package com.tuomasmattila.chatserver;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+import com.sun.net.httpserver.Filter;
+import com.sun.net.httpserver.HttpExchange;
+
+/**
+ * Answers the requests that {@code WorkerPool} could not admit with 503
+ * Service Unavailable and a {@code Retry-After} header. Filters run before the
+ * authenticator, so a refused request costs no password check and its body
+ * is never read.
+ */
+public class OverloadFilter extends Filter {
+
+    private final byte[] response = "Server is busy, try again later.".getBytes(StandardCharsets.UTF_8);
+    private final String retryAfter;
+
+    /**
+     * Creates the filter.
+     *
+     * @param retryAfterSeconds the value of the {@code Retry-After} header
+     */
+    OverloadFilter(int retryAfterSeconds) {
+        this.retryAfter = Integer.toString(retryAfterSeconds);
+    }
+
+    @Override
+    public void doFilter(HttpExchange exchange, Chain chain) throws IOException {
+        if (!WorkerPool.isShedding()) {
+            chain.doFilter(exchange);
+            return;
+        }
+        exchange.getResponseHeaders().set("Retry-After", retryAfter);
+        exchange.sendResponseHeaders(503, response.length);
+        OutputStream os = exchange.getResponseBody();
+        os.write(response);
+        os.close();
+    }
+
+    @Override
+    public String description() {
+        return "Refuses requests when the server is overloaded";
+    }
+
+}
@@ -0,0 +1,62 @@
+package com.tuomasmattila.chatserver;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A database connection borrowed from a {@code ConnectionPool}. Closing a
+ * {@code PooledConnection} returns it to the pool instead of closing the
+ * underlying {@code Connection}.
+ *
+ * Every borrow gets a {@code PooledConnection} of its own, a lease on one of
+ * the pool's connections, and only its first {@code close()} returns the
+ * connection. A stale second close therefore cannot return a reader that
+ * another thread has borrowed since, or unlock the writer of another borrow.
+ * The lease must not be used after it has been closed.
+ */
+public class PooledConnection implements AutoCloseable {
+
+    private final ConnectionPool pool;
+    private final ConnectionPool.Slot slot;
+    private final AtomicBoolean closed = new AtomicBoolean();
+
+    PooledConnection(ConnectionPool pool, ConnectionPool.Slot slot) {
+        this.pool = pool;
+        this.slot = slot;
+    }
+
+    public Connection getConnection() {
+        return slot.connection;
+    }
+
+    public boolean isWriter() {
+        return slot.writer;
+    }
+
+    /**
+     * Returns a prepared statement for the given SQL. The statement is prepared
+     * on the first call and reused on later calls with the same SQL. Callers
+     * must not close the returned statement.
+     *
+     * @param sql the SQL of the statement with {@code ?} placeholders
+     * @return a {@code PreparedStatement} with its parameters cleared
+     * @throws SQLException if preparing the statement fails
+     */
+    public PreparedStatement prepare(String sql) throws SQLException {
+        return slot.prepare(sql);
+    }
+
+    /**
+     * Returns the connection to the pool it was borrowed from, if this lease
+     * has not been closed yet.
+     */
+    @Override
+    public void close() {
+        if (closed.compareAndSet(false, true)) {
+            pool.release(slot);
+        }
+    }
+
+}
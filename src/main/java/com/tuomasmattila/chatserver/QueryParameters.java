@@ -0,0 +1,43 @@
+package com.tuomasmattila.chatserver;
+
+import java.net.URI;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Parses the query parameters of a request URI.
+ */
+public class QueryParameters {
+
+    private QueryParameters() {
+    }
+
+    /**
+     * Parses the query string of a URI. If a parameter is given more than once,
+     * the first value is used.
+     *
+     * @param uri the request URI
+     * @return the decoded parameters by name; empty if the URI has no query
+     */
+    public static Map<String, String> parse(URI uri) {
+        Map<String, String> parameters = new HashMap<>();
+        String query = uri.getRawQuery();
+        if (query == null) {
+            return parameters;
+        }
+        for (String parameter : query.split("&")) {
+            int separator = parameter.indexOf('=');
+            String name = separator < 0 ? parameter : parameter.substring(0, separator);
+            String value = separator < 0 ? "" : parameter.substring(separator + 1);
+            try {
+                parameters.putIfAbsent(URLDecoder.decode(name, StandardCharsets.UTF_8), URLDecoder.decode(value, StandardCharsets.UTF_8));
+            } catch (IllegalArgumentException e) {
+                // Malformed percent-encoding; the parameter is ignored.
+            }
+        }
+        return parameters;
+    }
+
+}
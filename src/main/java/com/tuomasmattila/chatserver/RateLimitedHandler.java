@@ -0,0 +1,56 @@
+package com.tuomasmattila.chatserver;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpPrincipal;
+
+/**
+ * Applies a {@code RateLimiter} to the requests of a context before passing
+ * them to its handler. Requests are counted per authenticated user, or per
+ * remote address in contexts without authentication. A request over the limit
+ * gets 429 Too Many Requests with a {@code Retry-After} header, and its body
+ * is not read.
+ *
+ * This is a wrapper rather than a {@code Filter}, because filters run before
+ * the authenticator and do not know the user yet.
+ */
+public class RateLimitedHandler implements HttpHandler {
+
+    private final RateLimiter limiter;
+    private final HttpHandler handler;
+
+    /**
+     * Limits the requests passed to a handler.
+     *
+     * @param limiter the {@code RateLimiter} of the context
+     * @param handler the handler of the context
+     */
+    RateLimitedHandler(RateLimiter limiter, HttpHandler handler) {
+        this.limiter = limiter;
+        this.handler = handler;
+    }
+
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+        HttpPrincipal principal = exchange.getPrincipal();
+        String key = principal != null ? principal.getUsername() : exchange.getRemoteAddress().getAddress().getHostAddress();
+        long wait = limiter.tryAcquire(key);
+        if (wait == 0) {
+            handler.handle(exchange);
+            return;
+        }
+        long seconds = Math.max(1, (wait + TimeUnit.SECONDS.toNanos(1) - 1) / TimeUnit.SECONDS.toNanos(1));
+        Result result = new Result(429, "Too many requests, try again in " + seconds + " s.");
+        exchange.getResponseHeaders().set("Retry-After", Long.toString(seconds));
+        byte[] bytes = result.getResponse().getBytes("UTF-8");
+        exchange.sendResponseHeaders(result.getCode(), bytes.length);
+        OutputStream os = exchange.getResponseBody();
+        os.write(bytes);
+        os.close();
+    }
+
+}
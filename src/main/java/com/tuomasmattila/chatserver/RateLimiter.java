@@ -0,0 +1,120 @@
+package com.tuomasmattila.chatserver;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Limits how often each client may make requests, with a token bucket per
+ * key: a client may make {@code burst} requests at once, and the bucket
+ * refills at {@code rate} requests per second.
+ *
+ * The bucket is kept as a single number, the time at which it will be full
+ * again (the generic cell rate algorithm), so taking a token is one
+ * compare-and-set without locks. A bucket that is full is the same as no
+ * bucket, so idle buckets are dropped: whenever the sweep interval has passed,
+ * the thread that notices it removes them, while the other threads go on.
+ * The memory used therefore depends on the number of recently active
+ * clients, not on the number of clients ever seen.
+ */
+public class RateLimiter {
+
+    private static final long SWEEP_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+    private final String name;
+    private final int rate;
+    private final int burst;
+    private final long intervalNanos;
+    private final long toleranceNanos;
+    private final ConcurrentHashMap<String, AtomicLong> buckets = new ConcurrentHashMap<>();
+    private final ReentrantLock sweepLock = new ReentrantLock();
+    private final LongAdder allowed = new LongAdder();
+    private final LongAdder refused = new LongAdder();
+    private volatile long nextSweep = System.nanoTime() + SWEEP_INTERVAL_NANOS;
+
+    /**
+     * Creates a rate limiter.
+     *
+     * @param name the name shown in the statistics
+     * @param rate the sustained number of requests allowed per second
+     * @param burst the number of requests allowed at once
+     */
+    public RateLimiter(String name, int rate, int burst) {
+        this.name = name;
+        this.rate = rate;
+        this.burst = Math.max(1, burst);
+        this.intervalNanos = TimeUnit.SECONDS.toNanos(1) / rate;
+        this.toleranceNanos = intervalNanos * this.burst;
+    }
+
+    /**
+     * Takes a token from the bucket of a client, if there is one.
+     *
+     * @param key identifies the client, for example the user name
+     * @return 0 if the request is allowed, otherwise how long the client
+     * should wait before trying again, in nanoseconds
+     */
+    public long tryAcquire(String key) {
+        return tryAcquire(key, System.nanoTime());
+    }
+
+    /**
+     * Takes a token from the bucket of a client at the given time.
+     *
+     * @param key identifies the client
+     * @param now the current time from {@code System.nanoTime()}
+     * @return 0 if the request is allowed, otherwise the wait in nanoseconds
+     */
+    long tryAcquire(String key, long now) {
+        AtomicLong bucket = buckets.get(key);
+        if (bucket == null) {
+            bucket = buckets.computeIfAbsent(key, k -> new AtomicLong(now));
+        }
+        long wait;
+        while (true) {
+            long fullAt = bucket.get();
+            long newFullAt = Math.max(fullAt, now) + intervalNanos;
+            wait = newFullAt - now - toleranceNanos;
+            if (wait > 0) {
+                refused.increment();
+                break;
+            }
+            if (bucket.compareAndSet(fullAt, newFullAt)) {
+                allowed.increment();
+                wait = 0;
+                break;
+            }
+        }
+        if (now - nextSweep >= 0) {
+            sweep(now);
+        }
+        return wait;
+    }
+
+    public int size() {
+        return buckets.size();
+    }
+
+    public String getStatsAsString() {
+        return "Rate limit " + name + ": " + rate + "/s, burst " + burst + ", clients " + size() + ", allowed " + allowed.sum() + ", refused " + refused.sum();
+    }
+
+    /**
+     * Drops the buckets that are full. Only one thread sweeps at a time; other
+     * threads skip the sweep while it is running.
+     */
+    private void sweep(long now) {
+        if (!sweepLock.tryLock()) {
+            return;
+        }
+        try {
+            nextSweep = now + SWEEP_INTERVAL_NANOS;
+            buckets.values().removeIf(bucket -> bucket.get() - now <= 0);
+        } finally {
+            sweepLock.unlock();
+        }
+    }
+
+}
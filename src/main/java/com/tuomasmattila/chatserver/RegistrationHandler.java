@@ -1,31 +1,30 @@
 package com.tuomasmattila.chatserver;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.OutputStream;
-import java.nio.charset.StandardCharsets;
-import java.util.stream.Collectors;
 
 import com.sun.net.httpserver.Headers;
 import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpHandler;
 
 import org.json.JSONException;
-import org.json.JSONObject;
 
 public class RegistrationHandler implements HttpHandler {
 
+    private static final byte[][] USER_FIELDS = RequestReader.fields("username", "password", "email");
+
     ChatAuthenticator auth = null;
+    private final long maxBodySize;
 
     /**
      * Handles registration related requests.
      * 
      * @param authenticator A {@code ChatAuthenticator} object
+     * @param maxBodySize the largest request body accepted, in bytes
      */
-    RegistrationHandler(ChatAuthenticator authenticator) {
+    RegistrationHandler(ChatAuthenticator authenticator, long maxBodySize) {
         auth = authenticator;
+        this.maxBodySize = maxBodySize;
     }
 
     /**
@@ -56,14 +55,13 @@ public class RegistrationHandler implements HttpHandler {
                     responseBody = "No content type in request.";
                 }
                 if (contentType.equalsIgnoreCase("application/json")) {
-                    InputStream stream = exchange.getRequestBody();
-                    String text = new BufferedReader(new InputStreamReader(stream, StandardCharsets.UTF_8)).lines()
-                            .collect(Collectors.joining("\n"));
-                    ChatServer.log(text);
-                    stream.close();
-                    try {
-                        JSONObject obj = new JSONObject(text);
-                        User user = new User(obj.getString("username"), obj.getString("password"), obj.getString("email"));
+                    try (JsonRequestReader reader = JsonRequestReader.open(exchange, maxBodySize)) {
+                        if (!reader.readObject(USER_FIELDS)) {
+                            throw new JSONException("A JSONObject text must begin with '{'.");
+                        }
+                        reader.endDocument();
+                        User user = new User(reader.getString(0), reader.getString(1), reader.getString(2));
+                        ChatServer.debug("Registration request for user " + user.getUsername());
                         if (user.getUsername().trim().length() > 0 && user.getPassword().trim().length() > 0 && user.getEmail().trim().length() > 0) {
                             // Create user credentials.
                             if (auth.addUser(user)) {
@@ -80,6 +78,9 @@ public class RegistrationHandler implements HttpHandler {
                     } catch (JSONException e) {
                         code = 400;
                         responseBody = "JSONException. Registration failed. " + e.getMessage();
+                    } catch (RequestReader.BodyTooLargeException e) {
+                        code = 413;
+                        responseBody = "Error: " + e.getMessage();
                     }
                 } else {
                     code = 411;
@@ -97,7 +98,7 @@ public class RegistrationHandler implements HttpHandler {
             responseBody = "Server error: " + e.getMessage();
         }
         if (code < 200 || code > 299) {
-            ChatServer.log("---------- Error in /registration: " + code + " " + responseBody);
+            ChatServer.warn("---------- Error in /registration: " + code + " " + responseBody);
             byte[] bytes = responseBody.getBytes("UTF-8");
             exchange.sendResponseHeaders(code, bytes.length);
             OutputStream os = exchange.getResponseBody();
@@ -0,0 +1,432 @@
+package com.tuomasmattila.chatserver;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.OffsetDateTime;
+
+import com.sun.net.httpserver.HttpExchange;
+
+import org.json.JSONException;
+
+/**
+ * Reads the fields of request bodies straight from the request stream. A body
+ * is an object or an array of objects; of each object, only the values of the
+ * fields a handler asks for are kept, in a buffer that is reused for every
+ * object, and everything else is skipped. The subclasses read the different
+ * wire formats (see {@code WireFormat}).
+ *
+ * A body larger than the maximum size is rejected with a
+ * {@code BodyTooLargeException}: before reading it, if its Content-Length is
+ * too large, and otherwise as soon as more bytes than allowed have been read.
+ *
+ * Syntax errors and fields that are missing or of the wrong type are reported
+ * with a {@code JSONException}, as {@code JSONObject} reports them. Closing a
+ * reader closes the request stream.
+ */
+public abstract class RequestReader implements Closeable {
+
+    private static final int BUFFER_SIZE = 8192;
+    private static final int VALUES_SIZE = 1024;
+    private static final int MAX_KEPT_VALUES_SIZE = 64 * 1024;
+    private static final int MISSING = -1;
+    private static final int NOT_A_STRING = -2;
+    private static final int NUMBER = -3;
+
+    protected final byte[] buffer = new byte[BUFFER_SIZE];
+    protected int position;
+    protected int limit;
+    private long read;
+    private long maxSize;
+    private InputStream in;
+
+    private byte[][] fields;
+    private int[] valueStarts = new int[8];
+    private int[] valueLengths = new int[8];
+    private long[] valueNumbers = new long[8];
+    protected byte[] values = new byte[VALUES_SIZE];
+    protected int valuesEnd;
+
+    /**
+     * Thrown when a request body is larger than the maximum size.
+     */
+    public static class BodyTooLargeException extends IOException {
+
+        private static final long serialVersionUID = 1L;
+
+        public BodyTooLargeException(long maxSize) {
+            super("Request body is larger than " + maxSize + " bytes.");
+        }
+    }
+
+    /**
+     * Encodes field names to the form given to {@code readObject}. The result
+     * is meant to be kept in a constant.
+     *
+     * @param names the names of the fields
+     * @return the names in UTF-8
+     */
+    public static byte[][] fields(String... names) {
+        byte[][] fields = new byte[names.length][];
+        for (int i = 0; i < names.length; i++) {
+            fields[i] = names[i].getBytes(StandardCharsets.UTF_8);
+        }
+        return fields;
+    }
+
+    /**
+     * Tells whether the body is an array, without reading anything from it.
+     *
+     * @return {@code true} if the next value is an array
+     * @throws IOException if reading the body fails
+     */
+    public abstract boolean isArrayNext() throws IOException;
+
+    /**
+     * Reads the start of an array. Its elements are then read while
+     * {@code hasNext} returns {@code true}.
+     *
+     * @throws IOException if reading the body fails
+     * @throws JSONException if the next value is not an array
+     */
+    public abstract void beginArray() throws IOException;
+
+    /**
+     * Tells whether the array has more elements, and reads the end of the
+     * array if it does not.
+     *
+     * @return {@code true} if there is another element
+     * @throws IOException if reading the body fails
+     * @throws JSONException if the array is not valid
+     */
+    public abstract boolean hasNext() throws IOException;
+
+    /**
+     * Reads the next value as an object, keeping the values of the given
+     * fields. They can be read with {@code getString}, {@code getBytes} and
+     * {@code getTime} until the next object is read. If the value is not an
+     * object, it is skipped.
+     *
+     * @param fields the fields to keep, from {@code fields}
+     * @return {@code true} if the value was an object, {@code false} if it was skipped
+     * @throws IOException if reading the body fails
+     * @throws JSONException if the body is not valid
+     */
+    public abstract boolean readObject(byte[][] fields) throws IOException;
+
+    /**
+     * Checks that nothing follows the values read.
+     *
+     * @throws IOException if reading the body fails
+     * @throws JSONException if there is more in the body
+     */
+    public abstract void endDocument() throws IOException;
+
+    /**
+     * Tells whether the last object read had a field.
+     *
+     * @param field the index of the field in the fields given to {@code readObject}
+     * @return {@code true} if the field was present
+     */
+    public boolean has(int field) {
+        return valueLengths[field] != MISSING;
+    }
+
+    /**
+     * Returns the value of a field of the last object read.
+     *
+     * @param field the index of the field in the fields given to {@code readObject}
+     * @return the value
+     * @throws JSONException if the field was missing or its value is not a string
+     */
+    public String getString(int field) {
+        checkString(field);
+        return new String(values, valueStarts[field], valueLengths[field], StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Returns the value of a field of the last object read as UTF-8 bytes.
+     *
+     * @param field the index of the field in the fields given to {@code readObject}
+     * @return a new array holding the value
+     * @throws JSONException if the field was missing or its value is not a string
+     */
+    public byte[] getBytes(int field) {
+        checkString(field);
+        byte[] value = new byte[valueLengths[field]];
+        System.arraycopy(values, valueStarts[field], value, 0, value.length);
+        return value;
+    }
+
+    /**
+     * Returns a time field of the last object read, given either as an
+     * ISO-8601 string or, in the formats that have numbers for it, as Unix
+     * time in milliseconds.
+     *
+     * @param field the index of the field in the fields given to {@code readObject}
+     * @return the time as Unix time in milliseconds
+     * @throws JSONException if the field was missing or is neither a string nor a number
+     * @throws java.time.format.DateTimeParseException if the string cannot be parsed
+     */
+    public long getTime(int field) {
+        if (valueLengths[field] == NUMBER) {
+            return valueNumbers[field];
+        }
+        return OffsetDateTime.parse(getString(field)).toInstant().toEpochMilli();
+    }
+
+    /**
+     * Closes the request stream.
+     *
+     * @throws IOException if closing the stream fails
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            in.close();
+        } finally {
+            in = null;
+            fields = null;
+            if (values.length > MAX_KEPT_VALUES_SIZE) {
+                values = new byte[VALUES_SIZE];
+            }
+            recycle();
+        }
+    }
+
+    /**
+     * Called when the reader is closed, so that it can be reused.
+     */
+    protected abstract void recycle();
+
+    /**
+     * Rejects the request if its Content-Length is larger than the maximum size.
+     *
+     * @param exchange the {@code HttpExchange} whose request body is read
+     * @param maxSize the largest body accepted, in bytes
+     * @throws BodyTooLargeException if the body is too large
+     */
+    protected static void checkContentLength(HttpExchange exchange, long maxSize) throws BodyTooLargeException {
+        String contentLength = exchange.getRequestHeaders().getFirst("Content-Length");
+        if (contentLength != null) {
+            try {
+                if (Long.parseLong(contentLength.trim()) > maxSize) {
+                    throw new BodyTooLargeException(maxSize);
+                }
+            } catch (NumberFormatException e) {
+                // The server itself rejects an invalid Content-Length.
+            }
+        }
+    }
+
+    /**
+     * Starts reading a request body.
+     *
+     * @param in the request body
+     * @param maxSize the largest body accepted, in bytes
+     */
+    protected void start(InputStream in, long maxSize) {
+        this.in = in;
+        this.maxSize = maxSize;
+        position = 0;
+        limit = 0;
+        read = 0;
+    }
+
+    /**
+     * Starts reading an object, forgetting the values of the previous one.
+     *
+     * @param fields the fields to keep
+     */
+    protected void startObject(byte[][] fields) {
+        this.fields = fields;
+        if (valueStarts.length < fields.length) {
+            valueStarts = new int[fields.length];
+            valueLengths = new int[fields.length];
+            valueNumbers = new long[fields.length];
+        }
+        for (int i = 0; i < fields.length; i++) {
+            valueLengths[i] = MISSING;
+        }
+        valuesEnd = 0;
+    }
+
+    /**
+     * Finds the field whose name was just read to the end of {@code values}.
+     *
+     * @param start the position of the name in {@code values}
+     * @param length the length of the name
+     * @return the index of the field, or -1 if it is not one of the kept fields
+     */
+    protected int findField(int start, int length) {
+        for (int i = 0; i < fields.length; i++) {
+            byte[] name = fields[i];
+            if (name.length != length) {
+                continue;
+            }
+            int j = 0;
+            while (j < length && values[start + j] == name[j]) {
+                j++;
+            }
+            if (j == length) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    protected void setString(int field, int start, int length) {
+        valueStarts[field] = start;
+        valueLengths[field] = length;
+    }
+
+    protected void setNumber(int field, long number) {
+        valueNumbers[field] = number;
+        valueLengths[field] = NUMBER;
+    }
+
+    protected void setNotString(int field) {
+        valueLengths[field] = NOT_A_STRING;
+    }
+
+    /**
+     * Replaces invalid UTF-8 in a string that was read to the end of
+     * {@code values}, as a {@code Reader} would replace it.
+     *
+     * @param start the position of the string in {@code values}
+     */
+    protected void replaceInvalidUtf8(int start) {
+        if (isValidUtf8(start, valuesEnd)) {
+            return;
+        }
+        byte[] replaced = new String(values, start, valuesEnd - start, StandardCharsets.UTF_8).getBytes(StandardCharsets.UTF_8);
+        valuesEnd = start;
+        for (byte b : replaced) {
+            append(b);
+        }
+    }
+
+    protected void append(int b) {
+        if (valuesEnd == values.length) {
+            byte[] grown = new byte[values.length * 2];
+            System.arraycopy(values, 0, grown, 0, valuesEnd);
+            values = grown;
+        }
+        values[valuesEnd++] = (byte) b;
+    }
+
+    protected void append(byte[] bytes, int offset, int length) {
+        if (valuesEnd + length > values.length) {
+            byte[] grown = new byte[Math.max(values.length * 2, valuesEnd + length)];
+            System.arraycopy(values, 0, grown, 0, valuesEnd);
+            values = grown;
+        }
+        System.arraycopy(bytes, offset, values, valuesEnd, length);
+        valuesEnd += length;
+    }
+
+    protected int read() throws IOException {
+        if (position == limit && !fill()) {
+            return -1;
+        }
+        return buffer[position++] & 0xff;
+    }
+
+    /**
+     * Makes sure that the buffer holds at least the given number of bytes not
+     * read yet.
+     *
+     * @param count the number of bytes
+     * @return {@code false} if the body ends before that
+     */
+    protected boolean ensure(int count) throws IOException {
+        while (limit - position < count) {
+            if (!fill()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Reads more of the body into the buffer, after the bytes not read yet.
+     *
+     * @return {@code false} at the end of the body
+     */
+    protected boolean fill() throws IOException {
+        if (position > 0) {
+            System.arraycopy(buffer, position, buffer, 0, limit - position);
+            limit -= position;
+            position = 0;
+        }
+        int count = in.read(buffer, limit, buffer.length - limit);
+        if (count <= 0) {
+            return false;
+        }
+        read += count;
+        if (read > maxSize) {
+            throw new BodyTooLargeException(maxSize);
+        }
+        limit += count;
+        return true;
+    }
+
+    protected JSONException syntaxError(String message) {
+        return new JSONException(message + " at " + (read - limit + position) + ".");
+    }
+
+    private void checkString(int field) {
+        if (valueLengths[field] == MISSING) {
+            throw new JSONException("JSONObject[\"" + fieldName(field) + "\"] not found.");
+        }
+        if (valueLengths[field] < 0) {
+            throw new JSONException("JSONObject[\"" + fieldName(field) + "\"] is not a string.");
+        }
+    }
+
+    private String fieldName(int field) {
+        return new String(fields[field], StandardCharsets.UTF_8);
+    }
+
+    private boolean isValidUtf8(int start, int end) {
+        int i = start;
+        while (i < end) {
+            int b = values[i] & 0xff;
+            int continuation;
+            int min;
+            if (b < 0x80) {
+                i++;
+                continue;
+            } else if (b >= 0xc2 && b <= 0xdf) {
+                continuation = 1;
+                min = 0x80;
+            } else if (b >= 0xe0 && b <= 0xef) {
+                continuation = 2;
+                min = 0x800;
+            } else if (b >= 0xf0 && b <= 0xf4) {
+                continuation = 3;
+                min = 0x10000;
+            } else {
+                return false;
+            }
+            if (i + continuation >= end) {
+                return false;
+            }
+            int codePoint = b & (0x3f >> continuation);
+            for (int j = 1; j <= continuation; j++) {
+                int next = values[i + j] & 0xff;
+                if ((next & 0xc0) != 0x80) {
+                    return false;
+                }
+                codePoint = codePoint << 6 | (next & 0x3f);
+            }
+            if (codePoint < min || codePoint > Character.MAX_CODE_POINT || (codePoint >= 0xd800 && codePoint <= 0xdfff)) {
+                return false;
+            }
+            i += continuation + 1;
+        }
+        return true;
+    }
+
+}
@@ -0,0 +1,330 @@
+package com.tuomasmattila.chatserver;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+
+/**
+ * Compresses response bodies with gzip or deflate when the client accepts it
+ * in its {@code Accept-Encoding} header.
+ *
+ * The response headers are sent lazily: the body is first collected into a
+ * buffer of {@code minSize} bytes. A body that fits in the buffer is sent
+ * uncompressed with its exact {@code Content-Length}, since compressing small
+ * bodies costs more than it saves. When the buffer overflows, the compressed
+ * response is started and the rest of the body is compressed as it is
+ * written, without keeping a copy of it.
+ *
+ * {@code Deflater} instances hold native memory and are expensive to create,
+ * so they are pooled and reused between responses together with their output
+ * buffers. The buffers that collect the start of the bodies are pooled too.
+ */
+public class ResponseCompressor {
+
+    private static final int MAX_POOLED = 64;
+    private static final int CHUNK_SIZE = 8192;
+    private static final byte[] GZIP_HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, 0};
+
+    private final int minSize;
+    private final int level;
+    private final ConcurrentLinkedQueue<PooledDeflater> gzipDeflaters = new ConcurrentLinkedQueue<>();
+    private final ConcurrentLinkedQueue<PooledDeflater> zlibDeflaters = new ConcurrentLinkedQueue<>();
+    private final ConcurrentLinkedQueue<byte[]> buffers = new ConcurrentLinkedQueue<>();
+    private final LongAdder compressedResponses = new LongAdder();
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+
+    /**
+     * Creates a response compressor.
+     *
+     * @param minSize responses shorter than this many bytes are not compressed
+     * @param level the compression level, from 1 (fastest) to 9 (smallest)
+     */
+    public ResponseCompressor(int minSize, int level) {
+        this.minSize = minSize;
+        this.level = level;
+    }
+
+    /**
+     * Starts a response whose body is written to the returned stream. The
+     * response headers are sent when the stream is closed or when the body
+     * grows over the minimum size, so they can still be changed until the
+     * first write. The stream must be closed to complete the response.
+     *
+     * @param exchange the {@code HttpExchange} used to send the response
+     * @param code the HTTP status code of the response
+     * @return the {@code OutputStream} for the response body
+     */
+    public OutputStream startResponse(HttpExchange exchange, int code) {
+        Headers responseHeaders = exchange.getResponseHeaders();
+        responseHeaders.add("Vary", "Accept-Encoding");
+        return new ResponseStream(exchange, code, negotiate(exchange.getRequestHeaders()));
+    }
+
+    public String getStatsAsString() {
+        long in = bytesIn.sum();
+        long out = bytesOut.sum();
+        return "Compression: responses " + compressedResponses.sum() + ", bytes " + in + " -> " + out + (in == 0 ? "" : " (" + (100 * out / in) + "%)");
+    }
+
+    /**
+     * Chooses the encoding from the request's {@code Accept-Encoding} header,
+     * preferring gzip over deflate when both are equally acceptable. A "*"
+     * only applies to the encodings that are not listed by name, so
+     * "gzip;q=0, *" does not accept gzip.
+     *
+     * @return "gzip", "deflate" or {@code null} for no compression
+     */
+    static String negotiate(Headers requestHeaders) {
+        List<String> acceptEncodings = requestHeaders.get("Accept-Encoding");
+        if (acceptEncodings == null) {
+            return null;
+        }
+        double gzip = -1;
+        double deflate = -1;
+        double any = 0;
+        for (String acceptEncoding : acceptEncodings) {
+            for (String coding : acceptEncoding.split(",")) {
+                String[] parts = coding.split(";");
+                String name = parts[0].trim().toLowerCase();
+                double quality = 1;
+                for (int i = 1; i < parts.length; i++) {
+                    String parameter = parts[i].trim();
+                    if (parameter.startsWith("q=")) {
+                        try {
+                            quality = Double.parseDouble(parameter.substring(2));
+                        } catch (NumberFormatException e) {
+                            quality = 0;
+                        }
+                    }
+                }
+                if (name.equals("gzip") || name.equals("x-gzip")) {
+                    gzip = quality;
+                } else if (name.equals("deflate")) {
+                    deflate = quality;
+                } else if (name.equals("*")) {
+                    any = quality;
+                }
+            }
+        }
+        gzip = gzip < 0 ? any : gzip;
+        deflate = deflate < 0 ? any : deflate;
+        if (gzip > 0 && gzip >= deflate) {
+            return "gzip";
+        }
+        return deflate > 0 ? "deflate" : null;
+    }
+
+    private PooledDeflater takeDeflater(boolean gzip) {
+        PooledDeflater pooled = (gzip ? gzipDeflaters : zlibDeflaters).poll();
+        if (pooled == null) {
+            pooled = new PooledDeflater(level, gzip);
+        }
+        return pooled;
+    }
+
+    private void returnDeflater(PooledDeflater pooled) {
+        ConcurrentLinkedQueue<PooledDeflater> pool = pooled.gzip ? gzipDeflaters : zlibDeflaters;
+        pooled.deflater.reset();
+        if (pool.size() < MAX_POOLED) {
+            pool.offer(pooled);
+        } else {
+            pooled.deflater.end();
+        }
+    }
+
+    /**
+     * A {@code Deflater} and the buffer its output is written through.
+     */
+    private static class PooledDeflater {
+
+        private final Deflater deflater;
+        private final byte[] chunk = new byte[CHUNK_SIZE];
+        private final boolean gzip;
+
+        PooledDeflater(int level, boolean gzip) {
+            // Gzip uses raw deflate data with its own header and trailer.
+            this.deflater = new Deflater(level, gzip);
+            this.gzip = gzip;
+        }
+    }
+
+    private byte[] takeBuffer() {
+        byte[] buffer = buffers.poll();
+        return buffer != null ? buffer : new byte[minSize];
+    }
+
+    private void returnBuffer(byte[] buffer) {
+        if (buffers.size() < MAX_POOLED) {
+            buffers.offer(buffer);
+        }
+    }
+
+    /**
+     * A response body that is buffered up to the minimum size and, if the
+     * client accepts it, compressed after that.
+     */
+    private class ResponseStream extends OutputStream {
+
+        private final HttpExchange exchange;
+        private final int code;
+        private final String encoding;
+        // Taken from the pool on the first write and returned once its bytes are sent.
+        private byte[] buffer;
+        private int buffered;
+        private OutputStream body;
+        private PooledDeflater pooled;
+        private Deflater deflater;
+        private CRC32 crc;
+        private boolean closed;
+
+        ResponseStream(HttpExchange exchange, int code, String encoding) {
+            this.exchange = exchange;
+            this.code = code;
+            this.encoding = encoding;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            if (body == null) {
+                if (buffer == null) {
+                    buffer = takeBuffer();
+                }
+                if (buffered + length <= buffer.length) {
+                    System.arraycopy(bytes, offset, buffer, buffered, length);
+                    buffered += length;
+                    return;
+                }
+                start();
+            }
+            if (deflater == null) {
+                body.write(bytes, offset, length);
+            } else {
+                deflate(bytes, offset, length);
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (body != null && deflater == null) {
+                body.flush();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                if (body == null) {
+                    // The whole body fit in the buffer and is sent as it is.
+                    exchange.sendResponseHeaders(code, buffered == 0 ? -1 : buffered);
+                    body = exchange.getResponseBody();
+                    if (buffered > 0) {
+                        body.write(buffer, 0, buffered);
+                    }
+                } else if (deflater != null) {
+                    deflater.finish();
+                    while (!deflater.finished()) {
+                        writeDeflated();
+                    }
+                    if (crc != null) {
+                        writeGzipTrailer();
+                    }
+                    bytesIn.add(deflater.getBytesRead());
+                    bytesOut.add(deflater.getBytesWritten());
+                }
+            } finally {
+                if (buffer != null) {
+                    releaseBuffer();
+                }
+                if (pooled != null) {
+                    returnDeflater(pooled);
+                    pooled = null;
+                    deflater = null;
+                }
+                if (body != null) {
+                    body.close();
+                }
+            }
+        }
+
+        /**
+         * Sends the response headers and starts writing the body. The body is
+         * compressed only if the client accepts it and it did not fit in the buffer.
+         */
+        private void start() throws IOException {
+            if (encoding == null) {
+                exchange.sendResponseHeaders(code, 0);
+                body = exchange.getResponseBody();
+                body.write(buffer, 0, buffered);
+                releaseBuffer();
+                return;
+            }
+            exchange.getResponseHeaders().set("Content-Encoding", encoding);
+            exchange.sendResponseHeaders(code, 0);
+            body = exchange.getResponseBody();
+            compressedResponses.increment();
+            boolean gzip = encoding.equals("gzip");
+            pooled = takeDeflater(gzip);
+            deflater = pooled.deflater;
+            if (gzip) {
+                crc = new CRC32();
+                body.write(GZIP_HEADER);
+            }
+            deflate(buffer, 0, buffered);
+            releaseBuffer();
+        }
+
+        private void releaseBuffer() {
+            returnBuffer(buffer);
+            buffer = null;
+        }
+
+        private void deflate(byte[] bytes, int offset, int length) throws IOException {
+            if (length == 0) {
+                return;
+            }
+            if (crc != null) {
+                crc.update(bytes, offset, length);
+            }
+            deflater.setInput(bytes, offset, length);
+            while (!deflater.needsInput()) {
+                writeDeflated();
+            }
+        }
+
+        private void writeDeflated() throws IOException {
+            int length = deflater.deflate(pooled.chunk, 0, pooled.chunk.length);
+            if (length > 0) {
+                body.write(pooled.chunk, 0, length);
+            }
+        }
+
+        private void writeGzipTrailer() throws IOException {
+            long value = crc.getValue();
+            long size = deflater.getBytesRead();
+            byte[] trailer = new byte[8];
+            for (int i = 0; i < 4; i++) {
+                trailer[i] = (byte) (value >> (8 * i));
+                trailer[4 + i] = (byte) (size >> (8 * i));
+            }
+            body.write(trailer);
+        }
+    }
+
+}
@@ -0,0 +1,213 @@
+package com.tuomasmattila.chatserver;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.time.OffsetDateTime;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Map;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+/**
+ * A class that handles full-text searches of the message history. A GET request
+ * to /search returns the messages matching the query {@code q} as a JSON array,
+ * best match first. The search can be limited with the query parameters
+ * {@code channel}, {@code user}, {@code from} and {@code to} (ISO-8601 times),
+ * and paged with {@code limit} and {@code offset}.
+ *
+ * Each word of the query must appear in a message for it to match. A word
+ * ending in {@code *} matches every word starting with it.
+ */
+public class SearchHandler implements HttpHandler {
+
+    private static final int DEFAULT_PAGE_SIZE = 20;
+    private static final int MAX_PAGE_SIZE = 100;
+
+    private final ResponseCompressor compressor;
+
+    /**
+     * Handles GET requests to the /search context.
+     *
+     * @param compressor used to compress the search results
+     */
+    public SearchHandler(ResponseCompressor compressor) {
+        this.compressor = compressor;
+    }
+
+    /**
+     * Handles GET requests from clients.
+     *
+     * @param exchange the {@code HttpExchange} containing the request from the
+     * client and used to send the response
+     * @throws IOException if sending response headers fails or if
+     * writing to the {@code OutputStream} or closing it fails
+     */
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+        Result result = new Result();
+        result.setCode(200);
+        result.setResponse("");
+
+        if (ChatServer.isDebugEnabled()) {
+            ChatServer.debug("/search: Request handled in thread " + Thread.currentThread().getId());
+        }
+        try {
+            if (exchange.getRequestMethod().equalsIgnoreCase("GET")) {
+                result = handleSearchRequest(exchange);
+            } else {
+                result.setCode(400);
+                result.setResponse("Not supported.");
+            }
+        } catch (IOException e) {
+            result.setCode(500);
+            result.setResponse("Error in handling the request: " + e.getMessage());
+        }
+        if (result.getCode() < 200 || result.getCode() > 299) {
+            ChatServer.warn("---------- Error in /search: " + result.getCode() + " " + result.getResponse());
+            byte[] bytes = result.getResponse().getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(result.getCode(), bytes.length);
+            OutputStream os = exchange.getResponseBody();
+            os.write(bytes);
+            os.close();
+        }
+    }
+
+    /**
+     * Searches the messages and sends the results to the client. If the page is
+     * full, a {@code Link} header with {@code rel="next"} points to the next page.
+     *
+     * @return a {@code Result} object that includes the HTTP status code and a response message
+     * @throws IOException if writing the response fails
+     */
+    private Result handleSearchRequest(HttpExchange exchange) throws IOException {
+        Result result = new Result();
+        result.setCode(400);
+        Map<String, String> query = QueryParameters.parse(exchange.getRequestURI());
+
+        if (!ChatDatabase.getInstance().isSearchSupported()) {
+            result.setCode(501);
+            result.setResponse("Search is not available with this message store.");
+            return result;
+        }
+        String matchQuery = toMatchQuery(query.get("q"));
+        if (matchQuery == null) {
+            result.setResponse("Error: the search query q is missing.");
+            return result;
+        }
+        String channel = query.get("channel");
+        if (channel != null && !ChatDatabase.getInstance().channelExists(channel)) {
+            result.setResponse("Error: requested channel is not valid.");
+            return result;
+        }
+        long from = Long.MIN_VALUE;
+        long to = Long.MAX_VALUE;
+        try {
+            if (query.containsKey("from")) {
+                from = OffsetDateTime.parse(query.get("from")).toInstant().toEpochMilli();
+            }
+            if (query.containsKey("to")) {
+                to = OffsetDateTime.parse(query.get("to")).toInstant().toEpochMilli();
+            }
+        } catch (DateTimeParseException e) {
+            result.setResponse("Error: from and to must be ISO-8601 times.");
+            return result;
+        }
+        int limit = parseNonNegative(query.get("limit"), DEFAULT_PAGE_SIZE);
+        int offset = parseNonNegative(query.get("offset"), 0);
+        if (limit < 1 || offset < 0) {
+            result.setResponse("Error: limit must be a positive number and offset must not be negative.");
+            return result;
+        }
+        limit = Math.min(limit, MAX_PAGE_SIZE);
+
+        ArrayList<ChatMessage> messages;
+        try {
+            messages = ChatDatabase.getInstance().searchMessages(matchQuery, channel, query.get("user"), from, to, limit, offset);
+        } catch (SQLException e) {
+            result.setCode(500);
+            result.setResponse("Database access error.");
+            ChatServer.warn(e.getMessage());
+            return result;
+        }
+        result.setCode(200);
+        if (messages.size() == limit) {
+            query.put("offset", Integer.toString(offset + limit));
+            query.put("limit", Integer.toString(limit));
+            exchange.getResponseHeaders().set("Link", "<" + toUri(query) + ">; rel=\"next\"");
+        }
+        if (!ChatDatabase.getInstance().isSearchIndexComplete()) {
+            // Older messages are still being added to the index.
+            exchange.getResponseHeaders().set("Search-Index", "incomplete");
+        }
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        if (ChatServer.isDebugEnabled()) {
+            ChatServer.debug("Delivering " + messages.size() + " search results to client.");
+        }
+        OutputStream os = compressor.startResponse(exchange, result.getCode());
+        try (JsonMessageWriter writer = JsonMessageWriter.open(os)) {
+            writer.writeArray(messages);
+        }
+        os.close();
+        return result;
+    }
+
+    /**
+     * Converts the words of a search into an FTS5 query. Every word is quoted,
+     * so characters that have a meaning in the FTS5 query syntax are searched
+     * as they are, except a {@code *} at the end of a word, which is kept as a
+     * prefix search.
+     *
+     * @param search the search given by the client
+     * @return the FTS5 query, or {@code null} if the search has no words
+     */
+    private static String toMatchQuery(String search) {
+        if (search == null) {
+            return null;
+        }
+        StringBuilder matchQuery = new StringBuilder();
+        for (String word : search.trim().split("\\s+")) {
+            boolean prefix = word.length() > 1 && word.endsWith("*");
+            if (prefix) {
+                word = word.substring(0, word.length() - 1);
+            }
+            if (word.isEmpty() || word.equals("*")) {
+                continue;
+            }
+            if (matchQuery.length() > 0) {
+                matchQuery.append(' ');
+            }
+            matchQuery.append('"').append(word.replace("\"", "\"\"")).append('"');
+            if (prefix) {
+                matchQuery.append('*');
+            }
+        }
+        return matchQuery.length() == 0 ? null : matchQuery.toString();
+    }
+
+    private static int parseNonNegative(String value, int defaultValue) {
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static String toUri(Map<String, String> query) {
+        StringBuilder uri = new StringBuilder("/search");
+        char separator = '?';
+        for (Map.Entry<String, String> parameter : query.entrySet()) {
+            uri.append(separator).append(parameter.getKey()).append('=').append(URLEncoder.encode(parameter.getValue(), StandardCharsets.UTF_8));
+            separator = '&';
+        }
+        return uri.toString();
+    }
+
+}
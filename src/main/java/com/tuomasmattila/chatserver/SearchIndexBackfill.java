@@ -0,0 +1,145 @@
+package com.tuomasmattila.chatserver;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * Adds the messages that were stored before the full-text search index existed
+ * to the index. New messages are indexed by a trigger when they are inserted,
+ * so only the messages with an id up to the one recorded when the index was
+ * created need to be backfilled.
+ *
+ * The backfill runs in a background thread in small chunks, each in its own
+ * short transaction on the writer connection, and pauses between the chunks,
+ * so that new messages can be written while it runs. Its progress is stored in
+ * the {@code search_backfill} table, so a backfill that is interrupted by a
+ * restart continues where it stopped.
+ */
+public class SearchIndexBackfill {
+
+    private static final String SELECT_PROGRESS = "select high, position from search_backfill";
+    private static final String SELECT_CHUNK_END = "select max(id) from (select id from messages where id > ? and id <= ? order by id limit ?)";
+    private static final String INDEX_CHUNK = "insert into messages_fts(rowid, message) select id, message from messages where id > ? and id <= ?";
+    private static final String UPDATE_PROGRESS = "update search_backfill set position = ?";
+    private static final String DELETE_PROGRESS = "delete from search_backfill";
+
+    private final ConnectionPool connectionPool;
+    private final int chunkSize;
+    private final long pauseMillis;
+    private final Thread thread;
+    private volatile boolean running = true;
+    private volatile boolean complete;
+
+    /**
+     * Creates the backfill. The thread is started with {@code start()}.
+     *
+     * @param connectionPool the pool whose writer connection is used
+     * @param chunkSize the number of messages indexed in one transaction
+     * @param pauseMillis the pause between the chunks, in milliseconds
+     */
+    public SearchIndexBackfill(ConnectionPool connectionPool, int chunkSize, long pauseMillis) {
+        this.connectionPool = connectionPool;
+        this.chunkSize = chunkSize;
+        this.pauseMillis = pauseMillis;
+        this.thread = new Thread(this::run, "search-backfill");
+        this.thread.setDaemon(true);
+    }
+
+    public void start() {
+        thread.start();
+    }
+
+    /**
+     * Stops the backfill after the current chunk. The progress is kept, and the
+     * backfill continues the next time the database is opened.
+     */
+    public void close() {
+        running = false;
+        thread.interrupt();
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Tells whether every message is in the search index.
+     *
+     * @return {@code true} when the backfill has finished
+     */
+    public boolean isComplete() {
+        return complete;
+    }
+
+    private void run() {
+        try {
+            while (running && indexChunk()) {
+                Thread.sleep(pauseMillis);
+            }
+        } catch (InterruptedException e) {
+            // Closed; the progress has been saved.
+        } catch (SQLException e) {
+            ChatServer.warn("Search index backfill failed: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Indexes the next chunk of messages and saves the progress in the same transaction.
+     *
+     * @return {@code true} if there are more messages to index
+     * @throws SQLException if a database access error occurs
+     */
+    private boolean indexChunk() throws SQLException {
+        try (PooledConnection writer = connectionPool.getWriter()) {
+            Connection connection = writer.getConnection();
+            ResultSet rs = writer.prepare(SELECT_PROGRESS).executeQuery();
+            if (!rs.next()) {
+                rs.close();
+                complete = true;
+                return false;
+            }
+            long high = rs.getLong("high");
+            long position = rs.getLong("position");
+            rs.close();
+            PreparedStatement chunkEndStatement = writer.prepare(SELECT_CHUNK_END);
+            chunkEndStatement.setLong(1, position);
+            chunkEndStatement.setLong(2, high);
+            chunkEndStatement.setInt(3, chunkSize);
+            rs = chunkEndStatement.executeQuery();
+            long end = rs.next() ? rs.getLong(1) : 0;
+            boolean last = rs.wasNull() || end >= high;
+            rs.close();
+            try {
+                connection.setAutoCommit(false);
+                if (end > position) {
+                    PreparedStatement indexStatement = writer.prepare(INDEX_CHUNK);
+                    indexStatement.setLong(1, position);
+                    indexStatement.setLong(2, end);
+                    indexStatement.executeUpdate();
+                }
+                if (last) {
+                    writer.prepare(DELETE_PROGRESS).executeUpdate();
+                } else {
+                    PreparedStatement progressStatement = writer.prepare(UPDATE_PROGRESS);
+                    progressStatement.setLong(1, end);
+                    progressStatement.executeUpdate();
+                }
+                connection.commit();
+            } catch (SQLException e) {
+                connection.rollback();
+                throw e;
+            } finally {
+                connection.setAutoCommit(true);
+            }
+            if (last) {
+                complete = true;
+                ChatServer.log("Search index backfill finished.");
+            }
+            return !last;
+        }
+    }
+
+}
@@ -0,0 +1,179 @@
+package com.tuomasmattila.chatserver;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Stores messages in the {@code messages} table of the SQLite database. Every
+ * {@code append} is one transaction on the writer connection, and the queries
+ * use the {@code messages_channel_sent} and {@code messages_channel_id} indexes.
+ * The full-text search index is kept up to date by triggers on the table.
+ */
+public class SqliteMessageStore implements MessageStore {
+
+    private static final String INSERT_MESSAGE = "insert into messages (id, user, message, sent, channel) values (?, ?, ?, ?, ?)";
+    private static final String SELECT_MESSAGES_SINCE = "select * from messages where channel = ? and sent > ? order by sent asc, id asc";
+    private static final String SELECT_LATEST_MESSAGES = "select * from (select * from messages where channel = ? order by sent desc, id desc limit ?) order by sent asc, id asc";
+    private static final String SELECT_PAGE_LATEST = "select * from (select * from messages where channel = ? order by id desc limit ?) order by id asc";
+    private static final String SELECT_PAGE_BEFORE = "select * from (select * from messages where channel = ? and id < ? order by id desc limit ?) order by id asc";
+    private static final String SELECT_PAGE_AFTER = "select * from messages where channel = ? and id > ? order by id asc limit ?";
+    private static final String SELECT_ALL_AFTER = "select * from messages where id > ? order by id asc limit ?";
+    private static final String SELECT_MAX_MESSAGE_ID = "select max(id) from messages";
+    private static final String COUNT_MESSAGES = "select count(*) from messages";
+
+    private final ConnectionPool connectionPool;
+
+    /**
+     * Creates a store on an open database whose schema has been migrated.
+     *
+     * @param connectionPool the pool of connections to the database
+     */
+    public SqliteMessageStore(ConnectionPool connectionPool) {
+        this.connectionPool = connectionPool;
+    }
+
+    @Override
+    public void append(List<ChatMessage> messages) throws SQLException {
+        try (PooledConnection writer = connectionPool.getWriter()) {
+            Connection connection = writer.getConnection();
+            PreparedStatement insertStatement = writer.prepare(INSERT_MESSAGE);
+            try {
+                connection.setAutoCommit(false);
+                for (ChatMessage message : messages) {
+                    insertStatement.setLong(1, message.getId());
+                    insertStatement.setString(2, message.getNick());
+                    insertStatement.setString(3, message.getMessage());
+                    insertStatement.setLong(4, message.dateAsInt());
+                    insertStatement.setString(5, message.getChannel());
+                    insertStatement.executeUpdate();
+                }
+                connection.commit();
+            } catch (SQLException e) {
+                connection.rollback();
+                throw e;
+            } finally {
+                connection.setAutoCommit(true);
+            }
+        }
+    }
+
+    @Override
+    public ArrayList<ChatMessage> getMessagesSince(String channel, long since) throws SQLException {
+        try (PooledConnection reader = connectionPool.getReader()) {
+            PreparedStatement queryStatement = reader.prepare(SELECT_MESSAGES_SINCE);
+            queryStatement.setString(1, channel);
+            queryStatement.setLong(2, since);
+            return readMessages(queryStatement.executeQuery());
+        }
+    }
+
+    @Override
+    public ArrayList<ChatMessage> getLatestMessages(String channel, int count) throws SQLException {
+        try (PooledConnection reader = connectionPool.getReader()) {
+            PreparedStatement queryStatement = reader.prepare(SELECT_LATEST_MESSAGES);
+            queryStatement.setString(1, channel);
+            queryStatement.setInt(2, count);
+            return readMessages(queryStatement.executeQuery());
+        }
+    }
+
+    /**
+     * Reads a page through the {@code messages_channel_id} index, so reading a
+     * page costs the same no matter how far back in the history it is.
+     */
+    @Override
+    public ArrayList<ChatMessage> getMessagesPage(String channel, long cursor, boolean before, int limit) throws SQLException {
+        try (PooledConnection reader = connectionPool.getReader()) {
+            PreparedStatement queryStatement;
+            if (cursor == -1) {
+                queryStatement = reader.prepare(SELECT_PAGE_LATEST);
+                queryStatement.setString(1, channel);
+                queryStatement.setInt(2, limit);
+            } else {
+                queryStatement = reader.prepare(before ? SELECT_PAGE_BEFORE : SELECT_PAGE_AFTER);
+                queryStatement.setString(1, channel);
+                queryStatement.setLong(2, cursor);
+                queryStatement.setInt(3, limit);
+            }
+            return readMessages(queryStatement.executeQuery());
+        }
+    }
+
+    /**
+     * Reads the messages of all channels with an id greater than the given one,
+     * in id order. Used to copy the messages to another store.
+     *
+     * @param id the id after which to read
+     * @param limit the maximum number of messages
+     * @return the messages in id order
+     * @throws SQLException if a database access error occurs
+     */
+    public ArrayList<ChatMessage> getMessagesAfter(long id, int limit) throws SQLException {
+        try (PooledConnection reader = connectionPool.getReader()) {
+            PreparedStatement queryStatement = reader.prepare(SELECT_ALL_AFTER);
+            queryStatement.setLong(1, id);
+            queryStatement.setInt(2, limit);
+            return readMessages(queryStatement.executeQuery());
+        }
+    }
+
+    @Override
+    public long getLastMessageId() throws SQLException {
+        try (PooledConnection reader = connectionPool.getReader()) {
+            ResultSet rs = reader.prepare(SELECT_MAX_MESSAGE_ID).executeQuery();
+            long id = rs.next() ? rs.getLong(1) : 0;
+            rs.close();
+            return id;
+        }
+    }
+
+    @Override
+    public int numberOfMessages() throws SQLException {
+        try (PooledConnection reader = connectionPool.getReader()) {
+            ResultSet rs = reader.prepare(COUNT_MESSAGES).executeQuery();
+            int count = rs.next() ? rs.getInt(1) : 0;
+            rs.close();
+            return count;
+        }
+    }
+
+    @Override
+    public String getStatsAsString() {
+        return "Message store: SQLite";
+    }
+
+    /**
+     * Does nothing; the connection pool is closed by {@code ChatDatabase}.
+     */
+    @Override
+    public void close() {
+    }
+
+    /**
+     * Reads all rows of a messages query and closes the {@code ResultSet}.
+     *
+     * @param rs the {@code ResultSet} of a query on the messages table
+     * @return the messages in an {@code ArrayList<ChatMessage>}
+     * @throws SQLException if a database access error occurs
+     */
+    static ArrayList<ChatMessage> readMessages(ResultSet rs) throws SQLException {
+        ArrayList<ChatMessage> messages = new ArrayList<>();
+        while (rs.next()) {
+            ChatMessage message = new ChatMessage();
+            message.setId(rs.getLong("id"));
+            message.setNick(rs.getString("user"));
+            // SQLite returns the UTF-8 bytes of the text as they are stored.
+            message.setMessageBytes(rs.getBytes("message"));
+            message.setSent(rs.getLong("sent"));
+            message.setChannel(rs.getString("channel"));
+            messages.add(message);
+        }
+        rs.close();
+        return messages;
+    }
+
+}
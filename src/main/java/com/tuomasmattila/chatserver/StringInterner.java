@@ -0,0 +1,38 @@
+package com.tuomasmattila.chatserver;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps one shared instance of each user and channel name, so that the
+ * messages in memory refer to the same {@code String} instead of each holding
+ * a copy. There are few distinct names compared to messages, so the table is
+ * small, but the names come from clients and the table is bounded: when it is
+ * full, new names are used as they are.
+ */
+public class StringInterner {
+
+    private static final int MAX_SIZE = 100000;
+    private static final ConcurrentHashMap<String, String> names = new ConcurrentHashMap<>();
+
+    private StringInterner() {
+    }
+
+    /**
+     * Returns the shared instance of a name.
+     *
+     * @param name the name
+     * @return a {@code String} equal to {@code name}
+     */
+    public static String intern(String name) {
+        String shared = names.get(name);
+        if (shared != null) {
+            return shared;
+        }
+        if (names.size() >= MAX_SIZE) {
+            return name;
+        }
+        shared = names.putIfAbsent(name, name);
+        return shared == null ? name : shared;
+    }
+
+}
@@ -0,0 +1,37 @@
+package com.tuomasmattila.chatserver;
+
+import com.sun.net.httpserver.Authenticator;
+import com.sun.net.httpserver.HttpExchange;
+
+/**
+ * Records how long an {@code Authenticator} takes to check a request, in the
+ * metric chatserver_auth_duration_seconds.
+ */
+public class TimedAuthenticator extends Authenticator {
+
+    private final Authenticator authenticator;
+    private final LatencyHistogram latency;
+
+    /**
+     * Measures an authenticator.
+     *
+     * @param name the name of the authenticator in the metrics
+     * @param authenticator the authenticator that checks the requests
+     */
+    TimedAuthenticator(String name, Authenticator authenticator) {
+        this.authenticator = authenticator;
+        this.latency = Metrics.getInstance().timer("chatserver_auth_duration_seconds",
+                "Time to authenticate a request.", "authenticator=\"" + name + "\"");
+    }
+
+    @Override
+    public Authenticator.Result authenticate(HttpExchange exchange) {
+        long start = System.nanoTime();
+        try {
+            return authenticator.authenticate(exchange);
+        } finally {
+            latency.recordSince(start);
+        }
+    }
+
+}
@@ -0,0 +1,54 @@
+package com.tuomasmattila.chatserver;
+
+import com.sun.net.httpserver.Authenticator;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpPrincipal;
+
+/**
+ * {@code TokenAuthenticator} authenticates requests that carry a session token
+ * in an {@code Authorization: Bearer <token>} header. Tokens are checked with
+ * {@code TokenManager} without any database access. Requests without a bearer
+ * token are passed on to the Basic authentication fallback.
+ */
+public class TokenAuthenticator extends Authenticator {
+
+    private static final String BEARER_PREFIX = "Bearer ";
+
+    private final TokenManager tokenManager;
+    private final ChatAuthenticator basicAuthenticator;
+
+    /**
+     * Creates an authenticator that accepts session tokens and falls back to
+     * Basic authentication.
+     *
+     * @param tokenManager the {@code TokenManager} that verifies the tokens
+     * @param basicAuthenticator the {@code ChatAuthenticator} used for requests
+     * without a bearer token
+     */
+    public TokenAuthenticator(TokenManager tokenManager, ChatAuthenticator basicAuthenticator) {
+        this.tokenManager = tokenManager;
+        this.basicAuthenticator = basicAuthenticator;
+    }
+
+    /**
+     * Authenticates a request with its bearer token, or with Basic authentication
+     * if the request has no bearer token.
+     *
+     * @param exchange the {@code HttpExchange} containing the request from the client
+     * @return the result of the authentication
+     */
+    @Override
+    public Authenticator.Result authenticate(HttpExchange exchange) {
+        String authorization = exchange.getRequestHeaders().getFirst("Authorization");
+        if (authorization == null || !authorization.regionMatches(true, 0, BEARER_PREFIX, 0, BEARER_PREFIX.length())) {
+            return basicAuthenticator.authenticate(exchange);
+        }
+        String username = tokenManager.verifyToken(authorization.substring(BEARER_PREFIX.length()).trim());
+        if (username == null) {
+            exchange.getResponseHeaders().set("WWW-Authenticate", "Bearer realm=\"" + basicAuthenticator.getRealm() + "\", error=\"invalid_token\"");
+            return new Authenticator.Failure(401);
+        }
+        return new Authenticator.Success(new HttpPrincipal(username, basicAuthenticator.getRealm()));
+    }
+
+}
@@ -0,0 +1,153 @@
+package com.tuomasmattila.chatserver;
+
+import java.nio.charset.StandardCharsets;
+import java.security.InvalidKeyException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Base64;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Issues and verifies signed session tokens. A token has the form
+ * {@code payload.signature}, where the payload holds the username and the
+ * expiry time and the signature is a HMAC-SHA256 of the payload. Verifying
+ * a token needs no database access.
+ *
+ * The signing key is read from the system property {@code chatserver.token.secret}.
+ * If the property is not set, a random key is generated at start-up and all
+ * tokens become invalid when the server restarts.
+ */
+public class TokenManager {
+
+    private static final String HMAC_ALGORITHM = "HmacSHA256";
+    private static final Base64.Encoder encoder = Base64.getUrlEncoder().withoutPadding();
+    private static final Base64.Decoder decoder = Base64.getUrlDecoder();
+
+    private final SecretKeySpec key;
+    private final ThreadLocal<Mac> macs;
+    private final long ttlMillis;
+
+    /**
+     * Creates a token manager.
+     *
+     * @param secret the signing key as a {@code String} or {@code null} to
+     * use a random key
+     * @param ttlMillis how long issued tokens stay valid in milliseconds
+     */
+    public TokenManager(String secret, long ttlMillis) {
+        byte[] keyBytes;
+        if (secret == null || secret.isEmpty()) {
+            keyBytes = new byte[32];
+            new SecureRandom().nextBytes(keyBytes);
+        } else {
+            keyBytes = secret.getBytes(StandardCharsets.UTF_8);
+        }
+        this.key = new SecretKeySpec(keyBytes, HMAC_ALGORITHM);
+        this.macs = ThreadLocal.withInitial(this::createMac);
+        this.ttlMillis = ttlMillis;
+    }
+
+    /**
+     * An issued token together with the expiry time signed into it.
+     */
+    public static class Token {
+
+        private final String value;
+        private final long expiresAt;
+
+        Token(String value, long expiresAt) {
+            this.value = value;
+            this.expiresAt = expiresAt;
+        }
+
+        public String getValue() {
+            return value;
+        }
+
+        /**
+         * @return the expiry time of the token in Unix milliseconds
+         */
+        public long getExpiresAt() {
+            return expiresAt;
+        }
+    }
+
+    /**
+     * Issues a new token for a user.
+     *
+     * @param username the authenticated user
+     * @return the token and its expiry time
+     */
+    public Token issueToken(String username) {
+        long expiresAt = System.currentTimeMillis() + ttlMillis;
+        String payload = encoder.encodeToString((expiresAt + ":" + username).getBytes(StandardCharsets.UTF_8));
+        return new Token(payload + "." + encoder.encodeToString(sign(payload)), expiresAt);
+    }
+
+    /**
+     * Returns how long issued tokens stay valid.
+     *
+     * @return the lifetime of a token in milliseconds
+     */
+    public long getTtlMillis() {
+        return ttlMillis;
+    }
+
+    /**
+     * Verifies a token. The signature is compared in constant time.
+     *
+     * @param token the token provided by the client
+     * @return the username the token was issued to, or {@code null} if the
+     * token is malformed, has an invalid signature or has expired
+     */
+    public String verifyToken(String token) {
+        int dot = token.indexOf('.');
+        if (dot <= 0 || dot != token.lastIndexOf('.')) {
+            return null;
+        }
+        String payload = token.substring(0, dot);
+        byte[] signature;
+        byte[] payloadBytes;
+        try {
+            signature = decoder.decode(token.substring(dot + 1));
+            payloadBytes = decoder.decode(payload);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+        if (!MessageDigest.isEqual(signature, sign(payload))) {
+            return null;
+        }
+        String decoded = new String(payloadBytes, StandardCharsets.UTF_8);
+        int colon = decoded.indexOf(':');
+        if (colon <= 0) {
+            return null;
+        }
+        try {
+            long expiresAt = Long.parseLong(decoded.substring(0, colon));
+            if (expiresAt <= System.currentTimeMillis()) {
+                return null;
+            }
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        return decoded.substring(colon + 1);
+    }
+
+    private byte[] sign(String payload) {
+        return macs.get().doFinal(payload.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    private Mac createMac() {
+        try {
+            Mac mac = Mac.getInstance(HMAC_ALGORITHM);
+            mac.init(key);
+            return mac;
+        } catch (NoSuchAlgorithmException | InvalidKeyException e) {
+            throw new IllegalStateException("Could not initialize token signing: " + e.getMessage(), e);
+        }
+    }
+
+}
@@ -0,0 +1,156 @@
+package com.tuomasmattila.chatserver;
+
+import java.io.OutputStream;
+import java.util.List;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+
+/**
+ * The formats messages can be exchanged in. JSON is the default; clients that
+ * send or receive large numbers of messages can use CBOR instead, by sending
+ * the messages with {@code Content-Type: application/cbor} or asking for them
+ * with {@code Accept: application/cbor}.
+ */
+public enum WireFormat {
+
+    JSON("application/json", "application/json; charset=utf-8"),
+    CBOR("application/cbor", "application/cbor");
+
+    private final String mediaType;
+    private final String contentType;
+
+    WireFormat(String mediaType, String contentType) {
+        this.mediaType = mediaType;
+        this.contentType = contentType;
+    }
+
+    /**
+     * Returns the value of the {@code Content-Type} header of a response in
+     * this format.
+     *
+     * @return the content type
+     */
+    public String getContentType() {
+        return contentType;
+    }
+
+    /**
+     * Opens a reader for a request body in this format.
+     *
+     * @param exchange the {@code HttpExchange} whose request body is read
+     * @param maxSize the largest body accepted, in bytes
+     * @return the reader
+     * @throws RequestReader.BodyTooLargeException if the Content-Length of the
+     * request is larger than {@code maxSize}
+     */
+    public RequestReader openReader(HttpExchange exchange, long maxSize) throws RequestReader.BodyTooLargeException {
+        return this == CBOR ? CborRequestReader.open(exchange, maxSize) : JsonRequestReader.open(exchange, maxSize);
+    }
+
+    /**
+     * Opens an encoder that writes messages in this format.
+     *
+     * @param out the stream to write to
+     * @return the encoder
+     */
+    public MessageEncoder openEncoder(OutputStream out) {
+        return this == CBOR ? CborMessageWriter.open(out) : JsonMessageWriter.open(out);
+    }
+
+    /**
+     * Makes an entity tag specific to this format, as the representations in
+     * different formats are not the same.
+     *
+     * @param etag the entity tag of the resource
+     * @return the entity tag of the representation in this format
+     */
+    public String tag(String etag) {
+        if (this == JSON) {
+            return etag;
+        }
+        return etag.substring(0, etag.length() - 1) + "-" + name().toLowerCase() + "\"";
+    }
+
+    /**
+     * Finds the format of a request body from its {@code Content-Type}.
+     *
+     * @param contentType the value of the header, parameters included
+     * @return the format, or {@code null} if it is not supported
+     */
+    public static WireFormat fromContentType(String contentType) {
+        int parameters = contentType.indexOf(';');
+        String type = (parameters < 0 ? contentType : contentType.substring(0, parameters)).trim();
+        for (WireFormat format : values()) {
+            if (format.mediaType.equalsIgnoreCase(type)) {
+                return format;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Chooses the format of a response from the request's {@code Accept}
+     * headers. CBOR is chosen only if the client names it and prefers it to
+     * JSON; otherwise the response is JSON, as it is for clients that do not
+     * send the header.
+     *
+     * @param requestHeaders the request headers
+     * @return the format of the response
+     */
+    public static WireFormat fromAccept(Headers requestHeaders) {
+        return fromAccept(requestHeaders, JSON);
+    }
+
+    /**
+     * Chooses the format of a response like {@code fromAccept(Headers)}, but
+     * answers in the given format when the client names neither format, for
+     * example when it accepts anything or sends no {@code Accept} header.
+     *
+     * @param requestHeaders the request headers
+     * @param preferred the format used when the client has no preference,
+     * such as the format of the request body
+     * @return the format of the response
+     */
+    public static WireFormat fromAccept(Headers requestHeaders, WireFormat preferred) {
+        List<String> accept = requestHeaders.get("Accept");
+        if (accept == null) {
+            return preferred;
+        }
+        double cborQuality = -1;
+        double jsonQuality = -1;
+        double wildcardQuality = -1;
+        for (String header : accept) {
+            for (String range : header.split(",")) {
+                String[] parts = range.split(";");
+                String type = parts[0].trim();
+                double quality = 1;
+                for (int i = 1; i < parts.length; i++) {
+                    String parameter = parts[i].trim();
+                    if (parameter.startsWith("q=")) {
+                        try {
+                            quality = Double.parseDouble(parameter.substring(2));
+                        } catch (NumberFormatException e) {
+                            quality = 0;
+                        }
+                    }
+                }
+                if (type.equalsIgnoreCase(CBOR.mediaType)) {
+                    cborQuality = quality;
+                } else if (type.equalsIgnoreCase(JSON.mediaType)) {
+                    jsonQuality = quality;
+                } else if (type.equals("*/*") || type.equalsIgnoreCase("application/*")) {
+                    wildcardQuality = Math.max(wildcardQuality, quality);
+                }
+            }
+        }
+        if (cborQuality < 0 && jsonQuality < 0) {
+            return preferred;
+        }
+        if (cborQuality <= 0) {
+            return JSON;
+        }
+        return (jsonQuality >= 0 ? cborQuality > jsonQuality : cborQuality >= wildcardQuality) ? CBOR : JSON;
+    }
+
+}
@@ -0,0 +1,223 @@
+package com.tuomasmattila.chatserver;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The executor of the server: a fixed number of worker threads and a bounded
+ * queue of requests waiting for them. When the workers are busy and the queue
+ * is full, a request is not queued but run on one of a few shedding threads,
+ * where {@code OverloadFilter} answers it with 503 Service Unavailable without
+ * authenticating it or reading its body. If even the shedding threads are
+ * busy, the request is dropped: {@code execute} throws
+ * {@code RejectedExecutionException}, and the server's dispatcher thread
+ * closes the connection instead of running the request itself.
+ *
+ * With virtual threads, available from Java 21, every request gets a virtual
+ * thread of its own and there is no queue; the number of threads is then the
+ * number of requests handled at once, and the requests over it are shed.
+ * Blocked requests, such as those of slow clients, then cost little memory.
+ *
+ * A task that is not a request, such as the answer to a long-polling request,
+ * is run normally on the shedding threads when there is no room for it, and
+ * is rejected the same way when there is no room there either.
+ */
+public class WorkerPool implements Executor {
+
+    private static final int SHEDDING_THREADS = 2;
+    private static final ThreadLocal<Boolean> shedding = ThreadLocal.withInitial(() -> Boolean.FALSE);
+
+    private final ThreadPoolExecutor workers;
+    private final ThreadFactory virtualThreads;
+    private final Semaphore virtualPermits;
+    private final int threads;
+    private final ThreadPoolExecutor shedders;
+    private final int queueSize;
+    private final LongAdder completed = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+
+    /**
+     * Creates the pool. If virtual threads are asked for but the Java runtime
+     * does not have them, platform threads are used instead.
+     *
+     * @param threads the number of worker threads
+     * @param queueSize the number of requests that can wait for a worker
+     * @param virtual {@code true} to run every request on a virtual thread
+     */
+    public WorkerPool(int threads, int queueSize, boolean virtual) {
+        this.threads = threads;
+        this.queueSize = queueSize;
+        ThreadFactory virtualFactory = virtual ? virtualThreadFactory("worker") : null;
+        if (virtualFactory != null) {
+            this.virtualThreads = virtualFactory;
+            this.virtualPermits = new Semaphore(threads);
+            this.workers = null;
+        } else {
+            this.virtualThreads = null;
+            this.virtualPermits = null;
+            this.workers = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<>(queueSize), threadFactory("worker"));
+            this.workers.allowCoreThreadTimeOut(true);
+        }
+        this.shedders = new ThreadPoolExecutor(SHEDDING_THREADS, SHEDDING_THREADS, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<>(queueSize),
+                threadFactory("shedding"), (task, executor) -> {
+                    dropped.increment();
+                    throw new RejectedExecutionException("Server is overloaded.");
+                });
+        this.shedders.allowCoreThreadTimeOut(true);
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        if (virtualThreads != null) {
+            if (virtualPermits.tryAcquire()) {
+                virtualThreads.newThread(() -> {
+                    try {
+                        task.run();
+                    } finally {
+                        virtualPermits.release();
+                        completed.increment();
+                    }
+                }).start();
+                return;
+            }
+        } else {
+            try {
+                workers.execute(task);
+                return;
+            } catch (RejectedExecutionException e) {
+                if (workers.isShutdown()) {
+                    throw e;
+                }
+            }
+        }
+        rejected.increment();
+        shedders.execute(() -> {
+            shedding.set(Boolean.TRUE);
+            try {
+                task.run();
+            } finally {
+                shedding.set(Boolean.FALSE);
+            }
+        });
+    }
+
+    /**
+     * Tells whether the current thread is running a task the workers had no
+     * room for.
+     *
+     * @return {@code true} if the request being handled should be refused
+     */
+    public static boolean isShedding() {
+        return shedding.get();
+    }
+
+    /**
+     * Creates an executor for tasks that run for a long time, such as
+     * streams, and should not occupy the workers. Every task gets a thread of
+     * its own: a virtual thread if the workers are virtual, otherwise a
+     * pooled platform thread. At most {@code maxTasks} tasks run at once; a
+     * task over that is not queued, but rejected with
+     * {@code RejectedExecutionException}.
+     *
+     * @param name the prefix of the names of the threads
+     * @param maxTasks the number of tasks that can run at once
+     * @return the executor
+     */
+    public Executor newLongTaskExecutor(String name, int maxTasks) {
+        if (virtualThreads != null) {
+            ThreadFactory factory = virtualThreadFactory(name);
+            Semaphore permits = new Semaphore(maxTasks);
+            return task -> {
+                if (!permits.tryAcquire()) {
+                    throw new RejectedExecutionException("Too many " + name + " tasks.");
+                }
+                factory.newThread(() -> {
+                    try {
+                        task.run();
+                    } finally {
+                        permits.release();
+                    }
+                }).start();
+            };
+        }
+        return new ThreadPoolExecutor(0, maxTasks, 60, TimeUnit.SECONDS, new SynchronousQueue<>(), threadFactory(name));
+    }
+
+    public boolean isVirtual() {
+        return virtualThreads != null;
+    }
+
+    /**
+     * Stops the threads after the tasks already accepted have run.
+     */
+    public void shutdown() {
+        if (workers != null) {
+            workers.shutdown();
+        }
+        shedders.shutdown();
+    }
+
+    public int getActiveCount() {
+        return workers != null ? workers.getActiveCount() : threads - virtualPermits.availablePermits();
+    }
+
+    public int getQueueDepth() {
+        return workers != null ? workers.getQueue().size() : 0;
+    }
+
+    public long getRejectedCount() {
+        return rejected.sum();
+    }
+
+    public long getDroppedCount() {
+        return dropped.sum();
+    }
+
+    public String getStatsAsString() {
+        if (workers == null) {
+            return "Workers (virtual threads): active " + getActiveCount() + "/" + threads + ", completed " + completed.sum()
+                    + ", rejected " + getRejectedCount() + ", dropped " + getDroppedCount();
+        }
+        return "Workers: active " + getActiveCount() + "/" + workers.getMaximumPoolSize() + ", queued " + getQueueDepth() + "/" + queueSize
+                + ", completed " + workers.getCompletedTaskCount() + ", rejected " + getRejectedCount() + ", dropped " + getDroppedCount();
+    }
+
+    private static ThreadFactory threadFactory(String name) {
+        AtomicInteger count = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, name + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /**
+     * Creates a factory of virtual threads with
+     * {@code Thread.ofVirtual().name(name + "-", 1).factory()}. It is called
+     * reflectively, so that the server also runs on Java versions without
+     * virtual threads.
+     *
+     * @return the factory, or {@code null} if the runtime has no virtual threads
+     */
+    private static ThreadFactory virtualThreadFactory(String name) {
+        try {
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, name + "-", 1L);
+            return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            ChatServer.log("Virtual threads are not available in Java " + Runtime.version().feature() + ", using platform threads.");
+            return null;
+        }
+    }
+
+}
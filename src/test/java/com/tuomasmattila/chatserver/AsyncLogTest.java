@@ -0,0 +1,131 @@
+package com.tuomasmattila.chatserver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.tuomasmattila.chatserver.AsyncLog.Level;
+import com.tuomasmattila.chatserver.AsyncLog.LogBuffer;
+
+public class AsyncLogTest {
+
+    private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+    /**
+     * Returns the lines written so far without their time stamps.
+     */
+    private List<String> lines() {
+        List<String> lines = new ArrayList<>();
+        String text;
+        synchronized (out) {
+            text = out.toString(StandardCharsets.UTF_8);
+        }
+        for (String line : text.split("\n")) {
+            if (!line.isEmpty()) {
+                lines.add(line.substring(line.indexOf(' ') + 1));
+            }
+        }
+        return lines;
+    }
+
+    @Test
+    public void writesTheLinesInOrderWhenFlushed() {
+        LogBuffer log = new LogBuffer(Level.INFO, 16, false, out);
+        log.log(Level.INFO, "first");
+        log.log(Level.ERROR, "second");
+        assertEquals(List.of(), lines());
+        assertTrue(log.drain());
+        log.log(Level.WARN, "third");
+        assertTrue(log.drain());
+        assertFalse(log.drain());
+        assertEquals(List.of("INFO first", "ERROR second", "WARN third"), lines());
+    }
+
+    @Test
+    public void filtersByLevel() {
+        LogBuffer log = new LogBuffer(Level.WARN, 16, false, out);
+        assertFalse(log.isEnabled(Level.DEBUG));
+        assertFalse(log.isEnabled(Level.INFO));
+        assertTrue(log.isEnabled(Level.WARN));
+        assertTrue(log.isEnabled(Level.ERROR));
+        log.log(Level.DEBUG, "debug");
+        log.log(Level.INFO, "info");
+        log.log(Level.WARN, "warn");
+        log.log(Level.ERROR, "error");
+        log.drain();
+        assertEquals(List.of("WARN warn", "ERROR error"), lines());
+    }
+
+    @Test
+    public void dropsLinesWhenFullAndReportsThem() {
+        LogBuffer log = new LogBuffer(Level.INFO, 4, false, out);
+        for (int i = 0; i < 10; i++) {
+            log.log(Level.INFO, "line " + i);
+        }
+        assertEquals(6, log.getDroppedCount());
+        log.drain();
+        assertEquals(List.of("WARN 6 log lines were dropped because the log buffer was full.",
+                "INFO line 0", "INFO line 1", "INFO line 2", "INFO line 3"), lines());
+        assertEquals(0, log.getDroppedCount());
+        // The slots are free again after the drain.
+        log.log(Level.INFO, "line 10");
+        log.drain();
+        assertEquals("INFO line 10", lines().get(5));
+        assertEquals(6, lines().size());
+    }
+
+    @Test
+    public void waitsForRoomWhenConfiguredToBlock() {
+        LogBuffer log = new LogBuffer(Level.INFO, 2, true, out);
+        log.start("test-log-writer");
+        for (int i = 0; i < 1000; i++) {
+            log.log(Level.INFO, "line " + i);
+        }
+        log.drain();
+        assertEquals(0, log.getDroppedCount());
+        List<String> lines = lines();
+        assertEquals(1000, lines.size());
+        for (int i = 0; i < 1000; i++) {
+            assertEquals("INFO line " + i, lines.get(i));
+        }
+    }
+
+    @Test
+    public void keepsEveryLineOfConcurrentThreadsInTheirOrder() throws InterruptedException {
+        LogBuffer log = new LogBuffer(Level.INFO, 64, true, out);
+        log.start("test-log-writer");
+        int threads = 8;
+        int perThread = 2000;
+        List<Thread> loggers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            String name = "t" + t;
+            Thread logger = new Thread(() -> {
+                for (int i = 0; i < perThread; i++) {
+                    log.log(Level.INFO, name + " " + i);
+                }
+            });
+            loggers.add(logger);
+            logger.start();
+        }
+        for (Thread logger : loggers) {
+            logger.join();
+        }
+        log.drain();
+        int[] next = new int[threads];
+        List<String> lines = lines();
+        assertEquals(threads * perThread, lines.size());
+        for (String line : lines) {
+            String[] parts = line.split(" ");
+            int thread = Integer.parseInt(parts[1].substring(1));
+            assertEquals(next[thread]++, Integer.parseInt(parts[2]));
+        }
+    }
+
+}
@@ -0,0 +1,227 @@
+package com.tuomasmattila.chatserver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import org.json.JSONException;
+import org.junit.Test;
+
+public class CborRequestReaderTest {
+
+    private static final byte[][] FIELDS = RequestReader.fields("user", "message", "sent");
+    private static final int USER = 0;
+    private static final int MESSAGE = 1;
+    private static final int SENT = 2;
+
+    /**
+     * Builds CBOR data item by item.
+     */
+    private static class Cbor {
+
+        private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        Cbor head(int major, long argument) {
+            if (argument < 24) {
+                out.write(major << 5 | (int) argument);
+            } else if (argument < 0x100) {
+                out.write(major << 5 | 24);
+                out.write((int) argument);
+            } else if (argument < 0x10000) {
+                out.write(major << 5 | 25);
+                out.write((int) (argument >> 8));
+                out.write((int) argument);
+            } else {
+                out.write(major << 5 | 27);
+                for (int shift = 56; shift >= 0; shift -= 8) {
+                    out.write((int) (argument >> shift));
+                }
+            }
+            return this;
+        }
+
+        Cbor text(String text) {
+            return bytes(3, text.getBytes(StandardCharsets.UTF_8));
+        }
+
+        Cbor bytes(int major, byte[] bytes) {
+            head(major, bytes.length);
+            out.write(bytes, 0, bytes.length);
+            return this;
+        }
+
+        Cbor raw(int... bytes) {
+            for (int b : bytes) {
+                out.write(b);
+            }
+            return this;
+        }
+
+        byte[] toBytes() {
+            return out.toByteArray();
+        }
+    }
+
+    private static CborRequestReader open(byte[] body, long maxSize) throws IOException {
+        return CborRequestReader.open(new TestExchange("POST", "/chat", body), maxSize);
+    }
+
+    private static CborRequestReader open(Cbor body) throws IOException {
+        return open(body.toBytes(), 1 << 20);
+    }
+
+    @Test
+    public void readsTheKeptFieldsAndSkipsTheRest() throws IOException {
+        Cbor body = new Cbor().head(5, 4)
+                .text("user").text("alice")
+                .text("extra").head(4, 3).head(0, 1000).head(1, 5).raw(0xf5)
+                .text("message").text("hi")
+                .text("sent").head(0, 1639473467123L);
+        try (CborRequestReader reader = open(body)) {
+            assertFalse(reader.isArrayNext());
+            assertTrue(reader.readObject(FIELDS));
+            reader.endDocument();
+            assertEquals("alice", reader.getString(USER));
+            assertEquals("hi", reader.getString(MESSAGE));
+            assertEquals(1639473467123L, reader.getTime(SENT));
+        }
+    }
+
+    @Test
+    public void readsTimesInSecondsWithTagOneAndAsStrings() throws IOException {
+        try (CborRequestReader reader = open(new Cbor().head(5, 1).text("sent").head(6, 1).head(0, 1639473467L))) {
+            assertTrue(reader.readObject(FIELDS));
+            assertEquals(1639473467000L, reader.getTime(SENT));
+        }
+        try (CborRequestReader reader = open(new Cbor().head(5, 1).text("sent").text("2021-12-14T09:17:47.123Z"))) {
+            assertTrue(reader.readObject(FIELDS));
+            assertEquals(1639473467123L, reader.getTime(SENT));
+        }
+    }
+
+    @Test
+    public void readsArraysOfDefiniteAndIndefiniteLength() throws IOException {
+        Cbor element = new Cbor().head(5, 1).text("message").text("a");
+        byte[] one = element.toBytes();
+        Cbor definite = new Cbor().head(4, 2);
+        definite.out.write(one, 0, one.length);
+        definite.head(0, 7);
+        Cbor indefinite = new Cbor().raw(0x9f);
+        indefinite.out.write(one, 0, one.length);
+        indefinite.raw(0xff);
+        for (Cbor body : new Cbor[] {definite, indefinite}) {
+            try (CborRequestReader reader = open(body)) {
+                assertTrue(reader.isArrayNext());
+                reader.beginArray();
+                assertTrue(reader.hasNext());
+                assertTrue(reader.readObject(FIELDS));
+                assertEquals("a", reader.getString(MESSAGE));
+                if (body == definite) {
+                    assertTrue(reader.hasNext());
+                    assertFalse(reader.readObject(FIELDS));
+                }
+                assertFalse(reader.hasNext());
+                reader.endDocument();
+            }
+        }
+    }
+
+    @Test
+    public void readsIndefiniteMapsAndTextStrings() throws IOException {
+        Cbor body = new Cbor().raw(0xbf).text("message").raw(0x7f).text("he").text("llo").raw(0xff).raw(0xff);
+        try (CborRequestReader reader = open(body)) {
+            assertTrue(reader.readObject(FIELDS));
+            reader.endDocument();
+            assertEquals("hello", reader.getString(MESSAGE));
+        }
+    }
+
+    @Test
+    public void replacesInvalidUtf8() throws IOException {
+        byte[] invalid = {'a', (byte) 0xff, 'b', (byte) 0xc3};
+        try (CborRequestReader reader = open(new Cbor().head(5, 1).text("message").bytes(3, invalid))) {
+            assertTrue(reader.readObject(FIELDS));
+            assertEquals(new String(invalid, StandardCharsets.UTF_8), reader.getString(MESSAGE));
+        }
+    }
+
+    @Test
+    public void reportsFieldsOfTheWrongType() throws IOException {
+        try (CborRequestReader reader = open(new Cbor().head(5, 1).text("user").bytes(2, new byte[] {1, 2}))) {
+            assertTrue(reader.readObject(FIELDS));
+            reader.getString(USER);
+            fail("A byte string was read as text.");
+        } catch (JSONException e) {
+            assertEquals("JSONObject[\"user\"] is not a string.", e.getMessage());
+        }
+    }
+
+    @Test
+    public void rejectsTruncatedAndInvalidData() throws IOException {
+        Cbor[] bodies = {
+            new Cbor().head(5, 2).text("message").text("a"),
+            new Cbor().head(5, 1).text("message").raw(0x65, 'a', 'b'),
+            new Cbor().head(5, 1).text("extra").raw(0x1c),
+            new Cbor().head(5, 1).text("message").raw(0x7f).head(2, 1).raw(0, 0xff),
+            new Cbor().head(5, 1).text("message").text("a").raw(0x00),
+        };
+        for (Cbor body : bodies) {
+            try (CborRequestReader reader = open(body)) {
+                reader.readObject(FIELDS);
+                reader.endDocument();
+                fail("Accepted invalid CBOR.");
+            } catch (JSONException e) {
+                // Expected.
+            }
+        }
+    }
+
+    @Test
+    public void limitsTheNestingDepth() throws IOException {
+        Cbor shallow = new Cbor().head(5, 2).text("extra");
+        for (int i = 0; i < 60; i++) {
+            shallow.head(4, 1);
+        }
+        shallow.head(0, 0).text("message").text("ok");
+        try (CborRequestReader reader = open(shallow)) {
+            assertTrue(reader.readObject(FIELDS));
+            assertEquals("ok", reader.getString(MESSAGE));
+        }
+        Cbor deep = new Cbor().head(5, 1).text("extra");
+        for (int i = 0; i < 100000; i++) {
+            deep.head(4, 1);
+        }
+        deep.head(0, 0);
+        try (CborRequestReader reader = open(deep)) {
+            reader.readObject(FIELDS);
+            fail("Accepted deeply nested CBOR.");
+        } catch (JSONException e) {
+            assertTrue(e.getMessage().startsWith("Nesting too deep"));
+        }
+    }
+
+    @Test
+    public void rejectsABodyThatGrowsTooLarge() throws IOException {
+        byte[] body = new Cbor().head(5, 1).text("message").text("x".repeat(20000)).toBytes();
+        try (CborRequestReader reader = open(body, 10000)) {
+            reader.readObject(FIELDS);
+            fail("Read a body over the limit.");
+        } catch (RequestReader.BodyTooLargeException e) {
+            // Expected.
+        }
+        TestExchange exchange = new TestExchange("POST", "/chat", body);
+        exchange.getRequestHeaders().set("Content-Length", Integer.toString(body.length));
+        try {
+            CborRequestReader.open(exchange, 10000);
+            fail("Accepted a Content-Length over the limit.");
+        } catch (RequestReader.BodyTooLargeException e) {
+            // Expected.
+        }
+    }
+
+}
@@ -0,0 +1,119 @@
+package com.tuomasmattila.chatserver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.sql.SQLException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ConnectionPoolTest {
+
+    private File file;
+    private ConnectionPool pool;
+
+    @Before
+    public void open() throws Exception {
+        file = File.createTempFile("pool", ".db");
+        pool = new ConnectionPool(file.getPath(), 2, 100);
+    }
+
+    @After
+    public void close() throws SQLException {
+        pool.close();
+        new File(file.getPath() + "-wal").delete();
+        new File(file.getPath() + "-shm").delete();
+        file.delete();
+    }
+
+    @Test
+    public void closingAReaderTwiceReturnsItOnce() throws SQLException {
+        PooledConnection reader = pool.getReader();
+        reader.close();
+        reader.close();
+        assertEquals(0, pool.getReadersInUse());
+        PooledConnection first = pool.getReader();
+        PooledConnection second = pool.getReader();
+        assertEquals(2, pool.getReadersInUse());
+        first.close();
+        second.close();
+    }
+
+    @Test
+    public void closingTheWriterTwiceUnlocksItOnce() throws Exception {
+        PooledConnection writer = pool.getWriter();
+        writer.close();
+        writer.close();
+        PooledConnection again = pool.getWriter();
+        assertSame(writer.getConnection(), again.getConnection());
+        // A stale close of the first borrow does not release the second.
+        writer.close();
+        assertFalse(writerAvailableToAnotherThread());
+        again.close();
+        assertTrue(writerAvailableToAnotherThread());
+    }
+
+    @Test
+    public void nestedWriterBorrowsAreReleasedInTurn() throws Exception {
+        try (PooledConnection outer = pool.getWriter()) {
+            try (PooledConnection inner = pool.getWriter()) {
+                assertSame(outer.getConnection(), inner.getConnection());
+            }
+            assertFalse(writerAvailableToAnotherThread());
+        }
+        assertTrue(writerAvailableToAnotherThread());
+    }
+
+    @Test
+    public void aStaleCloseDoesNotReturnAReaderBorrowedAgain() throws Exception {
+        pool.close();
+        pool = new ConnectionPool(file.getPath(), 1, 100);
+        PooledConnection first = pool.getReader();
+        first.close();
+        AtomicReference<PooledConnection> second = new AtomicReference<>();
+        Thread other = new Thread(() -> {
+            try {
+                second.set(pool.getReader());
+            } catch (SQLException e) {
+                // Checked below.
+            }
+        });
+        other.start();
+        other.join();
+        assertSame(first.getConnection(), second.get().getConnection());
+        first.close();
+        assertEquals(1, pool.getReadersInUse());
+        try {
+            pool.getReader();
+            fail("The reader was handed out twice.");
+        } catch (SQLException e) {
+            // Expected: the only reader is still borrowed.
+        }
+        second.get().close();
+        assertEquals(0, pool.getReadersInUse());
+    }
+
+    private boolean writerAvailableToAnotherThread() throws InterruptedException {
+        AtomicBoolean available = new AtomicBoolean();
+        Thread other = new Thread(() -> {
+            try {
+                pool.getWriter().close();
+                available.set(true);
+            } catch (SQLException e) {
+                available.set(false);
+            }
+        });
+        other.start();
+        other.join();
+        return available.get();
+    }
+
+}
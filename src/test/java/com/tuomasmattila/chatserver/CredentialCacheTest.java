@@ -0,0 +1,58 @@
+package com.tuomasmattila.chatserver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class CredentialCacheTest {
+
+    @Test
+    public void containsOnlyTheCachedPassword() {
+        CredentialCache cache = new CredentialCache(10, 60000);
+        cache.put("alice", "secret");
+        assertTrue(cache.contains("alice", "secret"));
+        assertFalse(cache.contains("alice", "wrong"));
+        assertFalse(cache.contains("bob", "secret"));
+    }
+
+    @Test
+    public void usernameAndPasswordDoNotRunTogether() {
+        CredentialCache cache = new CredentialCache(10, 60000);
+        cache.put("ab", "c");
+        assertFalse(cache.contains("a", "bc"));
+    }
+
+    @Test
+    public void expiredEntriesAreMisses() throws InterruptedException {
+        CredentialCache cache = new CredentialCache(10, 1);
+        cache.put("alice", "secret");
+        Thread.sleep(5);
+        assertFalse(cache.contains("alice", "secret"));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void invalidateRemovesEveryPasswordOfTheUser() {
+        CredentialCache cache = new CredentialCache(10, 60000);
+        cache.put("alice", "old");
+        cache.put("alice", "new");
+        cache.put("bob", "secret");
+        cache.invalidate("alice");
+        assertFalse(cache.contains("alice", "old"));
+        assertFalse(cache.contains("alice", "new"));
+        assertTrue(cache.contains("bob", "secret"));
+    }
+
+    @Test
+    public void sizeStaysBounded() {
+        CredentialCache cache = new CredentialCache(100, 60000);
+        for (int i = 0; i < 1000; i++) {
+            cache.put("user" + i, "password");
+        }
+        assertTrue(cache.size() <= 100);
+        assertTrue(cache.getEvictions() >= 900);
+    }
+
+}
@@ -0,0 +1,51 @@
+package com.tuomasmattila.chatserver;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import com.sun.net.httpserver.Headers;
+
+public class ETagsTest {
+
+    private static boolean matches(String etag, String... ifNoneMatch) {
+        Headers headers = new Headers();
+        for (String value : ifNoneMatch) {
+            headers.add("If-None-Match", value);
+        }
+        return ETags.ifNoneMatch(headers, etag);
+    }
+
+    @Test
+    public void noHeaderDoesNotMatch() {
+        assertFalse(matches("\"abc\""));
+    }
+
+    @Test
+    public void matchesTheSameTag() {
+        assertTrue(matches("\"abc\"", "\"abc\""));
+        assertFalse(matches("\"abc\"", "\"abd\""));
+        assertFalse(matches("\"abc\"", "abc"));
+    }
+
+    @Test
+    public void comparesWeakly() {
+        assertTrue(matches("W/\"abc\"", "\"abc\""));
+        assertTrue(matches("\"abc\"", "W/\"abc\""));
+        assertTrue(matches("W/\"abc\"", "W/\"abc\""));
+    }
+
+    @Test
+    public void matchesAnyTagInTheList() {
+        assertTrue(matches("\"b\"", "\"a\", \"b\" ,\"c\""));
+        assertTrue(matches("\"c\"", "\"a\"", "\"c\""));
+        assertFalse(matches("\"d\"", "\"a\", \"b\""));
+    }
+
+    @Test
+    public void starMatchesEverything() {
+        assertTrue(matches("\"abc\"", "*"));
+    }
+
+}
@@ -0,0 +1,110 @@
+package com.tuomasmattila.chatserver;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.util.List;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Test;
+
+public class JsonMessageWriterTest {
+
+    private static ChatMessage message(long id, long sent, String nick, String text, String channel) {
+        ChatMessage message = new ChatMessage();
+        message.setId(id);
+        message.setSent(sent);
+        message.setNick(nick);
+        message.setMessage(text);
+        message.setChannel(channel);
+        return message;
+    }
+
+    private static String write(List<ChatMessage> messages) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (JsonMessageWriter writer = JsonMessageWriter.open(out)) {
+            writer.writeArray(messages);
+        }
+        return out.toString(StandardCharsets.UTF_8);
+    }
+
+    private static String expected(List<ChatMessage> messages) {
+        JSONArray array = new JSONArray();
+        for (ChatMessage message : messages) {
+            JSONObject object = new JSONObject();
+            object.put("id", message.getId());
+            object.put("sent", message.getSent());
+            object.put("user", message.getNick());
+            object.put("message", message.getMessage());
+            object.put("channel", message.getChannel());
+            array.put(object);
+        }
+        return array.toString();
+    }
+
+    private static void assertSameAsJsonObject(String text) throws IOException {
+        List<ChatMessage> messages = List.of(message(42, 1639473467123L, text, text, text));
+        assertEquals(expected(messages), write(messages));
+    }
+
+    @Test
+    public void writesTheSameJsonAsJsonObject() throws IOException {
+        List<ChatMessage> messages = List.of(
+                message(1, 1639473467123L, "alice", "hello", "default"),
+                message(2, 1639473480000L, "bob", "hi", "default"));
+        assertEquals("[{\"channel\":\"default\",\"id\":1,\"message\":\"hello\",\"sent\":\"2021-12-14T09:17:47.123Z\",\"user\":\"alice\"},"
+                + "{\"channel\":\"default\",\"id\":2,\"message\":\"hi\",\"sent\":\"2021-12-14T09:18Z\",\"user\":\"bob\"}]", write(messages));
+        assertEquals(expected(messages), write(messages));
+        assertEquals("[]", write(List.of()));
+    }
+
+    @Test
+    public void escapesAsJsonObjectDoes() throws IOException {
+        assertSameAsJsonObject("quote \" backslash \\ slash / tag </script>");
+        assertSameAsJsonObject("controls \n \r \t \b \f \u0000 \u001f \u007f");
+        assertSameAsJsonObject("latin-1 \u0080 \u009f   ä ÿ");
+        assertSameAsJsonObject("punctuation ῿       € ⃿ ℀");
+        assertSameAsJsonObject("astral 😀 cjk 中");
+        assertSameAsJsonObject("<<//<");
+    }
+
+    @Test
+    public void writesTimestampsAsOffsetDateTime() throws IOException {
+        long[] times = {0, 1000, 60000, 1639473467123L, 1639473467100L, 1639473467000L, 1639473420000L,
+                951782400000L, 4102444799999L, -1, -86400000L * 365 * 2000, 253402300800000L};
+        for (long time : times) {
+            List<ChatMessage> messages = List.of(message(1, time, "a", "b", "c"));
+            String json = write(messages);
+            String sent = OffsetDateTime.ofInstant(Instant.ofEpochMilli(time), ZoneOffset.UTC).toString();
+            assertEquals(sent, new JSONArray(json).getJSONObject(0).getString("sent"));
+            assertEquals(expected(messages), json);
+        }
+    }
+
+    @Test
+    public void writesMoreThanOneBuffer() throws IOException {
+        String text = "x".repeat(20000) + " " + "y".repeat(10000);
+        assertSameAsJsonObject(text);
+    }
+
+    @Test
+    public void writesBatchStatusesAsJsonObjectDid() throws IOException {
+        List<MessageStatus> statuses = List.of(MessageStatus.stored(7341319103918080L),
+                MessageStatus.error(400, "Error: </b> is \"not\" valid \u2028."));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (JsonMessageWriter writer = JsonMessageWriter.open(out)) {
+            writer.writeStatuses(statuses);
+        }
+        JSONArray expected = new JSONArray();
+        expected.put(new JSONObject().put("status", 200).put("id", 7341319103918080L));
+        expected.put(new JSONObject().put("status", 400).put("error", "Error: </b> is \"not\" valid \u2028."));
+        assertEquals(expected.toString(), out.toString(StandardCharsets.UTF_8));
+    }
+
+}
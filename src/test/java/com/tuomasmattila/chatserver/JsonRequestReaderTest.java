@@ -0,0 +1,166 @@
+package com.tuomasmattila.chatserver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.json.JSONException;
+import org.junit.Test;
+
+public class JsonRequestReaderTest {
+
+    private static final byte[][] FIELDS = RequestReader.fields("user", "message", "sent");
+    private static final int USER = 0;
+    private static final int MESSAGE = 1;
+    private static final int SENT = 2;
+
+    private static JsonRequestReader open(byte[] body, long maxSize) throws IOException {
+        return JsonRequestReader.open(new TestExchange("POST", "/chat", body), maxSize);
+    }
+
+    private static JsonRequestReader open(String body) throws IOException {
+        return open(body.getBytes(StandardCharsets.UTF_8), 1 << 20);
+    }
+
+    private static String message(String body) throws IOException {
+        try (JsonRequestReader reader = open(body)) {
+            assertTrue(reader.readObject(FIELDS));
+            reader.endDocument();
+            return reader.getString(MESSAGE);
+        }
+    }
+
+    @Test
+    public void readsTheKeptFieldsAndSkipsTheRest() throws IOException {
+        try (JsonRequestReader reader = open("{\"user\":\"alice\",\"extra\":{\"a\":[1,2.5e3,true,null]},\"message\":\"hi\",\"sent\":\"2021-12-14T09:17:47.123Z\"}")) {
+            assertFalse(reader.isArrayNext());
+            assertTrue(reader.readObject(FIELDS));
+            reader.endDocument();
+            assertEquals("alice", reader.getString(USER));
+            assertEquals("hi", reader.getString(MESSAGE));
+            assertEquals(1639473467123L, reader.getTime(SENT));
+        }
+    }
+
+    @Test
+    public void readsArraysOfObjects() throws IOException {
+        List<String> messages = new ArrayList<>();
+        try (JsonRequestReader reader = open(" [ {\"message\":\"a\"} , 5, {\"message\":\"b\"} ] ")) {
+            assertTrue(reader.isArrayNext());
+            reader.beginArray();
+            while (reader.hasNext()) {
+                messages.add(reader.readObject(FIELDS) ? reader.getString(MESSAGE) : null);
+            }
+            reader.endDocument();
+        }
+        List<String> expected = new ArrayList<>();
+        expected.add("a");
+        expected.add(null);
+        expected.add("b");
+        assertEquals(expected, messages);
+    }
+
+    @Test
+    public void decodesEscapes() throws IOException {
+        assertEquals("\" \\ / \b \f \n \r \t", message("{\"message\":\"\\\" \\\\ \\/ \\b \\f \\n \\r \\t\"}"));
+        assertEquals("ä € 😀", message("{\"message\":\"\\u00e4 \\u20AC \\ud83d\\ude00\"}"));
+        assertEquals("ä € 😀", message("{\"message\":\"ä € 😀\"}"));
+    }
+
+    @Test
+    public void rejectsInvalidEscapes() throws IOException {
+        for (String body : new String[] {"{\"message\":\"\\x\"}", "{\"message\":\"\\u12\"}", "{\"message\":\"\\u12g4\"}"}) {
+            try {
+                message(body);
+                fail("Accepted " + body);
+            } catch (JSONException e) {
+                // Expected.
+            }
+        }
+    }
+
+    @Test
+    public void replacesInvalidUtf8() throws IOException {
+        byte[] body = {'{', '"', 'm', 'e', 's', 's', 'a', 'g', 'e', '"', ':', '"', 'a', (byte) 0xff, 'b', (byte) 0xc3, '"', '}'};
+        try (JsonRequestReader reader = open(body, 1 << 20)) {
+            assertTrue(reader.readObject(FIELDS));
+            assertEquals(new String(new byte[] {'a', (byte) 0xff, 'b', (byte) 0xc3}, StandardCharsets.UTF_8), reader.getString(MESSAGE));
+        }
+    }
+
+    @Test
+    public void reportsMissingFieldsAndWrongTypes() throws IOException {
+        try (JsonRequestReader reader = open("{\"user\":5}")) {
+            assertTrue(reader.readObject(FIELDS));
+            assertTrue(reader.has(USER));
+            assertFalse(reader.has(MESSAGE));
+            try {
+                reader.getString(USER);
+                fail("A number was read as a string.");
+            } catch (JSONException e) {
+                assertEquals("JSONObject[\"user\"] is not a string.", e.getMessage());
+            }
+            try {
+                reader.getString(MESSAGE);
+                fail("A missing field was read.");
+            } catch (JSONException e) {
+                assertEquals("JSONObject[\"message\"] not found.", e.getMessage());
+            }
+        }
+    }
+
+    @Test
+    public void rejectsSyntaxErrors() throws IOException {
+        for (String body : new String[] {"{\"message\" \"a\"}", "{\"message\":\"a\"", "{\"message\":\"a\"} x", "{message:\"a\"}", "{\"a\":tru}", "{\"message\":\"a\nb\"}"}) {
+            try (JsonRequestReader reader = open(body)) {
+                reader.readObject(FIELDS);
+                reader.endDocument();
+                fail("Accepted " + body);
+            } catch (JSONException e) {
+                // Expected.
+            }
+        }
+    }
+
+    @Test
+    public void limitsTheNestingDepth() throws IOException {
+        String shallow = "{\"extra\":" + "[".repeat(60) + "]".repeat(60) + ",\"message\":\"ok\"}";
+        assertEquals("ok", message(shallow));
+        String deep = "{\"extra\":" + "[".repeat(100000) + "]".repeat(100000) + "}";
+        try {
+            message(deep);
+            fail("Accepted a deeply nested body.");
+        } catch (JSONException e) {
+            assertTrue(e.getMessage().startsWith("Nesting too deep"));
+        }
+    }
+
+    @Test(expected = RequestReader.BodyTooLargeException.class)
+    public void rejectsATooLargeContentLength() throws IOException {
+        TestExchange exchange = new TestExchange("POST", "/chat", new byte[0]);
+        exchange.getRequestHeaders().set("Content-Length", "2000");
+        JsonRequestReader.open(exchange, 1000);
+    }
+
+    @Test
+    public void rejectsABodyThatGrowsTooLarge() throws IOException {
+        byte[] body = ("{\"message\":\"" + "x".repeat(20000) + "\"}").getBytes(StandardCharsets.UTF_8);
+        try (JsonRequestReader reader = open(body, 10000)) {
+            reader.readObject(FIELDS);
+            fail("Read a body over the limit.");
+        } catch (RequestReader.BodyTooLargeException e) {
+            // Expected.
+        }
+        try (JsonRequestReader reader = open(body, body.length)) {
+            assertTrue(reader.readObject(FIELDS));
+            assertEquals(20000, reader.getString(MESSAGE).length());
+        }
+    }
+
+}
@@ -0,0 +1,77 @@
+package com.tuomasmattila.chatserver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void countsShortDurationsExactly() {
+        for (long micros = 0; micros < 32; micros++) {
+            int bucket = LatencyHistogram.bucketOf(micros);
+            assertEquals(micros, LatencyHistogram.highestValueOf(bucket));
+        }
+    }
+
+    @Test
+    public void bucketsCoverEveryValueWithoutGaps() {
+        long expectedLowest = 0;
+        for (int bucket = 0; LatencyHistogram.highestValueOf(bucket) < (1L << 32) - 1; bucket++) {
+            long highest = LatencyHistogram.highestValueOf(bucket);
+            assertEquals(bucket, LatencyHistogram.bucketOf(expectedLowest));
+            assertEquals(bucket, LatencyHistogram.bucketOf(highest));
+            assertEquals(bucket + 1, LatencyHistogram.bucketOf(highest + 1));
+            expectedLowest = highest + 1;
+        }
+    }
+
+    @Test
+    public void keepsThePrecision() {
+        for (long micros = 16; micros < (1L << 32); micros = micros * 3 / 2 + 7) {
+            long highest = LatencyHistogram.highestValueOf(LatencyHistogram.bucketOf(micros));
+            assertTrue(highest >= micros);
+            assertTrue((double) (highest - micros) / micros < 1.0 / 16);
+        }
+    }
+
+    @Test
+    public void putsVeryLongDurationsInTheLastBucket() {
+        int last = LatencyHistogram.bucketOf((1L << 32) - 1);
+        assertEquals((1L << 32) - 1, LatencyHistogram.highestValueOf(last));
+        assertEquals(last, LatencyHistogram.bucketOf(1L << 32));
+        assertEquals(last, LatencyHistogram.bucketOf(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void powersOfTwoAreBucketEdges() {
+        for (int power = 4; power < 32; power++) {
+            long edge = 1L << power;
+            assertEquals(edge - 1, LatencyHistogram.highestValueOf(LatencyHistogram.bucketOf(edge - 1)));
+        }
+    }
+
+    @Test
+    public void countsTheDurationsBelowABound() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(TimeUnit.MICROSECONDS.toNanos(10));
+        histogram.record(TimeUnit.MICROSECONDS.toNanos(63));
+        histogram.record(TimeUnit.MICROSECONDS.toNanos(64));
+        histogram.record(TimeUnit.MILLISECONDS.toNanos(5));
+        histogram.record(TimeUnit.HOURS.toNanos(5));
+        histogram.record(-1);
+        long[] snapshot = histogram.snapshot();
+        assertEquals(0, LatencyHistogram.countBelow(snapshot, 0));
+        assertEquals(1, LatencyHistogram.countBelow(snapshot, 1));
+        assertEquals(3, LatencyHistogram.countBelow(snapshot, 64));
+        assertEquals(4, LatencyHistogram.countBelow(snapshot, 128));
+        assertEquals(5, LatencyHistogram.countBelow(snapshot, 8192));
+        assertEquals(5, LatencyHistogram.countBelow(snapshot, 1L << 31));
+        assertEquals(6, LatencyHistogram.countBelow(snapshot, Long.MAX_VALUE));
+        assertEquals(10 + 63 + 64 + 5000 + TimeUnit.HOURS.toMicros(5), LatencyHistogram.sumOf(snapshot));
+    }
+
+}
@@ -0,0 +1,144 @@
+package com.tuomasmattila.chatserver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class LogMessageStoreTest {
+
+    private Path directory;
+
+    @Before
+    public void createDirectory() throws IOException {
+        directory = Files.createTempDirectory("log");
+    }
+
+    @After
+    public void deleteDirectory() throws IOException {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            for (Path path : paths.sorted(Comparator.reverseOrder()).collect(Collectors.toList())) {
+                Files.delete(path);
+            }
+        }
+    }
+
+    private static ChatMessage message(long id, String channel, String text) {
+        ChatMessage message = new ChatMessage();
+        message.setId(id);
+        message.setSent(1000 + id);
+        message.setNick("alice");
+        message.setMessage(text);
+        message.setChannel(channel);
+        return message;
+    }
+
+    private static void append(LogMessageStore store, String channel, long firstId, int count) throws SQLException {
+        List<ChatMessage> messages = new ArrayList<>();
+        for (long id = firstId; id < firstId + count; id++) {
+            messages.add(message(id, channel, "message " + id));
+        }
+        store.append(messages);
+    }
+
+    private static List<Long> ids(List<ChatMessage> messages) {
+        return messages.stream().map(ChatMessage::getId).collect(Collectors.toList());
+    }
+
+    private List<Path> segments(String extension) throws IOException {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            return paths.filter(path -> path.toString().endsWith(extension)).sorted().collect(Collectors.toList());
+        }
+    }
+
+    @Test
+    public void readsBackWhatWasAppended() throws Exception {
+        LogMessageStore store = new LogMessageStore(directory, 1 << 20);
+        append(store, "main", 1, 10);
+        append(store, "other", 11, 5);
+        assertEquals(List.of(8L, 9L, 10L), ids(store.getLatestMessages("main", 3)));
+        assertEquals(List.of(14L, 15L), ids(store.getMessagesSince("other", 1013)));
+        assertEquals(List.of(4L, 5L), ids(store.getMessagesPage("main", 3, false, 2)));
+        assertEquals(List.of(1L, 2L), ids(store.getMessagesPage("main", 3, true, 5)));
+        assertEquals("message 5", store.getMessagesPage("main", 4, false, 1).get(0).getMessage());
+        assertEquals(15, store.getLastMessageId());
+        assertEquals(15, store.numberOfMessages());
+        store.close();
+    }
+
+    @Test
+    public void segmentsStartSmallAndGrowUpToTheSegmentSize() throws Exception {
+        int segmentSize = 256 * 1024;
+        LogMessageStore store = new LogMessageStore(directory, segmentSize);
+        append(store, "main", 1, 1);
+        assertEquals(64 * 1024, Files.size(segments(".log").get(0)));
+        for (long id = 2; id < 20000; id += 500) {
+            append(store, "main", id, 500);
+        }
+        List<Path> files = segments(".log");
+        assertTrue(files.size() > 1);
+        for (Path file : files.subList(0, files.size() - 1)) {
+            assertEquals(segmentSize, Files.size(file));
+        }
+        assertEquals(List.of(19999L, 20000L, 20001L), ids(store.getLatestMessages("main", 3)));
+        store.close();
+
+        LogMessageStore reopened = new LogMessageStore(directory, segmentSize);
+        assertEquals(20001, reopened.numberOfMessages());
+        assertEquals(List.of(100L, 101L), ids(reopened.getMessagesPage("main", 99, false, 2)));
+        reopened.close();
+    }
+
+    @Test
+    public void recoversTheTailAfterACrash() throws Exception {
+        LogMessageStore store = new LogMessageStore(directory, 1 << 20);
+        append(store, "main", 1, 100);
+        // The store is not closed, so the newest segment has no index and is scanned.
+        Path segment = segments(".log").get(0);
+        try (FileChannel file = FileChannel.open(segment, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer header = ByteBuffer.allocate(4);
+            long position = 0;
+            while (true) {
+                header.clear();
+                file.read(header, position);
+                int length = header.getInt(0);
+                if (length == 0) {
+                    break;
+                }
+                position += 8 + length;
+            }
+            // A record whose length was written but whose content was not.
+            ByteBuffer torn = ByteBuffer.allocate(12).putInt(40).putInt(12345).putInt(7);
+            file.write(torn.flip(), position);
+        }
+        assertTrue(segments(".idx").isEmpty());
+
+        LogMessageStore recovered = new LogMessageStore(directory, 1 << 20);
+        assertEquals(100, recovered.numberOfMessages());
+        assertEquals(100, recovered.getLastMessageId());
+        append(recovered, "main", 101, 1);
+        assertEquals(List.of(99L, 100L, 101L), ids(recovered.getLatestMessages("main", 3)));
+        recovered.close();
+
+        LogMessageStore reopened = new LogMessageStore(directory, 1 << 20);
+        assertEquals(101, reopened.numberOfMessages());
+        assertEquals(List.of(100L, 101L), ids(reopened.getMessagesPage("main", 99, false, 5)));
+        reopened.close();
+    }
+
+}
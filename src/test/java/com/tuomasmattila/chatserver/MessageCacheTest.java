@@ -0,0 +1,132 @@
+package com.tuomasmattila.chatserver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+public class MessageCacheTest {
+
+    private final Map<String, List<ChatMessage>> database = new HashMap<>();
+    private final AtomicInteger loads = new AtomicInteger();
+
+    private List<ChatMessage> load(String channel, int count) {
+        loads.incrementAndGet();
+        List<ChatMessage> messages = database.getOrDefault(channel, new ArrayList<>());
+        return new ArrayList<>(messages.subList(Math.max(0, messages.size() - count), messages.size()));
+    }
+
+    private ChatMessage store(String channel, long sent, String text) {
+        ChatMessage message = new ChatMessage();
+        message.setSent(sent);
+        message.setNick("alice");
+        message.setMessage(text);
+        message.setChannel(channel);
+        message.setId(sent);
+        database.computeIfAbsent(channel, name -> new ArrayList<>()).add(message);
+        return message;
+    }
+
+    private static List<String> texts(List<ChatMessage> messages) {
+        List<String> texts = new ArrayList<>();
+        for (ChatMessage message : messages) {
+            texts.add(message.getMessage());
+        }
+        return texts;
+    }
+
+    @Test
+    public void answersFromTheBufferAfterLoadingItOnce() {
+        store("main", 1, "a");
+        store("main", 2, "b");
+        MessageCache cache = new MessageCache(this::load, 10, 1 << 20);
+        assertEquals(List.of("a", "b"), texts(cache.getLatest("main", 5)));
+        cache.add(store("main", 3, "c"));
+        assertEquals(List.of("b", "c"), texts(cache.getLatest("main", 2)));
+        assertEquals(List.of("c"), texts(cache.getSince("main", 2)));
+        assertEquals(1, loads.get());
+    }
+
+    @Test
+    public void requestsPastTheCutoffFallBackToTheDatabase() {
+        for (int i = 1; i <= 5; i++) {
+            store("main", i, "m" + i);
+        }
+        MessageCache cache = new MessageCache(this::load, 3, 1 << 20);
+        assertEquals(List.of("m3", "m4", "m5"), texts(cache.getLatest("main", 3)));
+        assertNull(cache.getLatest("main", 4));
+        assertNull(cache.getSince("main", 1));
+        assertEquals(List.of("m4", "m5"), texts(cache.getSince("main", 3)));
+    }
+
+    @Test
+    public void messagesOutOfOrderAreKeptInSendingOrder() {
+        MessageCache cache = new MessageCache(this::load, 10, 1 << 20);
+        assertEquals(List.of(), cache.getLatest("main", 5));
+        cache.add(store("main", 5, "late"));
+        cache.add(store("main", 3, "early"));
+        assertEquals(List.of("early", "late"), texts(cache.getLatest("main", 5)));
+    }
+
+    @Test
+    public void evictedChannelsAreReloadedWithTheirNewMessages() {
+        store("first", 1, "a");
+        store("second", 1, "b");
+        // Room for about one channel: loading the second evicts the first.
+        MessageCache cache = new MessageCache(this::load, 10, 100);
+        cache.getLatest("first", 5);
+        cache.getLatest("second", 5);
+        cache.add(store("first", 2, "c"));
+        assertEquals(List.of("a", "c"), texts(cache.getLatest("first", 5)));
+        assertEquals(3, loads.get());
+    }
+
+    @Test
+    public void addingDoesNotWaitForASlowLoad() throws InterruptedException {
+        store("main", 1, "a");
+        store("main", 2, "b");
+        CountDownLatch loading = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        MessageCache cache = new MessageCache((channel, count) -> {
+            // The load reads the database before "c" is committed.
+            List<ChatMessage> messages = load(channel, count);
+            loading.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return messages;
+        }, 10, 1 << 20);
+        AtomicReference<List<ChatMessage>> result = new AtomicReference<>();
+        Thread reader = new Thread(() -> result.set(cache.getLatest("main", 5)));
+        reader.start();
+        try {
+            assertTrue(loading.await(5, TimeUnit.SECONDS));
+            Thread writer = new Thread(() -> cache.add(store("main", 3, "c")));
+            writer.start();
+            writer.join(5000);
+            assertFalse("add waited for the load", writer.isAlive());
+            // "b" is committed again while loading, as after a retried commit.
+            cache.add(database.get("main").get(1));
+        } finally {
+            release.countDown();
+        }
+        reader.join(5000);
+        assertEquals(List.of("a", "b", "c"), texts(result.get()));
+        assertEquals(List.of("a", "b", "c"), texts(cache.getLatest("main", 5)));
+        assertEquals(1, loads.get());
+    }
+
+}
@@ -0,0 +1,64 @@
+package com.tuomasmattila.chatserver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Test;
+
+public class MessageIdGeneratorTest {
+
+    @Test
+    public void idsIncrease() {
+        MessageIdGenerator generator = new MessageIdGenerator(0);
+        long previous = generator.next();
+        for (int i = 0; i < 100000; i++) {
+            long id = generator.next();
+            assertTrue(id > previous);
+            previous = id;
+        }
+    }
+
+    @Test
+    public void idsAreTimeBased() {
+        long before = System.currentTimeMillis();
+        long id = new MessageIdGenerator(0).next();
+        assertTrue(id >> MessageIdGenerator.SEQUENCE_BITS >= before);
+        assertTrue(id >> MessageIdGenerator.SEQUENCE_BITS <= System.currentTimeMillis());
+    }
+
+    @Test
+    public void idsFollowTheLastUsedIdEvenIfItIsInTheFuture() {
+        long future = (System.currentTimeMillis() + 60000) << MessageIdGenerator.SEQUENCE_BITS;
+        MessageIdGenerator generator = new MessageIdGenerator(future);
+        assertEquals(future + 1, generator.next());
+        assertEquals(future + 2, generator.next());
+    }
+
+    @Test
+    public void idsAreUniqueAcrossThreads() throws InterruptedException {
+        MessageIdGenerator generator = new MessageIdGenerator(0);
+        int perThread = 20000;
+        long[][] ids = new long[4][perThread];
+        Thread[] threads = new Thread[ids.length];
+        for (int t = 0; t < threads.length; t++) {
+            long[] own = ids[t];
+            threads[t] = new Thread(() -> {
+                for (int i = 0; i < own.length; i++) {
+                    own[i] = generator.next();
+                }
+            });
+            threads[t].start();
+        }
+        Set<Long> unique = new HashSet<>();
+        for (int t = 0; t < threads.length; t++) {
+            threads[t].join();
+            Arrays.stream(ids[t]).forEach(unique::add);
+        }
+        assertEquals(ids.length * perThread, unique.size());
+    }
+
+}
@@ -0,0 +1,146 @@
+package com.tuomasmattila.chatserver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.sql.SQLException;
+import java.time.OffsetDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.Test;
+
+public class MessageWriterTest {
+
+    /**
+     * A store that keeps the messages in a list, and throws the exception set
+     * in {@code failure} instead of appending the next batch.
+     */
+    private static class ListStore implements MessageStore {
+
+        final List<ChatMessage> messages = new ArrayList<>();
+        volatile RuntimeException failure;
+        volatile CountDownLatch blocked;
+
+        @Override
+        public void append(List<ChatMessage> batch) throws SQLException {
+            if (blocked != null) {
+                try {
+                    blocked.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            RuntimeException e = failure;
+            if (e != null) {
+                failure = null;
+                throw e;
+            }
+            messages.addAll(batch);
+        }
+
+        @Override
+        public ArrayList<ChatMessage> getMessagesSince(String channel, long since) {
+            return new ArrayList<>();
+        }
+
+        @Override
+        public ArrayList<ChatMessage> getLatestMessages(String channel, int count) {
+            return new ArrayList<>();
+        }
+
+        @Override
+        public ArrayList<ChatMessage> getMessagesPage(String channel, long cursor, boolean before, int limit) {
+            return new ArrayList<>();
+        }
+
+        @Override
+        public long getLastMessageId() {
+            return 0;
+        }
+
+        @Override
+        public int numberOfMessages() {
+            return messages.size();
+        }
+
+        @Override
+        public String getStatsAsString() {
+            return "";
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private static ChatMessage message(String text) {
+        return new ChatMessage(OffsetDateTime.now(), "alice", text, "main");
+    }
+
+    private static MessageWriter writer(ListStore store, long writeTimeoutMillis) {
+        return new MessageWriter(store, new MessageIdGenerator(0), message -> { }, 16, 8, 1, 100, writeTimeoutMillis);
+    }
+
+    @Test
+    public void writesAndAssignsIds() throws SQLException {
+        ListStore store = new ListStore();
+        MessageWriter writer = writer(store, 5000);
+        writer.start();
+        ChatMessage first = message("first");
+        ChatMessage second = message("second");
+        writer.write(first);
+        writer.write(second);
+        writer.close();
+        assertEquals(2, store.messages.size());
+        assertTrue(first.getId() > 0);
+        assertTrue(second.getId() > first.getId());
+    }
+
+    @Test
+    public void runtimeExceptionFailsOnlyItsBatch() throws SQLException {
+        ListStore store = new ListStore();
+        MessageWriter writer = writer(store, 5000);
+        writer.start();
+        store.failure = new IllegalStateException("broken");
+        try {
+            writer.write(message("lost"));
+            fail("The failed batch was reported as written.");
+        } catch (SQLException e) {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+        SQLException[] errors = writer.writeAll(List.of(message("a"), message("b")));
+        assertNull(errors[0]);
+        assertNull(errors[1]);
+        writer.close();
+        assertEquals(2, store.messages.size());
+    }
+
+    @Test
+    public void writeTimesOutWhenTheStoreDoesNotCommit() {
+        ListStore store = new ListStore();
+        store.blocked = new CountDownLatch(1);
+        MessageWriter writer = writer(store, 50);
+        writer.start();
+        try {
+            writer.write(message("slow"));
+            fail("The write did not time out.");
+        } catch (SQLException e) {
+            assertTrue(e.getCause() instanceof TimeoutException);
+        } finally {
+            store.blocked.countDown();
+            writer.close();
+        }
+    }
+
+    @Test(expected = SQLException.class)
+    public void writeFailsWhenTheWriterIsNotRunning() throws SQLException {
+        MessageWriter writer = writer(new ListStore(), 5000);
+        writer.write(message("never"));
+    }
+
+}
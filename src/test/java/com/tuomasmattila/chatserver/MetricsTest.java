@@ -0,0 +1,60 @@
+package com.tuomasmattila.chatserver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class MetricsTest {
+
+    @Test
+    public void writesTimersAsHistograms() {
+        LatencyHistogram timer = Metrics.getInstance().timer("test_histogram_seconds", "A test histogram.", "method=\"test\"");
+        timer.record(TimeUnit.MICROSECONDS.toNanos(50));
+        timer.record(TimeUnit.MICROSECONDS.toNanos(100));
+        timer.record(TimeUnit.SECONDS.toNanos(60));
+        List<String> lines = linesOf("test_histogram_seconds");
+        assertEquals("# TYPE test_histogram_seconds histogram", lines.get(1));
+        assertEquals("test_histogram_seconds_bucket{method=\"test\",le=\"0.000064\"} 1", lines.get(2));
+        assertEquals("test_histogram_seconds_bucket{method=\"test\",le=\"0.000128\"} 2", lines.get(3));
+        assertEquals("test_histogram_seconds_bucket{method=\"test\",le=\"33.554432\"} 2", lines.get(21));
+        assertEquals("test_histogram_seconds_bucket{method=\"test\",le=\"+Inf\"} 3", lines.get(22));
+        assertEquals("test_histogram_seconds_sum{method=\"test\"} 60.00015", lines.get(23));
+        assertEquals("test_histogram_seconds_count{method=\"test\"} 3", lines.get(24));
+        assertEquals(25, lines.size());
+    }
+
+    @Test
+    public void bucketCountsNeverDecrease() {
+        LatencyHistogram timer = Metrics.getInstance().timer("test_monotonic_seconds", "Another test histogram.", "");
+        for (long micros = 1; micros < 100_000_000; micros = micros * 3 + 1) {
+            timer.record(TimeUnit.MICROSECONDS.toNanos(micros));
+        }
+        long previous = 0;
+        for (String line : linesOf("test_monotonic_seconds")) {
+            if (line.startsWith("test_monotonic_seconds_bucket")) {
+                long count = Long.parseLong(line.substring(line.lastIndexOf(' ') + 1));
+                assertTrue(count >= previous);
+                previous = count;
+            }
+        }
+        assertEquals(17, previous);
+    }
+
+    private static List<String> linesOf(String name) {
+        StringBuilder out = new StringBuilder();
+        Metrics.getInstance().writeTo(out);
+        List<String> lines = new ArrayList<>();
+        for (String line : out.toString().split("\n")) {
+            if (line.startsWith(name) || line.startsWith("# HELP " + name + " ") || line.startsWith("# TYPE " + name + " ")) {
+                lines.add(line);
+            }
+        }
+        return lines;
+    }
+
+}
@@ -0,0 +1,81 @@
+package com.tuomasmattila.chatserver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class RateLimiterTest {
+
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    @Test
+    public void allowsABurstAndThenTheRate() {
+        RateLimiter limiter = new RateLimiter("test", 10, 3);
+        long now = 1000 * SECOND;
+        for (int i = 0; i < 3; i++) {
+            assertEquals(0, limiter.tryAcquire("alice", now));
+        }
+        assertEquals(SECOND / 10, limiter.tryAcquire("alice", now));
+        // A refused request does not use up a token.
+        assertEquals(SECOND / 20, limiter.tryAcquire("alice", now + SECOND / 20));
+        assertEquals(0, limiter.tryAcquire("alice", now + SECOND / 10));
+        assertEquals(SECOND / 10, limiter.tryAcquire("alice", now + SECOND / 10));
+    }
+
+    @Test
+    public void refillsToTheBurstButNotBeyondIt() {
+        RateLimiter limiter = new RateLimiter("test", 10, 2);
+        long now = 1000 * SECOND;
+        assertEquals(0, limiter.tryAcquire("alice", now));
+        assertEquals(0, limiter.tryAcquire("alice", now));
+        long later = now + 60 * SECOND;
+        assertEquals(0, limiter.tryAcquire("alice", later));
+        assertEquals(0, limiter.tryAcquire("alice", later));
+        assertTrue(limiter.tryAcquire("alice", later) > 0);
+    }
+
+    @Test
+    public void limitsEachKeySeparately() {
+        RateLimiter limiter = new RateLimiter("test", 1, 1);
+        long now = 1000 * SECOND;
+        assertEquals(0, limiter.tryAcquire("alice", now));
+        assertEquals(SECOND, limiter.tryAcquire("alice", now));
+        assertEquals(0, limiter.tryAcquire("bob", now));
+        assertEquals(2, limiter.size());
+    }
+
+    @Test
+    public void dropsTheBucketsOfIdleClients() {
+        RateLimiter limiter = new RateLimiter("test", 1, 5);
+        long now = System.nanoTime();
+        limiter.tryAcquire("alice", now);
+        limiter.tryAcquire("bob", now);
+        limiter.tryAcquire("carol", now + 9 * SECOND);
+        limiter.tryAcquire("carol", now + 9 * SECOND);
+        limiter.tryAcquire("carol", now + 9 * SECOND);
+        assertEquals(3, limiter.size());
+        // The sweep after ten seconds drops the full buckets of alice and bob.
+        limiter.tryAcquire("dave", now + 11 * SECOND);
+        assertEquals(2, limiter.size());
+    }
+
+    @Test
+    public void answersWith429AndRetryAfter() throws Exception {
+        RateLimiter limiter = new RateLimiter("test", 1, 1);
+        int[] handled = new int[1];
+        RateLimitedHandler handler = new RateLimitedHandler(limiter, exchange -> handled[0]++);
+        handler.handle(new TestExchange("GET", "/chat", new byte[0]));
+        assertEquals(1, handled[0]);
+        TestExchange refused = new TestExchange("GET", "/chat", new byte[0]);
+        handler.handle(refused);
+        assertEquals(1, handled[0]);
+        assertEquals(429, refused.getResponseCode());
+        assertEquals("1", refused.getResponseHeaders().getFirst("Retry-After"));
+        assertEquals("Too many requests, try again in 1 s.", new String(refused.getResponseBytes(), StandardCharsets.UTF_8));
+    }
+
+}
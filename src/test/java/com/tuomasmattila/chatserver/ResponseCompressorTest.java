@@ -0,0 +1,53 @@
+package com.tuomasmattila.chatserver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+import com.sun.net.httpserver.Headers;
+
+public class ResponseCompressorTest {
+
+    private static String negotiate(String... acceptEncoding) {
+        Headers headers = new Headers();
+        for (String value : acceptEncoding) {
+            headers.add("Accept-Encoding", value);
+        }
+        return ResponseCompressor.negotiate(headers);
+    }
+
+    @Test
+    public void noHeaderMeansNoCompression() {
+        assertNull(negotiate());
+        assertNull(negotiate("identity"));
+        assertNull(negotiate("br"));
+    }
+
+    @Test
+    public void prefersGzipOverDeflate() {
+        assertEquals("gzip", negotiate("gzip, deflate"));
+        assertEquals("gzip", negotiate("deflate, gzip"));
+        assertEquals("gzip", negotiate("deflate", "x-gzip"));
+        assertEquals("deflate", negotiate("deflate"));
+    }
+
+    @Test
+    public void followsQualities() {
+        assertEquals("deflate", negotiate("gzip;q=0.5, deflate;q=0.8"));
+        assertEquals("gzip", negotiate("GZIP; q=1.0, deflate;q=0.8"));
+        assertNull(negotiate("gzip;q=0"));
+        assertNull(negotiate("gzip;q=invalid"));
+    }
+
+    @Test
+    public void starOnlyAppliesToEncodingsNotListed() {
+        assertEquals("gzip", negotiate("*"));
+        assertEquals("deflate", negotiate("gzip;q=0, *"));
+        assertEquals("deflate", negotiate("*, gzip;q=0"));
+        assertNull(negotiate("gzip;q=0, deflate;q=0, *"));
+        assertNull(negotiate("*;q=0"));
+        assertEquals("deflate", negotiate("deflate, *;q=0"));
+    }
+
+}
@@ -0,0 +1,61 @@
+package com.tuomasmattila.chatserver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+import org.junit.Test;
+
+public class TokenManagerTest {
+
+    @Test
+    public void issuedTokenVerifies() {
+        TokenManager manager = new TokenManager("secret", 60000);
+        TokenManager.Token token = manager.issueToken("alice");
+        assertEquals("alice", manager.verifyToken(token.getValue()));
+    }
+
+    @Test
+    public void reportedExpiryIsTheSignedOne() {
+        TokenManager manager = new TokenManager("secret", 60000);
+        long before = System.currentTimeMillis();
+        TokenManager.Token token = manager.issueToken("alice");
+        String payload = token.getValue().substring(0, token.getValue().indexOf('.'));
+        String decoded = new String(Base64.getUrlDecoder().decode(payload), StandardCharsets.UTF_8);
+        assertEquals(token.getExpiresAt() + ":alice", decoded);
+        assertTrue(token.getExpiresAt() >= before + 60000);
+    }
+
+    @Test
+    public void tokenOfAnotherKeyIsRejected() {
+        TokenManager.Token token = new TokenManager("secret", 60000).issueToken("alice");
+        assertNull(new TokenManager("other", 60000).verifyToken(token.getValue()));
+    }
+
+    @Test
+    public void tamperedPayloadIsRejected() {
+        TokenManager manager = new TokenManager("secret", 60000);
+        String value = manager.issueToken("alice").getValue();
+        String forged = Base64.getUrlEncoder().withoutPadding().encodeToString(("9999999999999:admin").getBytes(StandardCharsets.UTF_8));
+        assertNull(manager.verifyToken(forged + value.substring(value.indexOf('.'))));
+    }
+
+    @Test
+    public void expiredTokenIsRejected() {
+        TokenManager manager = new TokenManager("secret", -1);
+        assertNull(manager.verifyToken(manager.issueToken("alice").getValue()));
+    }
+
+    @Test
+    public void malformedTokensAreRejected() {
+        TokenManager manager = new TokenManager("secret", 60000);
+        assertNull(manager.verifyToken(""));
+        assertNull(manager.verifyToken("abc"));
+        assertNull(manager.verifyToken("a.b.c"));
+        assertNull(manager.verifyToken("!!!.###"));
+    }
+
+}
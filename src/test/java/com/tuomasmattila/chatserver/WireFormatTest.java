@@ -0,0 +1,92 @@
+package com.tuomasmattila.chatserver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.sun.net.httpserver.Headers;
+
+public class WireFormatTest {
+
+    private static Headers accept(String... accept) {
+        Headers headers = new Headers();
+        for (String value : accept) {
+            headers.add("Accept", value);
+        }
+        return headers;
+    }
+
+    private static WireFormat fromAccept(String... accept) {
+        return WireFormat.fromAccept(accept(accept));
+    }
+
+    @Test
+    public void defaultsToJson() {
+        assertEquals(WireFormat.JSON, fromAccept());
+        assertEquals(WireFormat.JSON, fromAccept("*/*"));
+        assertEquals(WireFormat.JSON, fromAccept("text/html"));
+        assertEquals(WireFormat.JSON, fromAccept("application/json"));
+    }
+
+    @Test
+    public void choosesCborWhenItIsPreferred() {
+        assertEquals(WireFormat.CBOR, fromAccept("application/cbor"));
+        assertEquals(WireFormat.CBOR, fromAccept("application/json;q=0.5, application/cbor"));
+        assertEquals(WireFormat.CBOR, fromAccept("application/json;q=0.5", "APPLICATION/CBOR"));
+        assertEquals(WireFormat.CBOR, fromAccept("application/cbor, */*;q=0.1"));
+    }
+
+    @Test
+    public void choosesJsonOnTiesAndRefusals() {
+        assertEquals(WireFormat.JSON, fromAccept("application/json, application/cbor"));
+        assertEquals(WireFormat.JSON, fromAccept("application/cbor;q=0"));
+        assertEquals(WireFormat.JSON, fromAccept("application/cbor;q=0.5, */*"));
+        assertEquals(WireFormat.JSON, fromAccept("application/cbor;q=x"));
+    }
+
+    @Test
+    public void findsTheFormatOfABody() {
+        assertEquals(WireFormat.JSON, WireFormat.fromContentType("application/json"));
+        assertEquals(WireFormat.JSON, WireFormat.fromContentType("application/json; charset=utf-8"));
+        assertEquals(WireFormat.CBOR, WireFormat.fromContentType(" Application/CBOR "));
+        assertNull(WireFormat.fromContentType("text/plain"));
+    }
+
+    @Test
+    public void tagsRepresentationsSeparately() {
+        assertEquals("\"abc\"", WireFormat.JSON.tag("\"abc\""));
+        assertEquals("\"abc-cbor\"", WireFormat.CBOR.tag("\"abc\""));
+        assertEquals("W/\"abc-cbor\"", WireFormat.CBOR.tag("W/\"abc\""));
+    }
+
+    @Test
+    public void answersInTheRequestFormatWithoutAPreference() {
+        assertEquals(WireFormat.CBOR, WireFormat.fromAccept(accept(), WireFormat.CBOR));
+        assertEquals(WireFormat.CBOR, WireFormat.fromAccept(accept("*/*"), WireFormat.CBOR));
+        assertEquals(WireFormat.JSON, WireFormat.fromAccept(accept("application/json"), WireFormat.CBOR));
+        assertEquals(WireFormat.JSON, WireFormat.fromAccept(accept("application/cbor;q=0.5, application/json"), WireFormat.CBOR));
+        assertEquals(WireFormat.CBOR, WireFormat.fromAccept(accept("application/cbor"), WireFormat.JSON));
+        assertEquals(WireFormat.JSON, WireFormat.fromAccept(accept("*/*"), WireFormat.JSON));
+    }
+
+    @Test
+    public void encodesBatchStatusesInCbor() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (MessageEncoder encoder = WireFormat.CBOR.openEncoder(out)) {
+            encoder.writeStatuses(List.of(MessageStatus.stored(1000), MessageStatus.error(400, "bad")));
+        }
+        byte[] expected = {
+            (byte) 0x82,
+            (byte) 0xa2, 0x66, 's', 't', 'a', 't', 'u', 's', 0x18, (byte) 200, 0x62, 'i', 'd', 0x19, 0x03, (byte) 0xe8,
+            (byte) 0xa2, 0x66, 's', 't', 'a', 't', 'u', 's', 0x19, 0x01, (byte) 0x90, 0x65, 'e', 'r', 'r', 'o', 'r', 0x63, 'b', 'a', 'd',
+        };
+        assertArrayEquals(expected, out.toByteArray());
+    }
+
+}
@@ -0,0 +1,113 @@
+package com.tuomasmattila.chatserver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Test;
+
+public class WorkerPoolTest {
+
+    @Test
+    public void shedsAndThenDropsWithoutRunningOnTheCaller() throws InterruptedException {
+        WorkerPool pool = new WorkerPool(1, 1, false);
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch started = new CountDownLatch(3);
+        try {
+            // One task runs on the worker and one waits in its queue.
+            pool.execute(() -> block(started, release));
+            pool.execute(() -> block(null, release));
+            // Two are shed and hold the shedding threads, and one waits for them.
+            pool.execute(() -> block(started, release));
+            pool.execute(() -> block(started, release));
+            pool.execute(() -> block(null, release));
+            assertTrue(started.await(5, TimeUnit.SECONDS));
+            assertEquals(3, pool.getRejectedCount());
+            AtomicBoolean ran = new AtomicBoolean();
+            try {
+                pool.execute(() -> ran.set(true));
+                fail("A task was accepted with no room for it.");
+            } catch (RejectedExecutionException e) {
+                // Expected.
+            }
+            assertFalse(ran.get());
+            assertEquals(1, pool.getDroppedCount());
+        } finally {
+            release.countDown();
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void marksTheShedTasks() throws InterruptedException {
+        WorkerPool pool = new WorkerPool(1, 1, false);
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(1);
+        AtomicBoolean shedding = new AtomicBoolean();
+        try {
+            pool.execute(() -> block(null, release));
+            pool.execute(() -> block(null, release));
+            pool.execute(() -> {
+                shedding.set(WorkerPool.isShedding());
+                done.countDown();
+            });
+            assertTrue(done.await(5, TimeUnit.SECONDS));
+            assertTrue(shedding.get());
+        } finally {
+            release.countDown();
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void boundsTheLongTasks() throws InterruptedException {
+        WorkerPool pool = new WorkerPool(1, 1, false);
+        Executor streams = pool.newLongTaskExecutor("test-stream", 2);
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch started = new CountDownLatch(2);
+        try {
+            streams.execute(() -> block(started, release));
+            streams.execute(() -> block(started, release));
+            assertTrue(started.await(5, TimeUnit.SECONDS));
+            try {
+                streams.execute(() -> { });
+                fail("A long task was accepted over the limit.");
+            } catch (RejectedExecutionException e) {
+                // Expected.
+            }
+        } finally {
+            release.countDown();
+            pool.shutdown();
+        }
+        CountDownLatch again = new CountDownLatch(1);
+        for (int attempt = 0; attempt < 100; attempt++) {
+            try {
+                streams.execute(again::countDown);
+                break;
+            } catch (RejectedExecutionException e) {
+                // The finished tasks' threads are not free yet.
+                Thread.sleep(10);
+            }
+        }
+        assertTrue(again.await(5, TimeUnit.SECONDS));
+    }
+
+    private static void block(CountDownLatch started, CountDownLatch release) {
+        if (started != null) {
+            started.countDown();
+        }
+        try {
+            release.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+}